@@ -0,0 +1,205 @@
+package net.sf.webdav;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The MEGA accounts ordered by the space they have left, for
+ * {@link IPlacementPolicy}s to choose from. Available space is free space
+ * minus what is reserved for running uploads. {@link Database} keeps it in
+ * step with the accounts table.
+ * <p>
+ * The pool also limits the transfers running against one account to
+ * megafs.upload.perAccount, so uploads to different accounts run in
+ * parallel without any single account being hammered. A batch of uploads
+ * done in one operation counts as one transfer. When choosing, accounts
+ * with a free transfer slot are preferred.
+ */
+public class AccountPool {
+
+    private static final int TRANSFERS_PER_ACCOUNT = Integer.getInteger(
+            "megafs.upload.perAccount", 2);
+
+    private static final Comparator<Account> BY_AVAILABLE = new Comparator<Account>() {
+        public int compare(Account a, Account b) {
+            int compare = Long.compare(a.available, b.available);
+            return compare != 0 ? compare : a.username.compareTo(b.username);
+        }
+    };
+
+    private final TreeSet<Account> byAvailable = new TreeSet<Account>(BY_AVAILABLE);
+
+    /**
+     * keys: username
+     */
+    private final Map<String, Account> accounts = new HashMap<String, Account>();
+
+    private long useCounter = 0;
+
+    /**
+     * Adds an account or updates the space it has left.
+     */
+    public synchronized void update(String username, long available) {
+        Account account = accounts.get(username);
+        if (account == null) {
+            account = new Account(username);
+            accounts.put(username, account);
+        } else {
+            byAvailable.remove(account);
+        }
+        account.available = available;
+        byAvailable.add(account);
+    }
+
+    public synchronized Account get(String username) {
+        return accounts.get(username);
+    }
+
+    /**
+     * Records that a file was placed on the account.
+     */
+    public synchronized void used(String username) {
+        Account account = accounts.get(username);
+        if (account != null) {
+            account.lastUsed = ++useCounter;
+        }
+    }
+
+    /**
+     * Announces a transfer to the account that will {@link #acquire(String)}
+     * a slot soon, so choices made meanwhile already count it.
+     */
+    public synchronized void claim(String username) {
+        Account account = accounts.get(username);
+        if (account != null) {
+            account.claimed++;
+        }
+    }
+
+    /**
+     * Turns a claim into a transfer slot, waiting until one is free. Every
+     * slot taken has to be given back with {@link #release(String)}. If the
+     * wait is interrupted the claim stays, to be withdrawn with
+     * {@link #unclaim(String, int)}.
+     */
+    public synchronized void acquire(String username) throws InterruptedException {
+        Account account = accounts.get(username);
+        if (account == null) {
+            return;
+        }
+        while (account.transfers >= TRANSFERS_PER_ACCOUNT) {
+            wait();
+        }
+        if (account.claimed > 0) {
+            account.claimed--;
+        }
+        account.transfers++;
+    }
+
+    /**
+     * Withdraws claims for transfers that won't acquire a slot of their own:
+     * they run as part of a batch, in the slot acquired for another one, or
+     * not at all.
+     */
+    public synchronized void unclaim(String username, int claims) {
+        Account account = accounts.get(username);
+        if (account != null) {
+            account.claimed = Math.max(0, account.claimed - claims);
+        }
+    }
+
+    public synchronized void release(String username) {
+        Account account = accounts.get(username);
+        if (account != null && account.transfers > 0) {
+            account.transfers--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the account with the least space that still has room for
+     *  <code>fileSize</code> bytes, or null
+     */
+    public synchronized Account smallestFitting(long fileSize) {
+        List<Account> fitting = fitting(fileSize);
+        return fitting.isEmpty() ? null : fitting.get(0);
+    }
+
+    /**
+     * @return the account with the most space, or null if there is none
+     *  with room for <code>fileSize</code> bytes
+     */
+    public synchronized Account largestFitting(long fileSize) {
+        List<Account> fitting = fitting(fileSize);
+        return fitting.isEmpty() ? null : fitting.get(fitting.size() - 1);
+    }
+
+    /**
+     * @return the accounts with room for <code>fileSize</code> bytes, least
+     *  space first. Only those with a free transfer slot; if all are busy,
+     *  those with the fewest transfers running or claimed, so uploads
+     *  waiting for a slot queue up evenly instead of all on one account.
+     */
+    public synchronized List<Account> fitting(long fileSize) {
+        List<Account> leastBusy = new ArrayList<Account>();
+        int leastLoad = Integer.MAX_VALUE;
+        for (Account account : byAvailable.tailSet(probe(fileSize), false)) {
+            // all accounts with a free slot count as equally busy
+            int load = Math.max(account.transfers + account.claimed, TRANSFERS_PER_ACCOUNT - 1);
+            if (load < leastLoad) {
+                leastBusy.clear();
+                leastLoad = load;
+            }
+            if (load == leastLoad) {
+                leastBusy.add(account);
+            }
+        }
+        return leastBusy;
+    }
+
+    public synchronized int size() {
+        return accounts.size();
+    }
+
+    /**
+     * sorts after every account with <code>fileSize</code> bytes or less
+     */
+    private static Account probe(long fileSize) {
+        Account probe = new Account("\uffff");
+        probe.available = fileSize;
+        return probe;
+    }
+
+    public static class Account {
+
+        private final String username;
+        private long available;
+        private long lastUsed = 0;
+        private int transfers = 0;
+        private int claimed = 0;
+
+        Account(String username) {
+            this.username = username;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getAvailable() {
+            return available;
+        }
+
+        /**
+         * @return a counter that grows every time a file is placed, 0 if
+         *  the account wasn't used since startup
+         */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+    }
+}
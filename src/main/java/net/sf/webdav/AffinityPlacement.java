@@ -0,0 +1,35 @@
+package net.sf.webdav;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the files of a folder on one account as long as it has room, so a
+ * folder can be fetched or moved with a single account's credentials. The
+ * first file of a folder is placed best-fit.
+ */
+public class AffinityPlacement implements IPlacementPolicy {
+
+    private final IPlacementPolicy fallback = new BestFitPlacement();
+
+    /**
+     * keys: folder path value: username
+     */
+    private final ConcurrentHashMap<String, String> folders = new ConcurrentHashMap<String, String>();
+
+    public AccountPool.Account choose(AccountPool accounts, long fileSize,
+            String uri) {
+        String folder = NamespaceIndex.parentOf(NamespaceIndex.normalize(uri));
+        String username = folders.get(folder);
+        if (username != null) {
+            AccountPool.Account account = accounts.get(username);
+            if (account != null && account.getAvailable() > fileSize) {
+                return account;
+            }
+        }
+        AccountPool.Account account = fallback.choose(accounts, fileSize, uri);
+        if (account != null) {
+            folders.put(folder, account.getUsername());
+        }
+        return account;
+    }
+}
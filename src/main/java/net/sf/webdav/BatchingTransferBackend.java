@@ -0,0 +1,280 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Holds the transfer slots of {@link AccountPool} while uploading and, if
+ * the backend can upload several files at once, groups uploads into the
+ * same account and remote folder that arrive within a short window into one
+ * {@link IBatchTransferBackend#putAll} call. The first upload of a batch
+ * waits up to megafs.batch.windowMillis for others to join, and for as long
+ * as it takes to get a slot, and then uploads all of them, at most
+ * megafs.batch.maxSize, with that single slot.
+ * <p>
+ * Uploads to a backend that can't batch are uploaded on their own, as is an
+ * upload to a remote path that the open batch has already.
+ */
+public class BatchingTransferBackend implements ITransferBackend {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(BatchingTransferBackend.class);
+
+    private static final long WINDOW_MILLIS = Long.getLong(
+            "megafs.batch.windowMillis", 200);
+    private static final int MAX_SIZE = Integer.getInteger(
+            "megafs.batch.maxSize", 32);
+
+    private final ITransferBackend backend;
+    private final AccountPool accountPool;
+
+    /**
+     * keys: username and remote folder value: the batch still taking uploads
+     */
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+
+    public BatchingTransferBackend(ITransferBackend backend,
+            AccountPool accountPool) {
+        this.backend = backend;
+        this.accountPool = accountPool;
+    }
+
+    /**
+     * Uploads a file as part of a batch, blocking until the batch is done.
+     * The upload has to be {@link AccountPool#claim(String) claimed}; the
+     * claim is used up, whether the upload succeeds or not.
+     */
+    public void put(Credentials account, File localFile, String remotePath)
+            throws IOException {
+        String remoteFolder = NamespaceIndex.parentOf(remotePath);
+        if (!(backend instanceof IBatchTransferBackend) || MAX_SIZE <= 1) {
+            putAlone(account, localFile, remotePath);
+            return;
+        }
+        String key = account.getUsername() + ":" + remoteFolder;
+        Upload upload = new Upload(localFile, remotePath);
+        Batch batch;
+        boolean leader;
+        synchronized (open) {
+            batch = open.get(key);
+            leader = batch == null;
+            if (leader) {
+                batch = new Batch(account, remoteFolder);
+                open.put(key, batch);
+            } else if (batch.contains(remotePath)) {
+                // both can't be put in one go, one of them will find the
+                // other's file there
+                batch = null;
+            }
+            if (batch != null) {
+                batch.uploads.add(upload);
+                if (batch.uploads.size() >= MAX_SIZE) {
+                    open.remove(key);
+                    open.notifyAll();
+                }
+            }
+        }
+        if (batch == null) {
+            putAlone(account, localFile, remotePath);
+            return;
+        }
+        if (leader) {
+            lead(key, batch);
+        }
+        try {
+            upload.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while uploading " + remotePath);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Lets the batch fill until the window has passed and a transfer slot is
+     * free, then uploads it. Whatever happens, the claims of all uploads in
+     * the batch are used up and each of them completes.
+     */
+    private void lead(String key, Batch batch) {
+        long deadline = System.currentTimeMillis() + WINDOW_MILLIS;
+        String username = batch.account.getUsername();
+        try {
+            synchronized (open) {
+                long remaining;
+                while (open.get(key) == batch
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    open.wait(remaining);
+                }
+            }
+            acquire(username);
+        } catch (InterruptedException | IOException e) {
+            close(key, batch);
+            // none of them got a slot
+            accountPool.unclaim(username, batch.uploads.size());
+            fail(batch, new InterruptedIOException(
+                    "interrupted while waiting to upload to " + username));
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            close(key, batch);
+            accountPool.unclaim(username, batch.uploads.size() - 1);
+            run(batch);
+        } catch (RuntimeException e) {
+            fail(batch, new IOException("upload to " + username + " failed", e));
+            throw e;
+        } finally {
+            accountPool.release(username);
+        }
+    }
+
+    /**
+     * Completes the uploads of a batch that aren't done yet with an error.
+     */
+    private static void fail(Batch batch, IOException e) {
+        for (Upload upload : batch.uploads) {
+            upload.done.completeExceptionally(e);
+        }
+    }
+
+    private void close(String key, Batch batch) {
+        synchronized (open) {
+            if (open.get(key) == batch) {
+                open.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Uploads a closed batch, holding the transfer slot.
+     */
+    private void run(Batch batch) {
+        List<Upload> uploads = batch.uploads;
+        if (uploads.size() == 1) {
+            Upload upload = uploads.get(0);
+            try {
+                backend.put(batch.account, upload.localFile, upload.remotePath);
+                upload.done.complete(null);
+            } catch (IOException e) {
+                upload.done.completeExceptionally(e);
+            }
+            return;
+        }
+        Map<String, File> localFiles = new LinkedHashMap<String, File>();
+        for (Upload upload : uploads) {
+            localFiles.put(NamespaceIndex.nameOf(upload.remotePath), upload.localFile);
+        }
+        Map<String, IOException> failed;
+        try {
+            failed = ((IBatchTransferBackend) backend).putAll(batch.account,
+                    batch.remoteFolder, localFiles);
+        } catch (IOException e) {
+            fail(batch, e);
+            return;
+        }
+        LOG.debug("Uploaded " + (uploads.size() - failed.size()) + " of "
+                + uploads.size() + " files to " + batch.remoteFolder + " at once");
+        for (Upload upload : uploads) {
+            IOException e = failed.get(NamespaceIndex.nameOf(upload.remotePath));
+            if (e == null) {
+                upload.done.complete(null);
+            } else {
+                upload.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void putAlone(Credentials account, File localFile, String remotePath)
+            throws IOException {
+        try {
+            acquire(account.getUsername());
+        } catch (IOException e) {
+            accountPool.unclaim(account.getUsername(), 1);
+            throw e;
+        }
+        try {
+            backend.put(account, localFile, remotePath);
+        } finally {
+            accountPool.release(account.getUsername());
+        }
+    }
+
+    private void acquire(String username) throws IOException {
+        try {
+            accountPool.acquire(username);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to upload to " + username);
+        }
+    }
+
+    public InputStream get(Credentials account, String remotePath)
+            throws IOException {
+        return backend.get(account, remotePath);
+    }
+
+    public void rm(Credentials account, String remotePath) throws IOException {
+        backend.rm(account, remotePath);
+    }
+
+    public void mkdir(Credentials account, String remotePath)
+            throws IOException {
+        backend.mkdir(account, remotePath);
+    }
+
+    public List<String> ls(Credentials account, String remotePath)
+            throws IOException {
+        return backend.ls(account, remotePath);
+    }
+
+    public long quota(Credentials account) throws IOException {
+        return backend.quota(account);
+    }
+
+    public Credentials createAccount() {
+        return backend.createAccount();
+    }
+
+    private static class Batch {
+
+        private final Credentials account;
+        private final String remoteFolder;
+        private final List<Upload> uploads = new ArrayList<Upload>();
+
+        Batch(Credentials account, String remoteFolder) {
+            this.account = account;
+            this.remoteFolder = remoteFolder;
+        }
+
+        boolean contains(String remotePath) {
+            for (Upload upload : uploads) {
+                if (upload.remotePath.equals(remotePath)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Upload {
+
+        private final File localFile;
+        private final String remotePath;
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Upload(File localFile, String remotePath) {
+            this.localFile = localFile;
+            this.remotePath = remotePath;
+        }
+    }
+}
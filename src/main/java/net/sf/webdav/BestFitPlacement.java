@@ -0,0 +1,14 @@
+package net.sf.webdav;
+
+/**
+ * Puts a file on the account with the least space that still fits it, which
+ * fills accounts one after the other and keeps large gaps free for large
+ * files.
+ */
+public class BestFitPlacement implements IPlacementPolicy {
+
+    public AccountPool.Account choose(AccountPool accounts, long fileSize,
+            String uri) {
+        return accounts.smallestFitting(fileSize);
+    }
+}
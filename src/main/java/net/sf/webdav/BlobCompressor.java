@@ -0,0 +1,193 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflates blobs before they are uploaded if that makes them noticeably
+ * smaller, turned on with megafs.compress=deflate. Files with an extension
+ * in megafs.compress.skip, formats that are compressed already by default,
+ * are uploaded as they are, as are files whose first 64 KiB don't shrink
+ * below megafs.compress.ratio (0.9) of their size. The codec is recorded
+ * with the blob, so reading inflates what was deflated whatever the
+ * settings are by then.
+ */
+public class BlobCompressor {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(BlobCompressor.class);
+
+    public static final String DEFLATE = "deflate";
+
+    private static final String CODEC = System.getProperty("megafs.compress", "off");
+    private static final int LEVEL = Integer.getInteger("megafs.compress.level",
+            Deflater.BEST_SPEED);
+    private static final double RATIO = Double.parseDouble(System.getProperty(
+            "megafs.compress.ratio", "0.9"));
+    private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(
+            System.getProperty("megafs.compress.skip",
+                    "7z,avi,bz2,docx,flac,gif,gz,jpeg,jpg,mkv,mov,mp3,mp4,ogg,pdf,png,pptx,rar,tgz,webm,webp,xlsx,xz,zip,zst")
+                    .toLowerCase(Locale.ROOT).split(",")));
+
+    private static int BUF_SIZE = 65536;
+    private static int SAMPLE_SIZE = 65536;
+
+    private final File directory;
+
+    /**
+     * @param directory
+     *      where compressed copies are kept while they are uploaded; copies
+     *      left there by a previous run are deleted
+     */
+    public BlobCompressor(File directory) {
+        this.directory = directory;
+        File[] abandoned = directory.listFiles();
+        for (int i = 0; abandoned != null && i < abandoned.length; i++) {
+            File[] copies = abandoned[i].listFiles();
+            for (int j = 0; copies != null && j < copies.length; j++) {
+                copies[j].delete();
+            }
+            abandoned[i].delete();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return DEFLATE.equals(CODEC);
+    }
+
+    /**
+     * Writes a deflated copy of a file, named <code>name</code> so uploads
+     * of it can still be batched.
+     *
+     * @return the copy, to be {@link #delete(File) deleted} after the upload,
+     *  or null if the file is better uploaded as it is
+     */
+    public File compress(File file, String name) throws IOException {
+        if (!isEnabled() || SKIPPED.contains(extensionOf(name)) || !worthTrying(file)) {
+            return null;
+        }
+        File compressed = new File(new File(directory, UUID.randomUUID().toString()), name);
+        compressed.getParentFile().mkdirs();
+        Deflater deflater = new Deflater(LEVEL);
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new DeflaterOutputStream(new FileOutputStream(compressed), deflater, BUF_SIZE)) {
+            byte[] buffer = new byte[BUF_SIZE];
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            delete(compressed);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        if (compressed.length() > file.length() * RATIO) {
+            delete(compressed);
+            return null;
+        }
+        LOG.debug("Compressed " + name + " from " + file.length() + " to "
+                + compressed.length() + " bytes");
+        return compressed;
+    }
+
+    /**
+     * Deflates the start of a file to see if the rest is likely to shrink.
+     */
+    private static boolean worthTrying(File file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < sample.length
+                    && (read = in.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[BUF_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed <= length * RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deletes a compressed copy and the directory it was made in.
+     */
+    public static void delete(File compressed) {
+        compressed.delete();
+        compressed.getParentFile().delete();
+    }
+
+    /**
+     * The source is read to its end after the compressed data, which is
+     * where a download from megatools reports whether it failed.
+     *
+     * @param codec
+     *      the codec recorded with the blob, null if it isn't compressed
+     */
+    public static InputStream decompress(String codec, InputStream in) throws IOException {
+        if (codec == null) {
+            return in;
+        }
+        if (codec.equals(DEFLATE)) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUF_SIZE) {
+                private boolean drained = false;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read == -1 && !drained) {
+                        drained = true;
+                        byte[] rest = new byte[BUF_SIZE];
+                        while (in.read(rest) != -1) {
+                            // nothing should follow the compressed data
+                        }
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        in.close();
+        throw new IOException("Unknown codec " + codec);
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,164 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * The content of a chunked file, read chunk after chunk while the next
+ * chunks are already being fetched in parallel. Each chunk is downloaded
+ * into a temporary file, which is read while it grows and deleted once the
+ * stream has moved past it.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    /**
+     * Opens the remote content of one chunk.
+     */
+    public interface Source {
+
+        InputStream open(int index) throws IOException;
+    }
+
+    private final Source source;
+    private final int count;
+    private final int readAhead;
+    private final File directory;
+    private final Executor executor;
+
+    private final ArrayDeque<Fetch> fetches = new ArrayDeque<Fetch>();
+    private int next = 0;
+    private InputStream current = null;
+
+    /**
+     * @param count
+     *      the number of chunks
+     * @param readAhead
+     *      how many chunks are fetched at the same time
+     * @param directory
+     *      where the chunks are kept while they are read
+     */
+    public ChunkedInputStream(Source source, int count, int readAhead,
+            File directory, Executor executor) {
+        this.source = source;
+        this.count = count;
+        this.readAhead = Math.max(1, readAhead);
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (current == null && !advance()) {
+                return -1;
+            }
+            int read = current.read(b, off, len);
+            if (read != -1) {
+                return read;
+            }
+            finishCurrent();
+        }
+    }
+
+    /**
+     * Moves to the next chunk, starting fetches up to the read-ahead.
+     *
+     * @return false at the end of the content
+     */
+    private boolean advance() throws IOException {
+        while (fetches.size() < readAhead && next < count) {
+            fetches.addLast(start(next++));
+        }
+        if (fetches.isEmpty()) {
+            return false;
+        }
+        current = fetches.peekFirst().download.openStream();
+        return true;
+    }
+
+    private Fetch start(final int index) throws IOException {
+        directory.mkdirs();
+        File file = new File(directory, UUID.randomUUID() + ".chunk");
+        final Fetch fetch = new Fetch(file, new RemoteDownload(file));
+        fetch.download.start(new RemoteDownload.Source() {
+            public InputStream open() throws IOException {
+                return source.open(index);
+            }
+        }, executor, new Runnable() {
+            public void run() {
+                synchronized (fetch) {
+                    fetch.finished = true;
+                    if (fetch.consumed) {
+                        fetch.file.delete();
+                    }
+                }
+            }
+        });
+        return fetch;
+    }
+
+    private void finishCurrent() throws IOException {
+        try {
+            current.close();
+        } finally {
+            current = null;
+            release(fetches.pollFirst());
+        }
+    }
+
+    /**
+     * Deletes the chunk's file now, or once its download has finished.
+     */
+    private void release(Fetch fetch) {
+        synchronized (fetch) {
+            fetch.consumed = true;
+            if (fetch.finished) {
+                fetch.file.delete();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        } finally {
+            // running downloads finish in the background and clean up
+            Fetch fetch;
+            while ((fetch = fetches.pollFirst()) != null) {
+                release(fetch);
+            }
+            next = count;
+        }
+    }
+
+    private static class Fetch {
+
+        private final File file;
+        private final RemoteDownload download;
+        private boolean finished = false;
+        private boolean consumed = false;
+
+        Fetch(File file, RemoteDownload download) {
+            this.file = file;
+            this.download = download;
+        }
+    }
+}
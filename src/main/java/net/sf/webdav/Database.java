@@ -1,30 +1,116 @@
 package net.sf.webdav;
 
 import javax.xml.bind.DatatypeConverter;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.CookieHandler;
-import java.net.CookieManager;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Database {
-    private Connection connection;
-    private Statement statement;
-    final String megatoolsBinary = "megatools";
+
+    /**
+     * local directory where packs are assembled and cached
+     */
+    private final File packDirectory = new File(System.getProperty(
+            "megafs.pack.dir", "megafs-packs"));
+
+    /**
+     * local directory for chunks being transferred
+     */
+    private final File chunkDirectory = new File(System.getProperty(
+            "megafs.chunk.dir", "megafs-chunks"));
+
+    /**
+     * local directory for compressed copies being uploaded
+     */
+    private final File compressDirectory = new File(System.getProperty(
+            "megafs.compress.dir", "megafs-compress"));
+
+    private SqliteConnections connections;
+    private final NamespaceIndex namespace;
+    private final AccountPool accountPool = new AccountPool();
+    private final IPlacementPolicy placement = createPlacementPolicy();
+    private final ITransferBackend backend = new BatchingTransferBackend(
+            createTransferBackend(), accountPool);
+    private final Packer packer = new Packer(packDirectory);
+    private final PackCache packCache = new PackCache(new File(packDirectory, "cache"), backend);
+    private final ExecutorService compactor = Executors
+            .newSingleThreadExecutor(new DaemonThreadFactory("megafs-compact"));
+    private final BlobCompressor compressor = new BlobCompressor(compressDirectory);
+    private final IChunker chunker = createChunker();
+    private final ExecutorService chunkUploads = Executors.newFixedThreadPool(
+            CHUNK_PARALLEL, new DaemonThreadFactory("megafs-chunk-upload"));
+    private final ExecutorService chunkDownloads = Executors
+            .newCachedThreadPool(new DaemonThreadFactory("megafs-chunk-download"));
+    private final ExecutorService remoteDeletes = Executors
+            .newSingleThreadExecutor(new DaemonThreadFactory("megafs-delete"));
+
+    /**
+     * keys: chunk hash value: the upload running for that chunk, shared by
+     * the files containing it
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> chunkPuts = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+
+    static final String JOURNAL_PENDING = "PENDING";
+    static final String JOURNAL_IN_FLIGHT = "IN_FLIGHT";
+    static final String JOURNAL_DONE = "DONE";
+
+    static final long ROOT_DIRECTORY_ID = 1;
+
+    /**
+     * remote folder holding the packs of an account
+     */
+    static final String PACK_FOLDER = "/Root/.megafs-packs";
+
+    /**
+     * files of this size or larger are split into chunks, 0 turns chunking
+     * off
+     */
+    private static final long CHUNK_THRESHOLD = Long.getLong(
+            "megafs.chunk.threshold", 0);
+
+    /**
+     * chunks of one file transferred at the same time
+     */
+    private static final int CHUNK_PARALLEL = Integer.getInteger(
+            "megafs.chunk.parallel", 4);
+
+    /**
+     * remote folder holding the chunks of an account, named by their hash
+     */
+    static final String CHUNK_FOLDER = "/Root/.megafs-chunks";
+
+    /**
+     * remote folders known to exist, as "username:path"
+     */
+    private final Set<String> remoteFolders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * ids of the packs queued for compaction
+     */
+    private final Set<Long> compacting = ConcurrentHashMap.newKeySet();
+
+    private final Object accountCreation = new Object();
 
 
     public Database() {
@@ -33,223 +119,1696 @@ public class Database {
         } catch (ClassNotFoundException e) {
             System.out.println("Sqlite driver classfile not found: " + e.getMessage());
         }
-        try {
-            connection = DriverManager.getConnection("jdbc:sqlite:MegaFS.db");
-            statement = connection.createStatement();
-        } catch (SQLException e) {
-            System.out.println("Error opening database connection");
-            System.out.println(e.getMessage());
+        try {
+            connections = new SqliteConnections("jdbc:sqlite:"
+                    + System.getProperty("megafs.db", "MegaFS.db"));
+        } catch (SQLException e) {
+            System.out.println("Error opening database connection");
+            System.out.println(e.getMessage());
+        }
+        createTables();
+        loadAccounts();
+        resumeRemoteDeletes();
+        namespace = new NamespaceIndex(ROOT_DIRECTORY_ID, new NamespaceIndex.Loader() {
+            public void load(NamespaceIndex.Directory listing) {
+                loadDirectory(listing);
+            }
+        });
+    }
+
+    public void close() {
+        compactor.shutdownNow();
+        remoteDeletes.shutdownNow();
+        chunkUploads.shutdownNow();
+        chunkDownloads.shutdownNow();
+        connections.close();
+    }
+
+    private static ITransferBackend createTransferBackend() {
+        String name = System.getProperty("megafs.backend", "megatools");
+        if (name.equals("local")) {
+            return new LocalTransferBackend();
+        } else if (!name.equals("megatools")) {
+            System.out.println("Unknown transfer backend " + name + ", using megatools");
+        }
+        return new MegatoolsTransferBackend();
+    }
+
+    private static IChunker createChunker() {
+        // the average size for content-defined chunks
+        long chunkSize = Long.getLong("megafs.chunk.size", 64L << 20);
+        String name = System.getProperty("megafs.chunker", "fixed");
+        if (name.equals("fastcdc")) {
+            return new FastCdcChunker(chunkSize);
+        }
+        if (!name.equals("fixed")) {
+            System.out.println("Unknown chunker " + name + ", using fixed");
+        }
+        return new FixedSizeChunker(chunkSize);
+    }
+
+    private static IPlacementPolicy createPlacementPolicy() {
+        String name = System.getProperty("megafs.placement", "bestfit");
+        if (name.equals("worstfit")) {
+            return new WorstFitPlacement();
+        } else if (name.equals("lru")) {
+            return new LeastRecentlyUsedPlacement();
+        } else if (name.equals("affinity")) {
+            return new AffinityPlacement();
+        } else if (!name.equals("bestfit")) {
+            System.out.println("Unknown placement policy " + name + ", using bestfit");
+        }
+        return new BestFitPlacement();
+    }
+
+    private void loadAccounts() {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            try (ResultSet resultSet = handle.prepare(
+                    "SELECT username, free_space - reserved AS available FROM accounts").executeQuery()) {
+                while (resultSet.next()) {
+                    accountPool.update(resultSet.getString("username"), resultSet.getLong("available"));
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error loading accounts: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the space an account has left into the pool, after a change to
+     * it was committed. Called holding the writer.
+     */
+    private void refreshAccount(SqliteConnections.Handle handle, String username) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "SELECT free_space - reserved AS available FROM accounts WHERE username = ?");
+        preparedStatement.setString(1, username);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next()) {
+                accountPool.update(username, resultSet.getLong("available"));
+            }
+        }
+    }
+
+    /**
+     * Reads the direct children of one folder with a single query on the
+     * (parent_id, name) keys of both tables.
+     */
+    private void loadDirectory(NamespaceIndex.Directory listing) {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT name, id, NULL AS sha1, 0 AS file_size FROM directories WHERE parent_id = ? "
+                            + "UNION ALL SELECT namespace.name, NULL, namespace.sha1, blobs.file_size FROM namespace "
+                            + "JOIN blobs ON blobs.sha1 = namespace.sha1 WHERE namespace.parent_id = ?");
+            preparedStatement.setLong(1, listing.getId());
+            preparedStatement.setLong(2, listing.getId());
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    String sha1 = resultSet.getString("sha1");
+                    if (sha1 == null) {
+                        listing.addFolder(resultSet.getString("name"), resultSet.getLong("id"));
+                    } else {
+                        listing.addFile(resultSet.getString("name"), sha1, resultSet.getLong("file_size"));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error loading directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the in-memory view of the directories and namespace tables
+     */
+    public NamespaceIndex getNamespace() {
+        return namespace;
+    }
+
+    public boolean createTables() {
+        String createAccounts = "CREATE TABLE IF NOT EXISTS accounts (username varchar(255) PRIMARY KEY, password varchar(255), free_space INTEGER, reserved INTEGER DEFAULT 0)";
+        String createBlobs = "CREATE TABLE IF NOT EXISTS blobs (sha1 varchar(255) PRIMARY KEY, remote_path varchar(255), username varchar(255), file_size INTEGER, refcount INTEGER, pack_id INTEGER, pack_offset INTEGER, chunks INTEGER, stored_size INTEGER, codec varchar(16))";
+        String createBlobChunks = "CREATE TABLE IF NOT EXISTS blob_chunks (sha1 varchar(255), seq INTEGER, chunk_sha1 varchar(255), PRIMARY KEY (sha1, seq))";
+        String createPacks = "CREATE TABLE IF NOT EXISTS packs (id INTEGER PRIMARY KEY, remote_path varchar(255), username varchar(255), size INTEGER, live_size INTEGER)";
+        String createDirectories = "CREATE TABLE IF NOT EXISTS directories (id INTEGER PRIMARY KEY, parent_id INTEGER, name varchar(255), UNIQUE (parent_id, name))";
+        String createRootDirectory = "INSERT OR IGNORE INTO directories VALUES (" + ROOT_DIRECTORY_ID + ", 0, '')";
+        String createNamespace = "CREATE TABLE IF NOT EXISTS namespace (parent_id INTEGER, name varchar(255), sha1 varchar(255), PRIMARY KEY (parent_id, name))";
+        String createNamespaceIndex = "CREATE INDEX IF NOT EXISTS namespace_sha1 ON namespace (sha1)";
+        String createUploadJournal = "CREATE TABLE IF NOT EXISTS upload_journal (local_path varchar(255) PRIMARY KEY, state varchar(16), username varchar(255), updated INTEGER)";
+        String createRemoteDeletes = "CREATE TABLE IF NOT EXISTS remote_deletes (username varchar(255), remote_path varchar(255), size INTEGER, PRIMARY KEY (username, remote_path))";
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.execute(createAccounts);
+            if (!columnExists(handle, "accounts", "reserved")) {
+                handle.execute("ALTER TABLE accounts ADD COLUMN reserved INTEGER DEFAULT 0");
+            }
+            // nothing is uploading yet, reservations left by a crash are void
+            handle.execute("UPDATE accounts SET reserved = 0");
+            handle.execute(createBlobs);
+            if (!columnExists(handle, "blobs", "pack_id")) {
+                handle.execute("ALTER TABLE blobs ADD COLUMN pack_id INTEGER");
+                handle.execute("ALTER TABLE blobs ADD COLUMN pack_offset INTEGER");
+            }
+            handle.execute(createPacks);
+            if (!columnExists(handle, "blobs", "chunks")) {
+                handle.execute("ALTER TABLE blobs ADD COLUMN chunks INTEGER");
+            }
+            if (!columnExists(handle, "blobs", "codec")) {
+                handle.execute("ALTER TABLE blobs ADD COLUMN stored_size INTEGER");
+                handle.execute("ALTER TABLE blobs ADD COLUMN codec varchar(16)");
+            }
+            handle.execute(createBlobChunks);
+            handle.execute(createDirectories);
+            handle.execute(createRootDirectory);
+            if (tableExists(handle, "namespace") && columnExists(handle, "namespace", "path")) {
+                migrateFlatNamespace(handle);
+            }
+            handle.execute(createNamespace);
+            handle.execute(createUploadJournal);
+            handle.execute(createRemoteDeletes);
+            if (tableExists(handle, "filesystem")) {
+                migrateFilesystemTable(handle);
+            }
+            // after the migrations, the old table took its index with it
+            handle.execute(createNamespaceIndex);
+        } catch (SQLException e) {
+            System.out.println("Error creating tables");
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean tableExists(SqliteConnections.Handle handle, String name) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?");
+        preparedStatement.setString(1, name);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+
+    private boolean columnExists(SqliteConnections.Handle handle, String table, String column) throws SQLException {
+        // the result set has to be closed before the table can be altered
+        try (ResultSet resultSet = handle.prepare("PRAGMA table_info(" + table + ")").executeQuery()) {
+            while (resultSet.next()) {
+                if (column.equals(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Moves the rows of the old one-table layout, where every remote file
+     * was stored as /Root/&lt;name&gt;, into blobs and namespace.
+     */
+    private void migrateFilesystemTable(SqliteConnections.Handle handle) throws SQLException {
+        System.out.println("Migrating filesystem table to blobs and namespace");
+        handle.begin();
+        if (!columnExists(handle, "filesystem", "file_size")) {
+            // databases from before sizes were recorded
+            handle.execute("ALTER TABLE filesystem ADD COLUMN file_size INTEGER DEFAULT 0");
+        }
+        handle.execute("INSERT OR IGNORE INTO blobs (sha1, remote_path, username, file_size, refcount) "
+                + "SELECT sha1, remote_path, username, file_size, 1 FROM filesystem");
+        migratePaths(handle, "SELECT substr(remote_path, length('/Root') + 1) AS path, sha1 FROM filesystem");
+        handle.execute("DROP TABLE filesystem");
+        handle.commit();
+    }
+
+    /**
+     * Moves a namespace table keyed by full path into the one keyed by
+     * (parent_id, name), creating the folders on the way.
+     */
+    private void migrateFlatNamespace(SqliteConnections.Handle handle) throws SQLException {
+        System.out.println("Migrating namespace table to directories");
+        handle.begin();
+        handle.execute("ALTER TABLE namespace RENAME TO namespace_flat");
+        handle.execute("CREATE TABLE namespace (parent_id INTEGER, name varchar(255), sha1 varchar(255), PRIMARY KEY (parent_id, name))");
+        migratePaths(handle, "SELECT path, sha1 FROM namespace_flat");
+        handle.execute("DROP TABLE namespace_flat");
+        handle.commit();
+    }
+
+    private void migratePaths(SqliteConnections.Handle handle, String query) throws SQLException {
+        List<String[]> rows = new ArrayList<String[]>();
+        try (ResultSet resultSet = handle.prepare(query).executeQuery()) {
+            while (resultSet.next()) {
+                rows.add(new String[] { resultSet.getString("path"), resultSet.getString("sha1") });
+            }
+        }
+        for (String[] row : rows) {
+            String path = NamespaceIndex.normalize(row[0]);
+            long parentId = ensureDirectory(handle, NamespaceIndex.parentOf(path), null);
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT OR IGNORE INTO namespace VALUES (?, ?, ?)");
+            preparedStatement.setLong(1, parentId);
+            preparedStatement.setString(2, NamespaceIndex.nameOf(path));
+            preparedStatement.setString(3, row[1]);
+            preparedStatement.execute();
+        }
+    }
+
+    /**
+     * Looks up the folder at <code>path</code>, creating it and any missing
+     * parents like mkdir -p. Runs inside the caller's transaction.
+     *
+     * @param created
+     *      collects the path and id of every folder created, may be null
+     * @return the id of the folder
+     */
+    private long ensureDirectory(SqliteConnections.Handle handle, String path, Map<String, Long> created) throws SQLException {
+        long id = ROOT_DIRECTORY_ID;
+        String current = "";
+        for (String name : NamespaceIndex.normalize(path).split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            current = current + "/" + name;
+            Long existing = getDirectoryId(handle, id, name);
+            if (existing != null) {
+                id = existing;
+                continue;
+            }
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT INTO directories (parent_id, name) VALUES (?, ?)");
+            preparedStatement.setLong(1, id);
+            preparedStatement.setString(2, name);
+            preparedStatement.execute();
+            try (ResultSet resultSet = handle.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                resultSet.next();
+                id = resultSet.getLong(1);
+            }
+            if (created != null) {
+                created.put(current, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the folder at <code>path</code> or null if there is
+     *  no such folder
+     */
+    private Long findDirectory(SqliteConnections.Handle handle, String path) throws SQLException {
+        long id = ROOT_DIRECTORY_ID;
+        for (String name : NamespaceIndex.normalize(path).split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            Long child = getDirectoryId(handle, id, name);
+            if (child == null) {
+                return null;
+            }
+            id = child;
+        }
+        return id;
+    }
+
+    private Long getDirectoryId(SqliteConnections.Handle handle, long parentId, String name) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "SELECT id FROM directories WHERE parent_id = ? AND name = ?");
+        preparedStatement.setLong(1, parentId);
+        preparedStatement.setString(2, name);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next() == false) {
+                return null;
+            }
+            return resultSet.getLong("id");
+        }
+    }
+
+    /**
+     * Creates the folder at <code>uri</code> and any missing parents.
+     */
+    public boolean createDirectory(String uri) {
+        Map<String, Long> created = new LinkedHashMap<String, Long>();
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            ensureDirectory(handle, uri, created);
+            handle.commit();
+            putFolders(created);
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error creating directory " + uri + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Removes the folder at <code>uri</code> if it is empty. The folder is
+     * left on MEGA, an empty remote folder costs nothing.
+     *
+     * @return false if the folder still has children or the removal failed
+     */
+    public boolean removeDirectory(String uri) {
+        uri = NamespaceIndex.normalize(uri);
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            // nothing may be linked into the folder between check and delete
+            handle.begin();
+            Long id = findDirectory(handle, uri);
+            if (id == null) {
+                return true;
+            }
+            if (id == ROOT_DIRECTORY_ID) {
+                return false;
+            }
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT 1 FROM directories WHERE parent_id = ? UNION ALL SELECT 1 FROM namespace WHERE parent_id = ? LIMIT 1");
+            preparedStatement.setLong(1, id);
+            preparedStatement.setLong(2, id);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    System.out.println("Directory " + uri + " is not empty");
+                    return false;
+                }
+            }
+            preparedStatement = handle.prepare(
+                    "DELETE FROM directories WHERE id = ?");
+            preparedStatement.setLong(1, id);
+            preparedStatement.execute();
+            handle.commit();
+            namespace.removeFolder(uri);
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error removing directory " + uri + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void putFolders(Map<String, Long> created) {
+        for (Map.Entry<String, Long> folder : created.entrySet()) {
+            namespace.putFolder(folder.getKey(), folder.getValue());
+        }
+    }
+
+    /**
+     * Uploads a local file and links it into the namespace at
+     * <code>uri</code>. Content that is already on MEGA is only linked.
+     *
+     * @param localPath
+     *      the local copy, which the upload journal knows the upload by
+     * @param content
+     *      the file read for the upload, a link to the local copy that
+     *      keeps its content while a newer one is written
+     * @param sha1
+     *      hash of the content if the caller computed it already, otherwise
+     *      it is read from the file
+     */
+    public boolean upload(String localPath, File content, String uri, String sha1) {
+        if (localPath == null || localPath.isEmpty() || !content.exists()) {
+            System.out.println("File name can't be empty or file doesn't exist");
+            removeFromJournal(localPath);
+            return false;
+        }
+        if (sha1 == null) {
+            sha1 = calcSHA1(content.getPath());
+        }
+
+        if (isDuplicateHash(sha1)) {
+            System.out.println("File " + localPath + " already exists in database");
+            boolean linked = linkPath(uri, sha1);
+            updateJournal(localPath, linked ? JOURNAL_DONE : JOURNAL_PENDING, null);
+            return linked;
+        }
+        long fileSize = content.length();
+        if (CHUNK_THRESHOLD > 0 && fileSize >= CHUNK_THRESHOLD) {
+            return uploadChunked(localPath, content, uri, sha1, fileSize);
+        }
+        if (Packer.accepts(fileSize)) {
+            return uploadPacked(localPath, content, uri);
+        }
+        // an upload interrupted by a restart goes back to the same account,
+        // where it may already have finished
+        String interruptedOn = getJournalledUsername(localPath, JOURNAL_IN_FLIGHT);
+        String username = interruptedOn != null ? reserveSpaceOn(interruptedOn, fileSize) : reserveSpace(fileSize, uri);
+        if (username == null) {
+            System.out.println("No account has room for " + localPath);
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        boolean committed = false;
+        try {
+            committed = upload(localPath, content, uri, sha1, fileSize, username, interruptedOn != null);
+            return committed;
+        } finally {
+            if (!committed) {
+                releaseSpace(username, fileSize);
+            }
+        }
+    }
+
+    /**
+     * Puts a file on the account <code>username</code>, where
+     * <code>fileSize</code> bytes have been reserved for it.
+     *
+     * @return true if the file got linked, the reservation is used up or
+     *  given back then
+     */
+    private boolean upload(String localPath, File content, String uri, String sha1, long fileSize,
+                           String username, boolean interrupted) {
+        ITransferBackend.Credentials account = getCredentials(username);
+        String remotePath = getFreeRemotePath(uri, sha1);
+        updateJournal(localPath, JOURNAL_IN_FLIGHT, username);
+        // the space reserved for the file itself also fits a compressed copy
+        File compressed = compress(content, NamespaceIndex.nameOf(remotePath));
+        long storedSize = compressed != null ? compressed.length() : fileSize;
+        try {
+            putReserved(account, compressed != null ? compressed : content, remotePath);
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("File already exists at remote Path: " + remotePath);
+            if (!interrupted) {
+                // not ours; the content may have been stored meanwhile by
+                // another upload, otherwise it is tried again later
+                if (isDuplicateHash(sha1) && linkPath(uri, sha1)) {
+                    releaseSpace(username, fileSize);
+                    updateJournal(localPath, JOURNAL_DONE, null);
+                    return true;
+                }
+                updateJournal(localPath, JOURNAL_PENDING, null);
+                return false;
+            }
+            System.out.println("Adopting interrupted upload of " + localPath);
+        } catch (IOException e) {
+            System.out.println("Upload of " + localPath + " failed: " + e.getMessage());
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        } finally {
+            if (compressed != null) {
+                BlobCompressor.delete(compressed);
+            }
+        }
+        if (!commitUpload(sha1, remotePath, username, fileSize, storedSize,
+                compressed != null ? BlobCompressor.DEFLATE : null)) {
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        linkPath(uri, sha1);
+        updateJournal(localPath, JOURNAL_DONE, null);
+        return true;
+    }
+
+    /**
+     * @return a compressed copy of the file, or null to upload it as it is
+     */
+    private File compress(File file, String name) {
+        try {
+            return compressor.compress(file, name);
+        } catch (IOException e) {
+            System.out.println("Compressing " + file + " failed, uploading it as it is: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates a remote folder and its parents, unless they are known to exist
+     * already.
+     */
+    private boolean ensureRemoteFolder(ITransferBackend.Credentials account, String remoteFolder) {
+        String current = "";
+        for (String name : remoteFolder.split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            current = current + "/" + name;
+            String key = account.getUsername() + ":" + current;
+            if (current.equals("/Root") || remoteFolders.contains(key)) {
+                continue;
+            }
+            try {
+                backend.mkdir(account, current);
+            } catch (IOException e) {
+                System.out.println("Creating remote folder " + current + " failed: " + e.getMessage());
+                return false;
+            }
+            remoteFolders.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Uploads a file to an account that space was reserved on, creating the
+     * remote folder first. Reserving claimed a transfer slot of the account,
+     * which the upload takes, maybe together with other uploads to the
+     * folder; if it doesn't get that far the claim is withdrawn.
+     */
+    private void putReserved(ITransferBackend.Credentials account, File file, String remotePath)
+            throws IOException {
+        boolean claimed = true;
+        try {
+            String remoteFolder = NamespaceIndex.parentOf(remotePath);
+            if (!ensureRemoteFolder(account, remoteFolder)) {
+                throw new IOException("cannot create remote folder " + remoteFolder);
+            }
+            claimed = false;
+            backend.put(account, file, remotePath);
+        } finally {
+            if (claimed) {
+                accountPool.unclaim(account.getUsername(), 1);
+            }
+        }
+    }
+
+    /**
+     * Splits a large file into chunks and uploads them in parallel, each to
+     * the account the placement policy picks for it, then records the list
+     * of chunks. Chunks stored already aren't uploaded again.
+     */
+    private boolean uploadChunked(final String localPath, final File content, String uri, String sha1,
+                                  long fileSize) {
+        List<Long> lengths;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(content))) {
+            lengths = chunker.split(in, fileSize);
+        } catch (IOException e) {
+            System.out.println("Splitting " + localPath + " failed: " + e.getMessage());
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        // no account, chunks interrupted by a restart are uploaded anew
+        updateJournal(localPath, JOURNAL_IN_FLIGHT, null);
+        List<Future<String>> uploads = new ArrayList<Future<String>>();
+        long offset = 0;
+        for (final long length : lengths) {
+            final long chunkOffset = offset;
+            uploads.add(chunkUploads.submit(new Callable<String>() {
+                public String call() {
+                    return uploadChunk(content, chunkOffset, length);
+                }
+            }));
+            offset += length;
+        }
+        List<String> chunks = new ArrayList<String>();
+        boolean uploaded = true;
+        for (Future<String> upload : uploads) {
+            try {
+                String chunk = upload.get();
+                uploaded &= chunk != null;
+                chunks.add(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                uploaded = false;
+            } catch (ExecutionException e) {
+                System.out.println("Chunk upload of " + localPath + " failed: " + e.getCause());
+                uploaded = false;
+            }
+        }
+        boolean committed = uploaded && commitChunked(sha1, fileSize, chunks);
+        // chunks that didn't get referenced are deleted again
+        for (String chunk : new LinkedHashSet<String>(chunks)) {
+            if (chunk != null) {
+                removeBlob(chunk);
+            }
+        }
+        if (!committed) {
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        linkPath(uri, sha1);
+        updateJournal(localPath, JOURNAL_DONE, null);
+        return true;
+    }
+
+    /**
+     * Copies a chunk of a local file aside, hashing it, and uploads it as a
+     * blob unless one with the same content exists.
+     *
+     * @return the hash of the chunk or null if it couldn't be stored
+     */
+    private String uploadChunk(File content, long offset, long length) {
+        File chunkFile = new File(chunkDirectory, UUID.randomUUID() + ".chunk");
+        try {
+            String chunk = copyRange(content, offset, length, chunkFile);
+            // a chunk in several files being uploaded is only put once
+            CompletableFuture<Boolean> put = new CompletableFuture<Boolean>();
+            CompletableFuture<Boolean> running = chunkPuts.putIfAbsent(chunk, put);
+            if (running != null) {
+                return running.join() ? chunk : null;
+            }
+            boolean stored = false;
+            try {
+                stored = putChunk(chunk, chunkFile, length);
+            } finally {
+                chunkPuts.remove(chunk, put);
+                put.complete(stored);
+            }
+            return stored ? chunk : null;
+        } catch (IOException e) {
+            System.out.println("Chunk upload of " + content + " failed: " + e.getMessage());
+            return null;
+        } finally {
+            chunkFile.delete();
+        }
+    }
+
+    private boolean putChunk(String chunk, File chunkFile, long length) throws IOException {
+        if (isDuplicateHash(chunk)) {
+            return true;
+        }
+        // a chunk deleted lately may not be gone yet
+        String remotePath = getFreeRemotePath(CHUNK_FOLDER, chunk, chunk);
+        String username = reserveSpace(length, remotePath);
+        if (username == null) {
+            System.out.println("No account has room for chunk " + chunk);
+            return false;
+        }
+        boolean committed = false;
+        File compressed = null;
+        try {
+            ITransferBackend.Credentials account = getCredentials(username);
+            compressed = compress(chunkFile, chunk);
+            try {
+                putReserved(account, compressed != null ? compressed : chunkFile, remotePath);
+            } catch (FileAlreadyExistsException e) {
+                // named by its hash, so it is this very content
+                System.out.println("Adopting chunk already at " + remotePath);
+            }
+            committed = commitUpload(chunk, remotePath, username, length,
+                    compressed != null ? compressed.length() : length,
+                    compressed != null ? BlobCompressor.DEFLATE : null);
+            return committed;
+        } finally {
+            if (compressed != null) {
+                BlobCompressor.delete(compressed);
+            }
+            if (!committed) {
+                releaseSpace(username, length);
+            }
+        }
+    }
+
+    /**
+     * @return the hash of the bytes copied
+     */
+    private static String copyRange(File localFile, long offset, long length, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(localFile);
+             java.io.OutputStream out = new java.io.FileOutputStream(target)) {
+            long skipped = in.skip(offset);
+            if (skipped != offset) {
+                throw new IOException(localFile + " is shorter than expected");
+            }
+            byte[] buffer = new byte[65536];
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+            if (remaining > 0) {
+                throw new IOException(localFile + " is shorter than expected");
+            }
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * Records a chunked file: its blob and the list of its chunks, each of
+     * which gets a reference. Fails if a chunk disappeared meanwhile.
+     */
+    private synchronized boolean commitChunked(String sha1, long fileSize, List<String> chunks) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            for (String chunk : chunks) {
+                PreparedStatement preparedStatement = handle.prepare(
+                        "SELECT sha1 FROM blobs WHERE sha1 = ?");
+                preparedStatement.setString(1, chunk);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next() == false) {
+                        System.out.println("Chunk " + chunk + " of " + sha1 + " is gone");
+                        return false;
+                    }
+                }
+            }
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT OR IGNORE INTO blobs (sha1, file_size, refcount, chunks) VALUES (?, ?, 0, ?)");
+            preparedStatement.setString(1, sha1);
+            preparedStatement.setLong(2, fileSize);
+            preparedStatement.setInt(3, chunks.size());
+            if (preparedStatement.executeUpdate() == 1) {
+                for (int seq = 0; seq < chunks.size(); seq++) {
+                    preparedStatement = handle.prepare(
+                            "INSERT INTO blob_chunks VALUES (?, ?, ?)");
+                    preparedStatement.setString(1, sha1);
+                    preparedStatement.setInt(2, seq);
+                    preparedStatement.setString(3, chunks.get(seq));
+                    preparedStatement.execute();
+                    preparedStatement = handle.prepare(
+                            "UPDATE blobs SET refcount = refcount + 1 WHERE sha1 = ?");
+                    preparedStatement.setString(1, chunks.get(seq));
+                    preparedStatement.execute();
+                }
+            }
+            handle.commit();
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error recording chunks of " + sha1 + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private List<String> getChunks(String sha1) {
+        List<String> chunks = new ArrayList<String>();
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT chunk_sha1 FROM blob_chunks WHERE sha1 = ? ORDER BY seq");
+            preparedStatement.setString(1, sha1);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    chunks.add(resultSet.getString("chunk_sha1"));
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error getting chunks: " + e.getMessage());
+        }
+        return chunks;
+    }
+
+    /**
+     * Adds a small file to a pack instead of uploading it on its own. The
+     * first member of a pack uploads it once the pack is sealed, the others
+     * wait for that and then link their paths.
+     */
+    private boolean uploadPacked(String localPath, File content, String uri) {
+        Packer.Member member;
+        try {
+            member = packer.add(content);
+        } catch (IOException e) {
+            System.out.println("Packing " + localPath + " failed: " + e.getMessage());
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        // no account yet, a pack interrupted by a restart is assembled anew
+        updateJournal(localPath, JOURNAL_IN_FLIGHT, null);
+        Packer.Pack pack = member.getPack();
+        if (member.isFirst()) {
+            boolean uploaded = false;
+            try {
+                packer.seal(pack);
+                uploaded = uploadPack(pack, 0) != 0;
+            } catch (IOException e) {
+                System.out.println("Sealing " + pack.getFile() + " failed: " + e.getMessage());
+                pack.getFile().delete();
+            } finally {
+                pack.complete(uploaded);
+            }
+        }
+        if (!pack.await()) {
+            updateJournal(localPath, JOURNAL_PENDING, null);
+            return false;
+        }
+        linkPath(uri, member.getSha1());
+        updateJournal(localPath, JOURNAL_DONE, null);
+        return true;
+    }
+
+    /**
+     * Uploads a sealed pack to an account with room for it and records it,
+     * then keeps the local file in the pack cache.
+     *
+     * @param replacing
+     *      the pack whose members this one takes over when compacting, 0
+     *      for a pack of new files
+     * @return the id of the pack or 0 if it couldn't be uploaded
+     */
+    private long uploadPack(Packer.Pack pack, long replacing) {
+        String remotePath = PACK_FOLDER + "/" + pack.getFile().getName();
+        long size = pack.getSize();
+        String username = reserveSpace(size, remotePath);
+        if (username == null) {
+            System.out.println("No account has room for " + remotePath);
+            pack.getFile().delete();
+            return 0;
+        }
+        long packId = 0;
+        try {
+            putReserved(getCredentials(username), pack.getFile(), remotePath);
+            packId = commitPack(pack, remotePath, username, replacing);
+        } catch (IOException e) {
+            System.out.println("Upload of " + remotePath + " failed: " + e.getMessage());
+        } finally {
+            if (packId == 0) {
+                releaseSpace(username, size);
+                pack.getFile().delete();
+            }
+        }
+        if (packId != 0) {
+            packCache.adopt(packId, pack.getFile());
+        }
+        return packId;
+    }
+
+    /**
+     * Records an uploaded pack and where its members are, and turns the
+     * reservation into used space, in one transaction. Members whose content
+     * is stored already take up dead space in the pack.
+     *
+     * @return the id of the pack or 0 if it couldn't be recorded
+     */
+    private synchronized long commitPack(Packer.Pack pack, String remotePath, String username, long replacing) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT INTO packs (remote_path, username, size, live_size) VALUES (?, ?, ?, 0)");
+            preparedStatement.setString(1, remotePath);
+            preparedStatement.setString(2, username);
+            preparedStatement.setLong(3, pack.getSize());
+            preparedStatement.execute();
+            long packId;
+            try (ResultSet resultSet = handle.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                resultSet.next();
+                packId = resultSet.getLong(1);
+            }
+            for (Packer.Member member : pack.getMembers()) {
+                if (replacing == 0) {
+                    preparedStatement = handle.prepare(
+                            "INSERT OR IGNORE INTO blobs (sha1, file_size, refcount, pack_id, pack_offset) VALUES (?, ?, 0, ?, ?)");
+                    preparedStatement.setString(1, member.getSha1());
+                    preparedStatement.setLong(2, member.getLength());
+                    preparedStatement.setLong(3, packId);
+                    preparedStatement.setLong(4, member.getOffset());
+                } else {
+                    // members removed while compacting stay behind
+                    preparedStatement = handle.prepare(
+                            "UPDATE blobs SET pack_id = ?, pack_offset = ? WHERE sha1 = ? AND pack_id = ?");
+                    preparedStatement.setLong(1, packId);
+                    preparedStatement.setLong(2, member.getOffset());
+                    preparedStatement.setString(3, member.getSha1());
+                    preparedStatement.setLong(4, replacing);
+                }
+                preparedStatement.execute();
+            }
+            for (long id : new long[] { packId, replacing }) {
+                preparedStatement = handle.prepare(
+                        "UPDATE packs SET live_size = (SELECT coalesce(sum(file_size), 0) FROM blobs WHERE pack_id = ?) WHERE id = ?");
+                preparedStatement.setLong(1, id);
+                preparedStatement.setLong(2, id);
+                preparedStatement.execute();
+            }
+            preparedStatement = handle.prepare(
+                    "UPDATE accounts SET free_space = free_space - ?, reserved = max(reserved - ?, 0) WHERE username = ?");
+            preparedStatement.setLong(1, pack.getSize());
+            preparedStatement.setLong(2, pack.getSize());
+            preparedStatement.setString(3, username);
+            preparedStatement.execute();
+            handle.commit();
+            refreshAccount(handle, username);
+            return packId;
+        } catch (SQLException e) {
+            System.out.println("Error recording pack " + remotePath + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Records that a local file is waiting to be uploaded. Once this returns
+     * the upload will be retried after a restart until it succeeds.
+     */
+    public boolean journalUpload(String localPath) {
+        return updateJournal(localPath, JOURNAL_PENDING, null);
+    }
+
+    /**
+     * Returns the local paths of all uploads that were queued or running when
+     * the journal was last written, oldest first, and forgets the completed
+     * ones.
+     */
+    public List<String> getUnfinishedUploads() {
+        List<String> localPaths = new ArrayList<>();
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM upload_journal WHERE state = ?");
+            preparedStatement.setString(1, JOURNAL_DONE);
+            preparedStatement.execute();
+            preparedStatement = handle.prepare(
+                    "SELECT local_path FROM upload_journal ORDER BY updated");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    localPaths.add(resultSet.getString("local_path"));
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error reading upload journal: " + e.getMessage());
+        }
+        return localPaths;
+    }
+
+    public boolean removeFromJournal(String localPath) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM upload_journal WHERE local_path = ?");
+            preparedStatement.setString(1, localPath);
+            preparedStatement.execute();
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error removing upload from journal: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean updateJournal(String localPath, String state, String username) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT OR REPLACE INTO upload_journal VALUES (?, ?, ?, ?)");
+            preparedStatement.setString(1, localPath);
+            preparedStatement.setString(2, state);
+            preparedStatement.setString(3, username);
+            preparedStatement.setLong(4, System.currentTimeMillis());
+            preparedStatement.execute();
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error updating upload journal: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private String getJournalledUsername(String localPath, String state) {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT username FROM upload_journal WHERE local_path = ? AND state = ?");
+            preparedStatement.setString(1, localPath);
+            preparedStatement.setString(2, state);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next() == false) {
+                    return null;
+                }
+                return resultSet.getString("username");
+            }
+        } catch (SQLException e) {
+            System.out.println("Error reading upload journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts streaming a remote file. The content arrives on the returned
+     * stream while megatools is still downloading it; reaching the end of the
+     * stream fails with an IOException if megatools didn't exit cleanly.
+     */
+    public InputStream openDownload(String uri) throws IOException {
+        Blob blob = getBlobWherePath(uri);
+        if (blob == null) {
+            throw new IOException("No remote file for " + uri);
+        }
+        return openBlob(blob);
+    }
+
+    private InputStream openBlob(Blob blob) throws IOException {
+        if (blob.chunks > 0) {
+            final List<String> chunks = getChunks(blob.sha1);
+            if (chunks.size() != blob.chunks) {
+                throw new IOException("Chunks of " + blob.sha1 + " are missing");
+            }
+            // nothing is fetched until the first read
+            return new ChunkedInputStream(new ChunkedInputStream.Source() {
+                public InputStream open(int index) throws IOException {
+                    Blob chunk = getBlob(chunks.get(index));
+                    if (chunk == null) {
+                        throw new IOException("Chunk " + chunks.get(index) + " is missing");
+                    }
+                    return openBlob(chunk);
+                }
+            }, chunks.size(), CHUNK_PARALLEL, chunkDirectory, chunkDownloads);
         }
-        createTables();
+        if (blob.packId != 0) {
+            RemotePack pack = getRemotePack(blob.packId);
+            if (pack == null) {
+                throw new IOException("No remote pack for " + blob.sha1);
+            }
+            // the whole pack is fetched, the other members are likely next
+            return packCache.open(pack.id, getCredentials(pack.username),
+                    pack.remotePath, blob.packOffset, blob.fileSize);
+        }
+        return BlobCompressor.decompress(blob.codec,
+                backend.get(getCredentials(blob.username), blob.remotePath));
     }
 
-    public boolean createTables() {
-        String createAccounts = "CREATE TABLE IF NOT EXISTS accounts (username varchar(255) PRIMARY KEY, password varchar(255), free_space INTEGER)";
-        String createFilesystem = "CREATE TABLE IF NOT EXISTS filesystem (sha1 varchar(255) PRIMARY KEY, remote_path varchar(255), username varchar(255), file_size INTEGER)";
-        try {
-            statement.execute(createAccounts);
-            statement.execute(createFilesystem);
-        } catch (SQLException e) {
-            System.out.println("Error creating tables");
-            System.out.println(e.getMessage());
-            return false;
+    /**
+     * Unlinks <code>uri</code> from the namespace. The remote file is only
+     * deleted when no other path refers to the same content.
+     */
+    public void remove(String uri) {
+        System.out.println("Removing " + uri);
+        String orphan = unlinkPath(uri);
+        if (orphan != null) {
+            removeBlob(orphan);
+        }
+    }
+
+    /**
+     * Points <code>uri</code> at the blob with the given hash, releasing the
+     * blob it pointed to before.
+     */
+    public boolean linkPath(String uri, String sha1) {
+        uri = NamespaceIndex.normalize(uri);
+        String orphan = null;
+        synchronized (this) {
+            Map<String, Long> created = new LinkedHashMap<String, Long>();
+            try (SqliteConnections.Handle handle = connections.writer()) {
+                handle.begin();
+                long parentId = ensureDirectory(handle, NamespaceIndex.parentOf(uri), created);
+                String name = NamespaceIndex.nameOf(uri);
+                String previous = getSha1WherePath(handle, parentId, name);
+                if (!sha1.equals(previous)) {
+                    PreparedStatement preparedStatement = handle.prepare(
+                            "INSERT OR REPLACE INTO namespace VALUES (?, ?, ?)");
+                    preparedStatement.setLong(1, parentId);
+                    preparedStatement.setString(2, name);
+                    preparedStatement.setString(3, sha1);
+                    preparedStatement.execute();
+                    preparedStatement = handle.prepare(
+                            "UPDATE blobs SET refcount = refcount + 1 WHERE sha1 = ?");
+                    preparedStatement.setString(1, sha1);
+                    preparedStatement.execute();
+                    if (previous != null) {
+                        orphan = dereference(handle, previous);
+                    }
+                }
+                handle.commit();
+                // still holding the writer, so the index sees commits in order
+                putFolders(created);
+                Blob blob = getBlob(sha1);
+                namespace.putFile(uri, sha1, blob == null ? 0 : blob.fileSize);
+            } catch (SQLException e) {
+                System.out.println("Error linking " + uri + " to " + sha1 + ": " + e.getMessage());
+                return false;
+            }
+        }
+        if (orphan != null) {
+            removeBlob(orphan);
         }
         return true;
     }
 
-    public void upload(String localPath) {
-        File fileHandle = new File(localPath);
-        if (localPath == null || localPath.isEmpty() || !fileHandle.exists()) {
-            System.out.println("File name can't be empty or file doesn't exist");
-            return;
+    /**
+     * @return the hash of the blob that lost its last reference, if any
+     */
+    private synchronized String unlinkPath(String uri) {
+        uri = NamespaceIndex.normalize(uri);
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            Long parentId = findDirectory(handle, NamespaceIndex.parentOf(uri));
+            String name = NamespaceIndex.nameOf(uri);
+            String previous = parentId == null ? null : getSha1WherePath(handle, parentId, name);
+            String orphan = null;
+            if (previous != null) {
+                PreparedStatement preparedStatement = handle.prepare(
+                        "DELETE FROM namespace WHERE parent_id = ? AND name = ?");
+                preparedStatement.setLong(1, parentId);
+                preparedStatement.setString(2, name);
+                preparedStatement.execute();
+                orphan = dereference(handle, previous);
+            }
+            handle.commit();
+            namespace.removeFile(uri);
+            return orphan;
+        } catch (SQLException e) {
+            System.out.println("Error unlinking " + uri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String dereference(SqliteConnections.Handle handle, String sha1) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "UPDATE blobs SET refcount = refcount - 1 WHERE sha1 = ?");
+        preparedStatement.setString(1, sha1);
+        preparedStatement.execute();
+        preparedStatement = handle.prepare(
+                "SELECT refcount FROM blobs WHERE sha1 = ?");
+        preparedStatement.setString(1, sha1);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next() && resultSet.getLong("refcount") <= 0) {
+                return sha1;
+            }
+            return null;
         }
-        long fileSize = checkFileSize(localPath);
-        String username = getAccountWithFreeSpace(fileSize);
-        String password = getPasswordWhereUsername(username);
-        Process process;
-        String sha1 = calcSHA1(localPath);
+    }
 
-        if (isDuplicateHash(sha1)) {
-            System.out.println("File " + localPath + " already exists in database");
+    /**
+     * Drops an unreferenced blob and queues the deletion of its remote file,
+     * which gives the space back to the account once done. Does nothing if
+     * the blob got a new reference meanwhile.
+     */
+    private synchronized void removeBlob(String sha1) {
+        Blob blob = getBlob(sha1);
+        if (blob == null || blob.refcount > 0) {
             return;
         }
-        try {
-            List<String> cmdList = new ArrayList<String>();
-            System.out.println("Uploading: " + localPath);
-            cmdList.add(megatoolsBinary);
-            cmdList.add("put");
-            cmdList.add("--username=" + username);
-            cmdList.add("--password=" + password);
-            cmdList.add(localPath);
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command(cmdList);
-            processBuilder.inheritIO();
-            processBuilder.redirectErrorStream(true);
-            process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            String lastLine = "";
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                lastLine = line;
-            }
-            if (lastLine.contains("File already exists")) {
-                String remotePath = lastLine.substring(lastLine.lastIndexOf(" ") + 1);
-                System.out.println("File already exists at remote Path: " + remotePath);
-                return;
-            } else if (lastLine.contains("Upload failed for")) {
-                System.out.println(lastLine);
+        if (blob.packId != 0) {
+            removePackedBlob(blob);
+            return;
+        }
+        if (blob.chunks > 0) {
+            removeChunkedBlob(blob);
+            return;
+        }
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM blobs WHERE sha1 = ? AND refcount <= 0");
+            preparedStatement.setString(1, sha1);
+            if (preparedStatement.executeUpdate() == 0) {
                 return;
             }
+            queueRemoteDelete(handle, blob.username, blob.remotePath, blob.storedSize);
+            handle.commit();
+        } catch (SQLException e) {
+            System.out.println("Error removing blob " + sha1 + ": " + e.getMessage());
+            return;
+        }
+        scheduleRemoteDelete(blob.username, blob.remotePath, blob.storedSize);
+    }
+
+    /**
+     * Records a remote file to be deleted, in the transaction that stopped
+     * referring to it. Until the deletion is done the file keeps accounting
+     * for its space and its path isn't handed out again.
+     */
+    private void queueRemoteDelete(SqliteConnections.Handle handle, String username,
+                                   String remotePath, long size) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "INSERT OR REPLACE INTO remote_deletes VALUES (?, ?, ?)");
+        preparedStatement.setString(1, username);
+        preparedStatement.setString(2, remotePath);
+        preparedStatement.setLong(3, size);
+        preparedStatement.execute();
+    }
+
+    /**
+     * Deletes a queued remote file on the delete thread, so no lock is held
+     * while megatools runs.
+     */
+    private void scheduleRemoteDelete(final String username, final String remotePath, final long size) {
+        remoteDeletes.execute(new Runnable() {
+            public void run() {
+                deleteRemote(username, remotePath, size);
+            }
+        });
+    }
+
+    /**
+     * Retries the remote deletions that failed or were cut short by a stop.
+     */
+    private void resumeRemoteDeletes() {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            try (ResultSet resultSet = handle.prepare(
+                    "SELECT * FROM remote_deletes").executeQuery()) {
+                while (resultSet.next()) {
+                    scheduleRemoteDelete(resultSet.getString("username"),
+                            resultSet.getString("remote_path"), resultSet.getLong("size"));
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error reading remote deletes: " + e.getMessage());
+        }
+    }
+
+    private void deleteRemote(String username, String remotePath, long size) {
+        try {
+            backend.rm(getCredentials(username), remotePath);
+        } catch (NoSuchFileException e) {
+            // deleted before a stop, only the bookkeeping is left
         } catch (IOException e) {
-            System.out.println("Process couldn't start while uploading: " + e.getMessage());
+            // stays queued, it still accounts for the space
+            System.out.println("Removing " + remotePath + " failed, retrying after a restart: " + e.getMessage());
             return;
-        } catch (InterruptedException e) {
-            System.out.println("Process got interrupted while uploading: " + e.getMessage());
+        }
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM remote_deletes WHERE username = ? AND remote_path = ?");
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, remotePath);
+            preparedStatement.execute();
+            preparedStatement = handle.prepare(
+                    "UPDATE accounts SET free_space = free_space + ? WHERE username = ?");
+            preparedStatement.setLong(1, size);
+            preparedStatement.setString(2, username);
+            preparedStatement.execute();
+            handle.commit();
+            refreshAccount(handle, username);
+        } catch (SQLException e) {
+            System.out.println("Error recording removal of " + remotePath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops an unreferenced chunked blob and its list of chunks, then removes
+     * the chunks no other file refers to. Called holding the Database lock.
+     */
+    private void removeChunkedBlob(Blob blob) {
+        Set<String> orphans = new LinkedHashSet<String>();
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM blobs WHERE sha1 = ? AND refcount <= 0");
+            preparedStatement.setString(1, blob.sha1);
+            if (preparedStatement.executeUpdate() == 0) {
+                return;
+            }
+            List<String> chunks = new ArrayList<String>();
+            preparedStatement = handle.prepare(
+                    "SELECT chunk_sha1 FROM blob_chunks WHERE sha1 = ?");
+            preparedStatement.setString(1, blob.sha1);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    chunks.add(resultSet.getString("chunk_sha1"));
+                }
+            }
+            preparedStatement = handle.prepare(
+                    "DELETE FROM blob_chunks WHERE sha1 = ?");
+            preparedStatement.setString(1, blob.sha1);
+            preparedStatement.execute();
+            for (String chunk : chunks) {
+                String orphan = dereference(handle, chunk);
+                if (orphan != null) {
+                    orphans.add(orphan);
+                }
+            }
+            handle.commit();
+        } catch (SQLException e) {
+            System.out.println("Error removing chunked blob " + blob.sha1 + ": " + e.getMessage());
             return;
         }
-        insertNewFile(sha1, localPath, username, fileSize);
-        updateDifferenceOfFreeSpaceForAccount(username, fileSize);
+        for (String orphan : orphans) {
+            removeBlob(orphan);
+        }
     }
 
-    public void download(String remotePath, String localPath) {
-        String username = getUsernameWherePath(remotePath);
-        String password = getPasswordWhereUsername(username);
-        Process process;
-        System.out.println("Downloading " + remotePath + " to: " + localPath);
-        try {
-            List<String> cmdList = new ArrayList<String>();
-            cmdList.add(megatoolsBinary);
-            cmdList.add("get");
-            cmdList.add("--username=" + username);
-            cmdList.add("--password=" + password);
-            cmdList.add(remotePath);
-            cmdList.add("--path=" + localPath);
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command(cmdList);
-            processBuilder.inheritIO();
-            processBuilder.redirectErrorStream(true);
-            process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            String lastLine = "";
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                lastLine = line;
-            }
-            if (lastLine.contains("Local file already exists")) {
-                System.out.println(lastLine);
+    /**
+     * Drops an unreferenced blob from its pack. The pack is deleted once none
+     * of its members are left, and compacted once less than
+     * megafs.pack.compactBelow of it is live. Called holding the Database
+     * lock.
+     */
+    private void removePackedBlob(Blob blob) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM blobs WHERE sha1 = ? AND refcount <= 0");
+            preparedStatement.setString(1, blob.sha1);
+            if (preparedStatement.executeUpdate() == 0) {
                 return;
             }
-        } catch (IOException e) {
-            System.out.println("Process couldn't start" + e.getMessage());
-        } catch (InterruptedException e) {
-            System.out.println("Process got interrupted" + e.getMessage());
+            preparedStatement = handle.prepare(
+                    "UPDATE packs SET live_size = live_size - ? WHERE id = ?");
+            preparedStatement.setLong(1, blob.fileSize);
+            preparedStatement.setLong(2, blob.packId);
+            preparedStatement.execute();
+            handle.commit();
+        } catch (SQLException e) {
+            System.out.println("Error removing packed blob " + blob.sha1 + ": " + e.getMessage());
+            return;
+        }
+        RemotePack pack = getRemotePack(blob.packId);
+        if (pack == null) {
+            return;
+        }
+        if (pack.liveSize <= 0) {
+            removePack(pack);
+        } else if (pack.liveSize < pack.size * Packer.getCompactBelow()) {
+            scheduleCompaction(pack.id);
+        }
+    }
+
+    /**
+     * Drops a pack without members and queues the deletion of its remote
+     * file. Called holding the Database lock.
+     */
+    private void removePack(RemotePack pack) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "DELETE FROM packs WHERE id = ?");
+            preparedStatement.setLong(1, pack.id);
+            preparedStatement.execute();
+            queueRemoteDelete(handle, pack.username, pack.remotePath, pack.size);
+            handle.commit();
+        } catch (SQLException e) {
+            System.out.println("Error deleting pack from database " + e.getMessage());
+            return;
         }
+        packCache.evict(pack.id);
+        scheduleRemoteDelete(pack.username, pack.remotePath, pack.size);
     }
 
-    public void remove(String remotePath) {
-        System.out.println("Removing " + remotePath);
-        long fileSize = getFileSize(remotePath);
-        String username = getUsernameWherePath(remotePath);
-        String password = getPasswordWhereUsername(username);
-        Process process;
+    private void scheduleCompaction(final long packId) {
+        if (!compacting.add(packId)) {
+            return;
+        }
+        compactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    compact(packId);
+                } finally {
+                    compacting.remove(packId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live members of a pack into a new one, uploads that, points
+     * the members at it and deletes the old pack. Runs on the compactor
+     * thread; reads of the members keep working throughout.
+     */
+    private void compact(long packId) {
+        RemotePack old = getRemotePack(packId);
+        if (old == null) {
+            return;
+        }
+        List<Blob> members = getPackMembers(packId);
+        ITransferBackend.Credentials account = getCredentials(old.username);
+        Packer.Pack pack = null;
         try {
-            List<String> cmdList = new ArrayList<String>();
-            cmdList.add(megatoolsBinary);
-            cmdList.add("rm");
-            cmdList.add("--username=" + username);
-            cmdList.add("--password=" + password);
-            cmdList.add(remotePath);
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command(cmdList);
-            processBuilder.redirectErrorStream(true);
-            process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            String lastLine = "";
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                lastLine = line;
-            }
-//            if (lastLine.contains("Local file already exists")) {
-//                System.out.println(lastLine);
-//                return;
-//            }
+            pack = packer.create();
+            for (Blob member : members) {
+                try (InputStream in = packCache.open(old.id, account, old.remotePath,
+                        member.packOffset, member.fileSize)) {
+                    if (!pack.append(in, false).getSha1().equals(member.sha1)) {
+                        throw new IOException("content of " + member.sha1 + " in "
+                                + old.remotePath + " doesn't match its hash");
+                    }
+                }
+            }
+            pack.close();
         } catch (IOException e) {
-            System.out.println("Process couldn't start" + e.getMessage());
+            System.out.println("Compacting " + old.remotePath + " failed: " + e.getMessage());
+            if (pack != null) {
+                pack.getFile().delete();
+            }
             return;
-        } catch (InterruptedException e) {
-            System.out.println("Process got interrupted" + e.getMessage());
+        }
+        System.out.println("Compacting " + old.remotePath + ": " + members.size()
+                + " members, " + old.size + " -> " + pack.getSize() + " bytes");
+        if (members.isEmpty()) {
+            pack.getFile().delete();
+        } else if (uploadPack(pack, old.id) == 0) {
             return;
         }
-        removeFromDatabase(remotePath);
-        updateSumOfFreeSpaceForAccount(username, fileSize);
+        synchronized (this) {
+            // members removed meanwhile were dropped from the old pack
+            RemotePack remaining = getRemotePack(packId);
+            if (remaining != null && getPackMembers(packId).isEmpty()) {
+                removePack(remaining);
+            }
+        }
     }
 
-    private boolean removeFromDatabase(String remotePath) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "DELETE FROM filesystem WHERE remote_path = ?");
+    private RemotePack getRemotePack(long packId) {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT * FROM packs WHERE id = ?");
+            preparedStatement.setLong(1, packId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next() == false) {
+                    return null;
+                }
+                RemotePack pack = new RemotePack();
+                pack.id = resultSet.getLong("id");
+                pack.remotePath = resultSet.getString("remote_path");
+                pack.username = resultSet.getString("username");
+                pack.size = resultSet.getLong("size");
+                pack.liveSize = resultSet.getLong("live_size");
+                return pack;
+            }
+        } catch (SQLException e) {
+            System.out.println("Error getting pack: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private List<Blob> getPackMembers(long packId) {
+        List<Blob> members = new ArrayList<Blob>();
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT * FROM blobs WHERE pack_id = ? ORDER BY pack_offset");
+            preparedStatement.setLong(1, packId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                Blob blob;
+                while ((blob = readBlob(resultSet)) != null) {
+                    members.add(blob);
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error getting pack members: " + e.getMessage());
+        }
+        return members;
+    }
+
+    private String getSha1WherePath(SqliteConnections.Handle handle, long parentId, String name) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "SELECT sha1 FROM namespace WHERE parent_id = ? AND name = ?");
+        preparedStatement.setLong(1, parentId);
+        preparedStatement.setString(2, name);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next() == false) {
+                return null;
+            }
+            return resultSet.getString("sha1");
+        }
+    }
+
+    public Blob getBlob(String sha1) {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT * FROM blobs WHERE sha1 = ?");
+            preparedStatement.setString(1, sha1);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return readBlob(resultSet);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error getting blob: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public Blob getBlobWherePath(String uri) {
+        NamespaceIndex.Entry entry = namespace.get(uri);
+        return entry == null ? null : getBlob(entry.getSha1());
+    }
+
+    private Blob readBlob(ResultSet resultSet) throws SQLException {
+        if (resultSet.next() == false) {
+            return null;
+        }
+        Blob blob = new Blob();
+        blob.sha1 = resultSet.getString("sha1");
+        blob.remotePath = resultSet.getString("remote_path");
+        blob.username = resultSet.getString("username");
+        blob.fileSize = resultSet.getLong("file_size");
+        blob.refcount = resultSet.getLong("refcount");
+        // 0 unless the blob is stored in a pack
+        blob.packId = resultSet.getLong("pack_id");
+        blob.packOffset = resultSet.getLong("pack_offset");
+        blob.chunks = resultSet.getInt("chunks");
+        // what the blob takes on MEGA, less than its size if compressed
+        blob.storedSize = resultSet.getLong("stored_size");
+        if (resultSet.wasNull()) {
+            blob.storedSize = blob.fileSize;
+        }
+        blob.codec = resultSet.getString("codec");
+        return blob;
+    }
+
+    /**
+     * Remote files are stored at the path they were first uploaded for,
+     * below /Root. If a blob kept alive by another path already has that
+     * name, or a file there is still to be deleted, the hash is prepended to
+     * keep the names apart.
+     */
+    private String getFreeRemotePath(String uri, String sha1) {
+        uri = NamespaceIndex.normalize(uri);
+        return getFreeRemotePath(NamespaceIndex.parentOf("/Root" + uri),
+                NamespaceIndex.nameOf(uri), sha1);
+    }
+
+    private String getFreeRemotePath(String folder, String fileName, String sha1) {
+        String remotePath = folder + "/" + fileName;
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT 1 FROM blobs WHERE remote_path = ? UNION ALL SELECT 1 FROM remote_deletes WHERE remote_path = ? LIMIT 1");
             preparedStatement.setString(1, remotePath);
-            preparedStatement.execute();
-            return true;
+            preparedStatement.setString(2, remotePath);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    remotePath = folder + "/" + sha1 + "_" + fileName;
+                }
+            }
         } catch (SQLException e) {
-            System.out.println("Error deleting file from database " + e.getMessage());
-            return false;
+            System.out.println("Error checking remote path: " + e.getMessage());
         }
+        return remotePath;
     }
 
-    private String getUsernameWherePath(String remotePath) {
+    /**
+     * Lets the placement policy pick an account with room for
+     * <code>fileSize</code> more bytes and reserves them, so parallel uploads
+     * don't all pick the same nearly full account. Creates a new account when
+     * none has room. Every reservation ends with {@link #commitUpload} or
+     * {@link #releaseSpace}.
+     *
+     * @param uri
+     *      where the file goes in the namespace
+     * @return the account or null if none could be found or created
+     */
+    public String reserveSpace(long fileSize, String uri) {
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT username FROM filesystem WHERE remote_path = ?");
-            preparedStatement.setString(1, remotePath);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            String username = resultSet.getString("username");
+            String username = tryReserveSpace(fileSize, uri);
+            if (username == null) {
+                // not while holding the writer, this takes minutes; one at a
+                // time so uploads waiting for it share the new account
+                synchronized (accountCreation) {
+                    username = tryReserveSpace(fileSize, uri);
+                    if (username == null) {
+                        System.out.println("Creating a new account");
+                        createNewAccount();
+                        username = tryReserveSpace(fileSize, uri);
+                    }
+                }
+            }
             return username;
         } catch (SQLException e) {
-            System.out.println("Error getting username for remote path: " + e.getMessage());
+            System.out.println("Error reserving space: " + e.getMessage());
             return null;
         }
     }
 
-    private void updateDifferenceOfFreeSpaceForAccount(String username, long fileSize) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT free_space FROM accounts WHERE username = ?");
-            preparedStatement.setString(1, username);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            long freeSpace = resultSet.getLong("free_space");
-            freeSpace -= fileSize;
-            preparedStatement = connection.prepareStatement(
-                    "UPDATE accounts SET free_space = ? WHERE username = ?");
-            preparedStatement.setLong(1, freeSpace);
+    private String tryReserveSpace(long fileSize, String uri) throws SQLException {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            for (int attempt = 0; attempt <= accountPool.size(); attempt++) {
+                AccountPool.Account account = placement.choose(accountPool, fileSize, uri);
+                if (account == null) {
+                    return null;
+                }
+                String username = account.getUsername();
+                // the check is repeated in SQL, the pool may be behind
+                PreparedStatement preparedStatement = handle.prepare(
+                        "UPDATE accounts SET reserved = reserved + ? WHERE username = ? AND ? < free_space - reserved");
+                preparedStatement.setLong(1, fileSize);
+                preparedStatement.setString(2, username);
+                preparedStatement.setLong(3, fileSize);
+                boolean reserved = preparedStatement.executeUpdate() == 1;
+                refreshAccount(handle, username);
+                if (reserved) {
+                    accountPool.used(username);
+                    accountPool.claim(username);
+                    return username;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reserves space on a given account whether or not it has room, for an
+     * upload that may have finished there already.
+     */
+    private String reserveSpaceOn(String username, long fileSize) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "UPDATE accounts SET reserved = reserved + ? WHERE username = ?");
+            preparedStatement.setLong(1, fileSize);
             preparedStatement.setString(2, username);
-            preparedStatement.execute();
+            boolean reserved = preparedStatement.executeUpdate() == 1;
+            refreshAccount(handle, username);
+            if (!reserved) {
+                return null;
+            }
+            accountPool.claim(username);
+            return username;
         } catch (SQLException e) {
-            System.out.println("Error updating free space left: " + e.getMessage());
+            System.out.println("Error reserving space: " + e.getMessage());
+            return null;
         }
     }
 
-    private void updateSumOfFreeSpaceForAccount(String username, long fileSize) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT free_space FROM accounts WHERE username = ?");
-            preparedStatement.setString(1, username);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            long freeSpace = resultSet.getLong("free_space");
-            freeSpace += fileSize;
-            preparedStatement = connection.prepareStatement(
-                    "UPDATE accounts SET free_space = ? WHERE username = ?");
-            preparedStatement.setLong(1, freeSpace);
+    /**
+     * Gives back space reserved for an upload that didn't happen.
+     */
+    public void releaseSpace(String username, long fileSize) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "UPDATE accounts SET reserved = max(reserved - ?, 0) WHERE username = ?");
+            preparedStatement.setLong(1, fileSize);
             preparedStatement.setString(2, username);
             preparedStatement.execute();
+            refreshAccount(handle, username);
+        } catch (SQLException e) {
+            System.out.println("Error releasing reserved space: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a finished upload: inserts the blob and turns the reservation
+     * of <code>fileSize</code> bytes into <code>storedSize</code> bytes of
+     * used space, in one transaction. If another upload stored the same
+     * content meanwhile, that blob is kept and the file just uploaded is
+     * queued for deletion, so paths get linked to the existing blob.
+     *
+     * @param codec
+     *      how the blob was compressed, null if it wasn't
+     */
+    private boolean commitUpload(String sha1, String remotePath, String username, long fileSize,
+                                 long storedSize, String codec) {
+        boolean duplicate = false;
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT OR IGNORE INTO blobs (sha1, remote_path, username, file_size, refcount, stored_size, codec) VALUES (?, ?, ?, ?, 0, ?, ?)");
+            preparedStatement.setString(1, sha1);
+            preparedStatement.setString(2, remotePath);
+            preparedStatement.setString(3, username);
+            preparedStatement.setLong(4, fileSize);
+            preparedStatement.setLong(5, storedSize);
+            preparedStatement.setString(6, codec);
+            long used = storedSize;
+            if (preparedStatement.executeUpdate() == 0) {
+                if (isStoredAt(handle, sha1, remotePath, username)) {
+                    // adopted after a restart, the blob accounts for it
+                    used = 0;
+                } else {
+                    System.out.println("Content of " + remotePath + " was stored meanwhile, dropping the copy");
+                    queueRemoteDelete(handle, username, remotePath, storedSize);
+                    duplicate = true;
+                }
+            }
+            preparedStatement = handle.prepare(
+                    "UPDATE accounts SET free_space = free_space - ?, reserved = max(reserved - ?, 0) WHERE username = ?");
+            preparedStatement.setLong(1, used);
+            preparedStatement.setLong(2, fileSize);
+            preparedStatement.setString(3, username);
+            preparedStatement.execute();
+            handle.commit();
+            refreshAccount(handle, username);
         } catch (SQLException e) {
-            System.out.println("Error updating free space left: " + e.getMessage());
+            System.out.println("Error inserting new file into database " + e.getMessage());
+            return false;
+        }
+        if (duplicate) {
+            scheduleRemoteDelete(username, remotePath, storedSize);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the blob with the given hash is the remote file at
+     *  <code>remotePath</code> of the account
+     */
+    private boolean isStoredAt(SqliteConnections.Handle handle, String sha1, String remotePath,
+                               String username) throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare(
+                "SELECT 1 FROM blobs WHERE sha1 = ? AND remote_path = ? AND username = ?");
+        preparedStatement.setString(1, sha1);
+        preparedStatement.setString(2, remotePath);
+        preparedStatement.setString(3, username);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next();
         }
     }
 
@@ -276,35 +1835,18 @@ public class Database {
 //        return sha1;
 //    }
 
-    public boolean insertNewFile(String sha1, String localPath, String username, long fileSize) {
-        String fileName = new File(localPath).getName();
-        String remotePath = "/Root/" + fileName;
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "INSERT INTO filesystem VALUES (?, ?, ?, ?);");
-            preparedStatement.setString(1, sha1);
-            preparedStatement.setString(2, remotePath);
-            preparedStatement.setString(3, username);
-            preparedStatement.setLong(4, fileSize);
-            preparedStatement.execute();
-            return true;
-        } catch (SQLException e) {
-            System.out.println("Error inserting new file into database " + e.getMessage());
-            return false;
-        }
-    }
-
     public boolean isDuplicateHash(String sha1) {
         //true means the file already exists or error occurred and file shouldn't be uploaded
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT sha1 FROM filesystem WHERE sha1  = ?");
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "SELECT sha1 FROM blobs WHERE sha1  = ?");
             preparedStatement.setString(1, sha1);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next() == false) {
-                return false;
-            } else {
-                return true;
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next() == false) {
+                    return false;
+                } else {
+                    return true;
+                }
             }
         } catch (SQLException e) {
             System.out.println("Error checking for duplicate hash " + e.getMessage());
@@ -314,13 +1856,14 @@ public class Database {
     }
 
     public String calcSHA1(String filename) {
-        try {
+        try (InputStream input = new FileInputStream(filename)) {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(Files.readAllBytes(Paths.get(filename)));
-            byte[] digest = md.digest();
-            String myChecksum = DatatypeConverter
-                    .printHexBinary(digest).toUpperCase();
-            return myChecksum;
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            return toHex(md);
         } catch (NoSuchAlgorithmException e) {
             System.out.println("No such algorithm exception while calculating hash: " + e.getMessage());
             return null;
@@ -330,101 +1873,67 @@ public class Database {
         }
     }
 
+    /**
+     * Formats a finished digest the way hashes are stored in the database.
+     */
+    public static String toHex(MessageDigest md) {
+        return DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
+    }
+
     public long checkFileSize(String filename) {
         File file = new File(filename);
         return file.length();
     }
 
-    public String getAccountWithFreeSpace(long fileSize) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT username FROM accounts WHERE ? < free_space");
-            preparedStatement.setLong(1, fileSize);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next() == false) {
-                System.out.println("Creating a new account");
-                createNewMegaAccount();
-                preparedStatement = connection.prepareStatement(
-                        "SELECT username FROM accounts WHERE ? < free_space");
-                preparedStatement.setLong(1, fileSize);
-                resultSet = preparedStatement.executeQuery();
-            }
-            String username = resultSet.getString("username");
-            return username;
-        } catch (SQLException e) {
-            System.out.println("Error getting account with free space: " + e.getMessage());
-            return null;
-        }
+    private ITransferBackend.Credentials getCredentials(String username) {
+        return new ITransferBackend.Credentials(username, getPasswordWhereUsername(username));
     }
 
     public String getPasswordWhereUsername(String username) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare(
                     "SELECT password FROM accounts WHERE username = ?");
             preparedStatement.setString(1, username);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            String password = resultSet.getString("password");
-            return password;
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next() == false) {
+                    return null;
+                }
+                return resultSet.getString("password");
+            }
         } catch (SQLException e) {
             System.out.println("Error getting password for username: " + e.getMessage());
             return null;
         }
     }
 
-    public void createNewMegaAccount() {
+    /**
+     * Registers a new account with the backend and adds it to the accounts
+     * table.
+     */
+    public void createNewAccount() {
+        ITransferBackend.Credentials account = backend.createAccount();
+        if (account == null) {
+            return;
+        }
+        long freeSpace;
         try {
-            //first connection get e-mail
-            CookieManager cookieManager = new CookieManager();
-            CookieHandler.setDefault(cookieManager);
-            HttpClient httpClient = HttpClient.newBuilder().cookieHandler(cookieManager).build();
-            HttpRequest httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
-            HttpResponse<String> httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            String responseText = httpResponse.body();
-            String e_mail = responseText.substring(responseText.indexOf("class=\"mailtext\" value=\"") + 24, responseText.indexOf("class=\"mailtext\" value=\"") + 42);
-            // Generate password and verification code for a  new mega account
-            String password = new Random().ints(13, 33, 122).collect(StringBuilder::new,
-                    StringBuilder::appendCodePoint, StringBuilder::append)
-                    .toString();
-            String verifyCode = getVerifyCodeForNewAccount(e_mail, password);
-            System.out.println("Sleep, waiting for email 90 seconds");
-            //wait for e-mail to arrive and extract readmail value of Mega registration email
-            TimeUnit.SECONDS.sleep(90);
-            httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
-            httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            responseText = httpResponse.body();
-            String readMail = responseText.substring(responseText.indexOf("readmail.html?mid=") + 18, responseText.indexOf("readmail.html?mid=") + 24);
-            //Potentially make loop to wait even longer when e-mail hasn't arrived
-            if (readMail.equals("welcom")) {
-                System.out.println("Registration e-mail hasn't arrived in time sleeping 90 seconds longer");
-                TimeUnit.SECONDS.sleep(90);
-                httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
-                httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-                responseText = httpResponse.body();
-                readMail = responseText.substring(responseText.indexOf("readmail.html?mid=") + 18, responseText.indexOf("readmail.html?mid=") + 24);
-            }
-            //Read Mega registration e-mail and extract the activation link
-            httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/readmail.html?mid=" + readMail)).build();
-            httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            responseText = httpResponse.body();
-            String confirmationLink = responseText.substring(responseText.indexOf("#confirm") - 16, responseText.indexOf("#confirm") + 112);
-            boolean verificationSuccessful = verifyNewAccount(verifyCode, confirmationLink);
-            if (verificationSuccessful) {
-                insertNewMegaAccount(e_mail, password);
-            }
+            freeSpace = backend.quota(account);
         } catch (IOException e) {
-            System.out.println("Http exception: " + e.getMessage());
-        } catch (InterruptedException e) {
-            System.out.println("Http interrupted exception: " + e.getMessage());
+            System.out.println("Error getting quota of new account: " + e.getMessage());
+            freeSpace = 53687091200L;
         }
+        insertNewMegaAccount(account.getUsername(), account.getPassword(), freeSpace);
     }
 
-    private boolean insertNewMegaAccount(String e_mail, String password) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "INSERT INTO accounts VALUES (?,?, 53687091200);");
+    private boolean insertNewMegaAccount(String e_mail, String password, long freeSpace) {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement preparedStatement = handle.prepare(
+                    "INSERT INTO accounts VALUES (?, ?, ?, 0);");
             preparedStatement.setString(1, e_mail);
             preparedStatement.setString(2, password);
+            preparedStatement.setLong(3, freeSpace);
             preparedStatement.execute();
+            refreshAccount(handle, e_mail);
             return true;
         } catch (SQLException e) {
             System.out.println("Error inserting new file into database " + e.getMessage());
@@ -432,118 +1941,38 @@ public class Database {
         }
     }
 
-    private boolean verifyNewAccount(String verifyCode, String confirmationLink) {
-        Process process;
-        try {
-            List<String> cmdList = new ArrayList<String>();
-            cmdList.add(megatoolsBinary);
-            cmdList.add("reg");
-            cmdList.add("--verify");
-            cmdList.add(verifyCode);
-            cmdList.add(confirmationLink);
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command(cmdList);
-            processBuilder.redirectErrorStream(true);
-            process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            String lastLine = "";
-            List<String> output = new ArrayList<String>();
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
-                output.add(line);
-                lastLine = line;
-            }
-            if (lastLine.contains("Account registered successfully!")) {
-                return true;
-            } else {
-                System.out.println("Error confirming the account");
-                for (String s : output) {
-                    System.out.println(s);
-                }
-                return false;
-            }
-
-        } catch (IOException e) {
-            System.out.println("Process couldn't start" + e.getMessage());
-        } catch (InterruptedException e) {
-            System.out.println("Process got interrupted" + e.getMessage());
-        }
-        return false;
-    }
+    /**
+     * A file stored on MEGA, shared by every path with the same content.
+     */
+    public static class Blob {
+        String sha1;
+        String remotePath;
+        String username;
+        long fileSize;
+        long refcount;
+        long packId;
+        long packOffset;
+        int chunks;
+        long storedSize;
+        String codec;
 
-    private String getVerifyCodeForNewAccount(String e_mail, String password) {
-        Process process;
-        try {
-            List<String> cmdList = new ArrayList<String>();
-            cmdList.add(megatoolsBinary);
-            cmdList.add("reg");
-            cmdList.add("--scripted");
-            cmdList.add("--register");
-            cmdList.add("--name=test");
-            cmdList.add("--email=" + e_mail);
-            cmdList.add("--password=" + password);
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command(cmdList);
-            processBuilder.redirectErrorStream(true);
-            process = processBuilder.start();
-            process.waitFor();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            String lastLine = "";
-            String verifyCode = "";
-            List<String> output = new ArrayList<String>();
-            while ((line = reader.readLine()) != null) {
-                output.add(line);
-                lastLine = line;
-            }
-            if (lastLine.contains("verify")) {
-                verifyCode = lastLine.substring(lastLine.lastIndexOf("--verify ") + 9, lastLine.lastIndexOf("--verify ") + 70);
-                return verifyCode;
-            } else {
-                System.out.println("Error getting verify line");
-                for (String s : output) {
-                    System.out.println(s);
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Process couldn't start" + e.getMessage());
-        } catch (InterruptedException e) {
-            System.out.println("Process got interrupted" + e.getMessage());
+        public String getSha1() {
+            return sha1;
         }
-        return null;
-    }
 
-    public List<String> getRemoteFileNames() {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT remote_path FROM filesystem");
-            ResultSet resultSet = preparedStatement.executeQuery();
-            List<String> fileNames = new ArrayList<>();
-            while (resultSet.next()) {
-                String remotePath = resultSet.getString("remote_path");
-                String remotePathSplit[] = remotePath.split("/");
-                fileNames.add(remotePathSplit[remotePathSplit.length - 1]);
-            }
-            return fileNames;
-        } catch (SQLException e) {
-            System.out.println("Error getting remote file names: " + e.getMessage());
-            return null;
+        public long getFileSize() {
+            return fileSize;
         }
     }
 
-    public long getFileSize(String remotePath) {
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT file_size FROM filesystem WHERE remote_path = ?");
-            preparedStatement.setString(1, remotePath);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            long fileSize = resultSet.getLong("file_size");
-            return fileSize;
-        } catch (SQLException e) {
-            System.out.println("Error getting file size: " + e.getMessage());
-            return 0;
-        }
+    /**
+     * A remote file holding the content of several small blobs.
+     */
+    static class RemotePack {
+        long id;
+        String remotePath;
+        String username;
+        long size;
+        long liveSize;
     }
 }
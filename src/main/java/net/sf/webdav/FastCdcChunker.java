@@ -0,0 +1,89 @@
+package net.sf.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts content where a rolling gear hash of the last bytes matches a mask,
+ * as in FastCDC, so the boundaries move with the content: an edit only
+ * changes the chunks around it and the others are found again by their
+ * hash and not uploaded a second time.
+ * <p>
+ * Chunks are at least a quarter and at most four times the average size.
+ * Normalized chunking makes a cut harder to find below the average size and
+ * easier above it, which keeps most chunks close to the average.
+ */
+public class FastCdcChunker implements IChunker {
+
+    private static int BUF_SIZE = 1 << 20;
+
+    /**
+     * Random values for every byte, always from the same seed: other values
+     * would find other boundaries and stored chunks wouldn't match anymore.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6d656761667363L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final long minSize;
+    private final long normalSize;
+    private final long maxSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    /**
+     * @param averageSize
+     *      the size chunks are cut around, best a power of two
+     */
+    public FastCdcChunker(long averageSize) {
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(averageSize, 64));
+        this.normalSize = 1L << bits;
+        this.minSize = normalSize / 4;
+        this.maxSize = normalSize * 4;
+        // the high bits of the hash depend on the most bytes
+        this.smallMask = -1L << (64 - Math.min(bits + 2, 63));
+        this.largeMask = -1L << (64 - (bits - 2));
+    }
+
+    public List<Long> split(InputStream in, long length) throws IOException {
+        List<Long> lengths = new ArrayList<Long>();
+        byte[] buffer = new byte[BUF_SIZE];
+        long total = 0;
+        long chunkLength = 0;
+        long hash = 0;
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                chunkLength++;
+                if (chunkLength <= minSize) {
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                long mask = chunkLength < normalSize ? smallMask : largeMask;
+                if ((hash & mask) == 0 || chunkLength >= maxSize) {
+                    lengths.add(chunkLength);
+                    total += chunkLength;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+        }
+        if (chunkLength > 0) {
+            lengths.add(chunkLength);
+            total += chunkLength;
+        }
+        if (total != length) {
+            throw new IOException("content changed while being chunked, "
+                    + total + " bytes instead of " + length);
+        }
+        return lengths;
+    }
+}
@@ -0,0 +1,26 @@
+package net.sf.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts content into chunks of the same size, only the last one is shorter.
+ */
+public class FixedSizeChunker implements IChunker {
+
+    private final long chunkSize;
+
+    public FixedSizeChunker(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public List<Long> split(InputStream in, long length) throws IOException {
+        List<Long> lengths = new ArrayList<Long>();
+        for (long offset = 0; offset < length; offset += chunkSize) {
+            lengths.add(Math.min(chunkSize, length - offset));
+        }
+        return lengths;
+    }
+}
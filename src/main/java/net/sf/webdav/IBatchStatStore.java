@@ -0,0 +1,119 @@
+package net.sf.webdav;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Optionally implemented by an {@link IWebdavStore} that can list a folder
+ * together with the {@link StoredObject} of every child in one pass, instead
+ * of {@link IWebdavStore#getChildrenNames} followed by one
+ * {@link IWebdavStore#getStoredObject} per child.
+ */
+public interface IBatchStatStore {
+
+    /**
+     * Lists a folder. The children may be read from the store while the
+     * iteration goes on, so it is to be closed once done with.
+     *
+     * @param transaction
+     *      indicates that the method is within the scope of a WebDAV
+     *      transaction
+     * @param folderUri
+     *      URI of the folder
+     * @return the children in no particular order, none if there is no
+     *  folder at <code>folderUri</code>
+     */
+    Children getChildren(ITransaction transaction, String folderUri);
+
+    /**
+     * Lists a folder of any store, through {@link #getChildren} if the store
+     * implements it and with a {@link IWebdavStore#getStoredObject} per
+     * child otherwise.
+     */
+    static Children childrenOf(final IWebdavStore store,
+            final ITransaction transaction, String folderUri) {
+        if (store instanceof IBatchStatStore) {
+            return ((IBatchStatStore) store).getChildren(transaction, folderUri);
+        }
+        String[] names = store.getChildrenNames(transaction, folderUri);
+        final String[] children = names == null ? new String[] {} : names;
+        final String parent = folderUri.endsWith("/") ? folderUri : folderUri + "/";
+        return new Children() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < children.length;
+            }
+
+            public Child next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String name = children[next++];
+                return new Child(name, store.getStoredObject(transaction,
+                        parent + name));
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Lists a folder of any store completely, for callers that change the
+     * folder while they go through its children.
+     */
+    static List<Child> listChildren(IWebdavStore store,
+            ITransaction transaction, String folderUri) {
+        List<Child> list = new ArrayList<Child>();
+        Children children = childrenOf(store, transaction, folderUri);
+        try {
+            while (children.hasNext()) {
+                list.add(children.next());
+            }
+        } finally {
+            children.close();
+        }
+        return list;
+    }
+
+    /**
+     * The children of a folder, read as they are iterated.
+     */
+    interface Children extends Iterator<Child>, Closeable {
+
+        /**
+         * Releases what the store holds for the listing.
+         */
+        void close();
+    }
+
+    /**
+     * A child of a folder and its metadata.
+     */
+    final class Child {
+
+        private final String name;
+        private final StoredObject storedObject;
+
+        public Child(String name, StoredObject storedObject) {
+            this.name = name;
+            this.storedObject = storedObject;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the metadata, null if the child went away while the folder
+         *  was listed
+         */
+        public StoredObject getStoredObject() {
+            return storedObject;
+        }
+    }
+}
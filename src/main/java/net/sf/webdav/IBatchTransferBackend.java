@@ -0,0 +1,28 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A transfer backend that can upload several files to one remote folder in
+ * a single operation, paying for login and process startup once.
+ * {@link BatchingTransferBackend} groups concurrent uploads for it.
+ */
+public interface IBatchTransferBackend extends ITransferBackend {
+
+    /**
+     * Upload local files into a remote folder, each under the name it is
+     * given, which need not be the name of the local file.
+     *
+     * @param localFiles
+     *      keys: the remote names, values: the local files
+     * @return the names of the files that failed, with the reason; a
+     *  {@link java.nio.file.FileAlreadyExistsException} if there is a file
+     *  with that name already
+     * @throws IOException
+     *      if the operation failed before any file could be transferred
+     */
+    Map<String, IOException> putAll(Credentials account, String remoteFolder,
+            Map<String, File> localFiles) throws IOException;
+}
@@ -0,0 +1,26 @@
+package net.sf.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Splits large files into chunks that are stored as blobs of their own, so
+ * one file can be spread over several accounts and transferred in
+ * parallel. Chunks are keyed by their hash, so equal chunks of different
+ * files are stored once.
+ */
+public interface IChunker {
+
+    /**
+     * Find the chunk boundaries of some content.
+     *
+     * @param in
+     *      the content; chunkers that don't look at it needn't read it
+     * @param length
+     *      the length of the content
+     * @return the lengths of the consecutive chunks, adding up to
+     *  <code>length</code>
+     */
+    List<Long> split(InputStream in, long length) throws IOException;
+}
@@ -0,0 +1,43 @@
+package net.sf.webdav;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+
+/**
+ * Optionally implemented by an {@link IWebdavStore} that keeps the content of
+ * some resources in plain local files, so GET can hand the file to the
+ * container's sendfile or to FileChannel.transferTo instead of copying it
+ * through {@link IWebdavStore#getResourceContent}.
+ */
+public interface ILocalContentStore {
+
+    /**
+     * Gets the local file holding the complete content of a resource. The
+     * file at the returned path keeps that content after the handle is
+     * closed, long enough for the container to open it: sendfile reads it
+     * only after the request has been handled.
+     *
+     * @param transaction
+     *      indicates that the method is within the scope of a WebDAV
+     *      transaction
+     * @param resourceUri
+     *      URI of the content resource
+     * @return the file, or null if the content is only available through
+     *  {@link IWebdavStore#getResourceContent}
+     */
+    LocalContent openLocalContent(ITransaction transaction, String resourceUri);
+
+    /**
+     * A local file lent out by the store.
+     */
+    interface LocalContent extends Closeable {
+
+        Path getPath();
+
+        /**
+         * Gives the file back to the store, once it has been handed to the
+         * container.
+         */
+        void close();
+    }
+}
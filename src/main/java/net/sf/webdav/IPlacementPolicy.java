@@ -0,0 +1,23 @@
+package net.sf.webdav;
+
+/**
+ * Decides which MEGA account a new file is uploaded to. Set with the
+ * megafs.placement system property: bestfit (default), worstfit, lru or
+ * affinity.
+ */
+public interface IPlacementPolicy {
+
+    /**
+     * Choose an account for a file. Called while holding the database
+     * writer, the chosen account gets the space reserved right after.
+     *
+     * @param accounts
+     *      the accounts by space left
+     * @param fileSize
+     *      size of the file in bytes
+     * @param uri
+     *      where the file goes in the namespace
+     * @return the account to use or null if none has room
+     */
+    AccountPool.Account choose(AccountPool accounts, long fileSize, String uri);
+}
@@ -0,0 +1,88 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Moves file content between the local cache and remote storage accounts.
+ * Set with the megafs.backend system property: megatools (default) talks to
+ * MEGA, local keeps everything in a local directory for tests and
+ * benchmarks.
+ * <p>
+ * Remote paths are absolute and start with /Root. All methods may be called
+ * concurrently.
+ */
+public interface ITransferBackend {
+
+    /**
+     * Upload a local file.
+     *
+     * @throws java.nio.file.FileAlreadyExistsException
+     *      if there is a file at <code>remotePath</code> already
+     * @throws IOException
+     *      if the upload failed
+     */
+    void put(Credentials account, File localFile, String remotePath)
+            throws IOException;
+
+    /**
+     * Start a download. The content arrives on the returned stream while
+     * it is transferred; reaching its end fails with an IOException if the
+     * transfer didn't complete.
+     */
+    InputStream get(Credentials account, String remotePath) throws IOException;
+
+    /**
+     * Delete a file.
+     *
+     * @throws java.nio.file.NoSuchFileException
+     *      if there is no file at <code>remotePath</code>
+     * @throws IOException
+     *      if the deletion failed
+     */
+    void rm(Credentials account, String remotePath) throws IOException;
+
+    /**
+     * Create a folder, doing nothing if it exists. The parent has to exist.
+     */
+    void mkdir(Credentials account, String remotePath) throws IOException;
+
+    /**
+     * @return the paths of the entries directly below
+     *  <code>remotePath</code>
+     */
+    List<String> ls(Credentials account, String remotePath) throws IOException;
+
+    /**
+     * @return the free space of the account in bytes
+     */
+    long quota(Credentials account) throws IOException;
+
+    /**
+     * Register a new account.
+     *
+     * @return its credentials or null if the registration failed
+     */
+    Credentials createAccount();
+
+    public static class Credentials {
+
+        private final String username;
+        private final String password;
+
+        public Credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+    }
+}
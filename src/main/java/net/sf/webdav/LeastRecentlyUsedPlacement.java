@@ -0,0 +1,20 @@
+package net.sf.webdav;
+
+/**
+ * Puts a file on the fitting account that was used the longest time ago, so
+ * consecutive uploads go to different accounts and don't share one
+ * account's bandwidth limit.
+ */
+public class LeastRecentlyUsedPlacement implements IPlacementPolicy {
+
+    public AccountPool.Account choose(AccountPool accounts, long fileSize,
+            String uri) {
+        AccountPool.Account chosen = null;
+        for (AccountPool.Account account : accounts.fitting(fileSize)) {
+            if (chosen == null || account.getLastUsed() < chosen.getLastUsed()) {
+                chosen = account;
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,398 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the local copies of MegaFS files within a size budget. Files are only
+ * evicted when they are clean, i.e. already stored on MEGA, and not pinned by
+ * a request that is reading them.
+ * <p>
+ * Eviction follows a segmented LRU: files enter a probation segment and are
+ * promoted to a protected segment when read again, so a single pass over many
+ * files (a backup, a search indexer) can't push out the files that are
+ * actually in use.
+ * <p>
+ * Eviction starts when the cache grows beyond megafs.cache.maxBytes and frees
+ * space down to megafs.cache.lowBytes. Files not read for
+ * megafs.cache.maxAgeSeconds are evicted regardless of size, 0 disables that.
+ */
+public class LocalCache {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(LocalCache.class);
+
+    private static final long MAX_BYTES = Long.getLong("megafs.cache.maxBytes",
+            10L * 1024 * 1024 * 1024);
+    private static final long LOW_BYTES = Long.getLong("megafs.cache.lowBytes",
+            MAX_BYTES / 10 * 9);
+    private static final long MAX_AGE_MILLIS = Long.getLong(
+            "megafs.cache.maxAgeSeconds", 0) * 1000;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MAINTENANCE_INTERVAL_SECONDS = 60;
+
+    private final File root;
+    private final Predicate<String> isUploaded;
+    private final long maxBytes;
+    private final long lowBytes;
+    private final long maxAgeMillis;
+    private final ScheduledExecutorService maintenance = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("megafs-cache"));
+
+    /**
+     * both segments are ordered by last access, eldest first. Entries are
+     * moved to the end explicitly so that lookups don't count as accesses.
+     */
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>();
+
+    /**
+     * keys: uri value: number of open readers
+     */
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+    private long totalBytes = 0;
+    private long protectedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long evictedBytes = 0;
+
+    /**
+     * @param root
+     *      the directory holding the local copies
+     * @param isUploaded
+     *      tells whether the file at an uri is safely stored on MEGA
+     */
+    public LocalCache(File root, Predicate<String> isUploaded) {
+        this(root, isUploaded, MAX_BYTES, LOW_BYTES, MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxBytes
+     *      size beyond which eviction starts
+     * @param lowBytes
+     *      size eviction frees space down to
+     * @param maxAgeMillis
+     *      time after the last read when a file is evicted anyway, 0 for
+     *      never
+     */
+    LocalCache(File root, Predicate<String> isUploaded, long maxBytes,
+            long lowBytes, long maxAgeMillis) {
+        this.root = root;
+        this.isUploaded = isUploaded;
+        this.maxBytes = maxBytes;
+        this.lowBytes = lowBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Indexes the files already in the root directory in the background and
+     * starts the periodic eviction.
+     */
+    public void start() {
+        maintenance.execute(new Runnable() {
+            public void run() {
+                scan();
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict();
+            }
+        }, MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        maintenance.shutdownNow();
+    }
+
+    /**
+     * Records new content for a file, replacing whatever was cached for it.
+     *
+     * @param dirty
+     *      true if the content hasn't been uploaded yet
+     */
+    public void added(String uri, long size, boolean dirty) {
+        synchronized (this) {
+            remove(uri);
+            Entry entry = new Entry(size, dirty, System.currentTimeMillis());
+            probation.put(uri, entry);
+            totalBytes += size;
+            if (totalBytes <= maxBytes) {
+                return;
+            }
+        }
+        maintenance.execute(new Runnable() {
+            public void run() {
+                evict();
+            }
+        });
+    }
+
+    public synchronized void removed(String uri) {
+        remove(uri);
+    }
+
+    /**
+     * Counts a read served from the local copy and moves the file up in the
+     * eviction order.
+     */
+    public synchronized void hit(String uri) {
+        hits++;
+        Entry entry = probation.remove(uri);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+            protectedSegment.put(uri, entry);
+            protectedBytes += entry.size;
+            demoteProtected();
+            return;
+        }
+        entry = protectedSegment.remove(uri);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+            protectedSegment.put(uri, entry);
+        }
+    }
+
+    /**
+     * Counts a read that had to go to MEGA.
+     */
+    public synchronized void miss(String uri) {
+        misses++;
+    }
+
+    /**
+     * Keeps the local copy of a file while it is being read or written. Every
+     * pin has to be released with {@link #unpin(String)}.
+     */
+    public synchronized void pin(String uri) {
+        Integer count = pins.get(uri);
+        pins.put(uri, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(String uri) {
+        Integer count = pins.get(uri);
+        if (count == null || count <= 1) {
+            pins.remove(uri);
+        } else {
+            pins.put(uri, count - 1);
+        }
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public synchronized int getFileCount() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * Deletes clean, unpinned local copies until the cache is back under its
+     * low watermark, probation segment first, and any that are older than the
+     * maximum age.
+     */
+    void evict() {
+        List<String> candidates = new ArrayList<String>();
+        synchronized (this) {
+            long oldest = maxAgeMillis > 0 ? System.currentTimeMillis()
+                    - maxAgeMillis : Long.MIN_VALUE;
+            boolean overBudget = totalBytes > maxBytes;
+            List<Map<String, Entry>> segments = new ArrayList<Map<String, Entry>>();
+            segments.add(probation);
+            segments.add(protectedSegment);
+            for (Map<String, Entry> segment : segments) {
+                for (Map.Entry<String, Entry> e : segment.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (overBudget || entry.lastAccess < oldest) {
+                        candidates.add(e.getKey());
+                    }
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        int evicted = 0;
+        for (String uri : candidates) {
+            synchronized (this) {
+                if (totalBytes <= lowBytes && maxAgeMillis == 0) {
+                    break;
+                }
+            }
+            // the database is asked outside the lock
+            boolean clean = isClean(uri);
+            synchronized (this) {
+                Entry entry = find(uri);
+                if (entry == null || !clean || entry.dirty || pins.containsKey(uri)) {
+                    continue;
+                }
+                boolean tooOld = maxAgeMillis > 0
+                        && entry.lastAccess < System.currentTimeMillis() - maxAgeMillis;
+                if (totalBytes <= lowBytes && !tooOld) {
+                    continue;
+                }
+                if (!new File(root, uri).delete()) {
+                    LOG.warn("Could not evict " + uri + " from the cache");
+                    continue;
+                }
+                remove(uri);
+                evictions++;
+                evictedBytes += entry.size;
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            LOG.info("Evicted " + evicted + " files, " + this);
+        }
+    }
+
+    private boolean isClean(String uri) {
+        Entry entry;
+        synchronized (this) {
+            entry = find(uri);
+            if (entry == null || !entry.dirty) {
+                return entry != null;
+            }
+        }
+        if (!isUploaded.test(uri)) {
+            return false;
+        }
+        synchronized (this) {
+            entry.dirty = false;
+        }
+        return true;
+    }
+
+    private void scan() {
+        final Path rootPath = root.toPath();
+        if (!Files.isDirectory(rootPath)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) {
+                    // links of a batch upload, see MegatoolsTransferBackend
+                    return dir.toString().endsWith(RemoteDownload.PARTIAL_SUFFIX)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()
+                            && !file.toString().endsWith(RemoteDownload.PARTIAL_SUFFIX)) {
+                        String uri = "/" + rootPath.relativize(file).toString()
+                                .replace(File.separatorChar, '/');
+                        track(uri, attrs.size(), attrs.lastModifiedTime().toMillis());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Scanning the cache directory failed: " + e.getMessage());
+        }
+        LOG.info("Cache scan finished, " + this);
+        evict();
+    }
+
+    private synchronized void track(String uri, long size, long lastAccess) {
+        if (find(uri) != null) {
+            return;
+        }
+        // isClean() sorts out later whether it is on MEGA already
+        probation.put(uri, new Entry(size, true, lastAccess));
+        totalBytes += size;
+    }
+
+    private Entry find(String uri) {
+        Entry entry = probation.get(uri);
+        return entry != null ? entry : protectedSegment.get(uri);
+    }
+
+    private void remove(String uri) {
+        Entry entry = probation.remove(uri);
+        if (entry == null) {
+            entry = protectedSegment.remove(uri);
+            if (entry != null) {
+                protectedBytes -= entry.size;
+            }
+        }
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    private void demoteProtected() {
+        long limit = maxBytes / 100 * PROTECTED_PERCENT;
+        Iterator<Map.Entry<String, Entry>> eldest = protectedSegment.entrySet()
+                .iterator();
+        while (protectedBytes > limit && eldest.hasNext()) {
+            Map.Entry<String, Entry> e = eldest.next();
+            eldest.remove();
+            protectedBytes -= e.getValue().size;
+            probation.put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cache: " + getFileCount() + " files, " + totalBytes
+                + " bytes, hit ratio " + String.format("%.2f", getHitRatio())
+                + ", " + evictions + " evictions (" + evictedBytes + " bytes)";
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private boolean dirty;
+        private long lastAccess;
+
+        Entry(long size, boolean dirty, long lastAccess) {
+            this.size = size;
+            this.dirty = dirty;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
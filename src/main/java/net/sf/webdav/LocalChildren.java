@@ -0,0 +1,118 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.sf.webdav.IBatchStatStore.Child;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Lists a local folder with a single DirectoryStream, reading the attributes
+ * of each entry as it is reached. Where the platform has a
+ * SecureDirectoryStream they are read relative to the open folder, so the
+ * path isn't resolved again for every child.
+ */
+class LocalChildren implements IBatchStatStore.Children {
+
+    private final DirectoryStream<Path> stream;
+    private final Iterator<Path> paths;
+    private Child next = null;
+
+    /**
+     * @param folder
+     *      the folder, if it isn't one there are no children
+     */
+    LocalChildren(File folder) throws WebdavException {
+        DirectoryStream<Path> opened = null;
+        try {
+            opened = Files.newDirectoryStream(folder.toPath());
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            // nothing to list
+        } catch (IOException e) {
+            throw new WebdavException(e);
+        }
+        stream = opened;
+        paths = opened == null ? null : opened.iterator();
+    }
+
+    /**
+     * @return whether the entry is listed, all of them by default
+     */
+    protected boolean accept(String name) {
+        return true;
+    }
+
+    public boolean hasNext() {
+        try {
+            while (next == null && paths != null && paths.hasNext()) {
+                Path path = paths.next();
+                String name = path.getFileName().toString();
+                if (!accept(name)) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = readAttributes(path);
+                } catch (NoSuchFileException e) {
+                    // removed since the folder was read
+                    continue;
+                }
+                next = new Child(name, toStoredObject(attributes));
+            }
+        } catch (DirectoryIteratorException e) {
+            throw new WebdavException(e.getCause());
+        } catch (IOException e) {
+            throw new WebdavException(e);
+        }
+        return next != null;
+    }
+
+    public Child next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Child child = next;
+        next = null;
+        return child;
+    }
+
+    private BasicFileAttributes readAttributes(Path path) throws IOException {
+        if (stream instanceof SecureDirectoryStream) {
+            return ((SecureDirectoryStream<Path>) stream).getFileAttributeView(
+                    path.getFileName(), BasicFileAttributeView.class)
+                    .readAttributes();
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    static StoredObject toStoredObject(BasicFileAttributes attributes) {
+        StoredObject so = new StoredObject();
+        so.setFolder(attributes.isDirectory());
+        so.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+        so.setCreationDate(new Date(attributes.lastModifiedTime().toMillis()));
+        so.setResourceLength(attributes.size());
+        return so;
+    }
+
+    public void close() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // only the handle of the folder is released
+            }
+        }
+    }
+}
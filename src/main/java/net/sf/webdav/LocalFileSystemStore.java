@@ -23,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Date;
@@ -36,7 +37,8 @@ import net.sf.webdav.exceptions.WebdavException;
  * @author joa
  * @author re
  */
-public class LocalFileSystemStore implements IWebdavStore {
+public class LocalFileSystemStore implements IWebdavStore, ILocalContentStore,
+        IBatchStatStore {
 
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(LocalFileSystemStore.class);
@@ -166,6 +168,12 @@ public class LocalFileSystemStore implements IWebdavStore {
         return childrenNames;
     }
 
+    public Children getChildren(ITransaction transaction, String uri)
+            throws WebdavException {
+        LOG.trace("LocalFileSystemStore.getChildren(" + uri + ")");
+        return new LocalChildren(new File(_root, uri));
+    }
+
     public void removeObject(ITransaction transaction, String uri)
             throws WebdavException {
         File file = new File(_root, uri);
@@ -193,6 +201,23 @@ public class LocalFileSystemStore implements IWebdavStore {
         return in;
     }
 
+    public LocalContent openLocalContent(ITransaction transaction, String uri) {
+        final File file = new File(_root, uri);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new LocalContent() {
+            public Path getPath() {
+                return file.toPath();
+            }
+
+            public void close() {
+                // the file is always there, a PUT replacing it meanwhile is
+                // seen by sendfile as by any other reader
+            }
+        };
+    }
+
     public long getResourceLength(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceLength(" + uri + ")");
@@ -0,0 +1,247 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps the "remote" files in a local directory, one folder per account, so
+ * the MegaFS store can run without network access. Latency, bandwidth and
+ * failures can be simulated to benchmark caching and scheduling offline:
+ * <ul>
+ * <li>megafs.backend.local.root: the directory, megafs-remote by default</li>
+ * <li>megafs.backend.local.latencyMillis: added to every operation</li>
+ * <li>megafs.backend.local.bytesPerSecond: per transfer, 0 is unlimited</li>
+ * <li>megafs.backend.local.failureRate: share of operations that fail</li>
+ * <li>megafs.backend.local.quotaBytes: size of every account</li>
+ * </ul>
+ */
+public class LocalTransferBackend implements IBatchTransferBackend {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(LocalTransferBackend.class);
+
+    private static final long LATENCY_MILLIS = Long.getLong(
+            "megafs.backend.local.latencyMillis", 0);
+    private static final long BYTES_PER_SECOND = Long.getLong(
+            "megafs.backend.local.bytesPerSecond", 0);
+    private static final double FAILURE_RATE = Double.parseDouble(System
+            .getProperty("megafs.backend.local.failureRate", "0"));
+    private static final long QUOTA_BYTES = Long.getLong(
+            "megafs.backend.local.quotaBytes", 53687091200L);
+
+    private static int BUF_SIZE = 65536;
+
+    private final File root;
+
+    public LocalTransferBackend() {
+        this(new File(System.getProperty("megafs.backend.local.root",
+                "megafs-remote")));
+    }
+
+    public LocalTransferBackend(File root) {
+        this.root = root;
+    }
+
+    public void put(Credentials account, File localFile, String remotePath)
+            throws IOException {
+        simulate("put " + remotePath);
+        copy(account, localFile, remotePath);
+    }
+
+    /**
+     * Simulates the latency once for all files.
+     */
+    public Map<String, IOException> putAll(Credentials account, String remoteFolder,
+            Map<String, File> localFiles) throws IOException {
+        simulate("put " + localFiles.size() + " files to " + remoteFolder);
+        Map<String, IOException> failed = new HashMap<String, IOException>();
+        for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+            try {
+                copy(account, entry.getValue(), remoteFolder + "/" + entry.getKey());
+            } catch (IOException e) {
+                failed.put(entry.getKey(), e);
+            }
+        }
+        return failed;
+    }
+
+    private void copy(Credentials account, File localFile, String remotePath)
+            throws IOException {
+        File target = resolve(account, remotePath);
+        if (target.exists()) {
+            throw new FileAlreadyExistsException(remotePath);
+        }
+        if (!target.getParentFile().isDirectory()) {
+            throw new FileNotFoundException("no remote folder for " + remotePath);
+        }
+        File partial = new File(target.getPath() + ".put");
+        try (InputStream in = new ThrottledInputStream(new FileInputStream(localFile));
+             OutputStream out = new FileOutputStream(partial)) {
+            byte[] buffer = new byte[BUF_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
+        }
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public InputStream get(Credentials account, String remotePath)
+            throws IOException {
+        simulate("get " + remotePath);
+        return new ThrottledInputStream(new FileInputStream(resolve(account,
+                remotePath)));
+    }
+
+    public void rm(Credentials account, String remotePath) throws IOException {
+        simulate("rm " + remotePath);
+        File file = resolve(account, remotePath);
+        if (!file.isFile()) {
+            throw new NoSuchFileException(remotePath);
+        }
+        if (!file.delete()) {
+            throw new IOException("cannot remove " + remotePath);
+        }
+    }
+
+    public void mkdir(Credentials account, String remotePath)
+            throws IOException {
+        simulate("mkdir " + remotePath);
+        File folder = resolve(account, remotePath);
+        // created meanwhile by a concurrent mkdir is fine, as with megatools
+        if (!folder.mkdir() && !folder.isDirectory()) {
+            throw new IOException("cannot create folder " + remotePath);
+        }
+    }
+
+    public List<String> ls(Credentials account, String remotePath)
+            throws IOException {
+        simulate("ls " + remotePath);
+        String[] names = resolve(account, remotePath).list();
+        if (names == null) {
+            throw new FileNotFoundException(remotePath);
+        }
+        List<String> paths = new ArrayList<String>();
+        for (String name : names) {
+            if (!name.endsWith(".put")) {
+                paths.add(remotePath + "/" + name);
+            }
+        }
+        return paths;
+    }
+
+    public long quota(Credentials account) throws IOException {
+        simulate("df");
+        return QUOTA_BYTES - used(new File(root, account.getUsername()));
+    }
+
+    public Credentials createAccount() {
+        String username = UUID.randomUUID() + "@megafs.invalid";
+        if (!new File(new File(root, username), "Root").mkdirs()) {
+            LOG.error("Cannot create local account folder in " + root);
+            return null;
+        }
+        return new Credentials(username, "local");
+    }
+
+    private File resolve(Credentials account, String remotePath)
+            throws IOException {
+        if (remotePath.contains("..")) {
+            throw new IOException("invalid remote path " + remotePath);
+        }
+        // accounts created before the backend was switched
+        File accountRoot = new File(new File(root, account.getUsername()), "Root");
+        accountRoot.mkdirs();
+        return new File(accountRoot.getParentFile(), remotePath);
+    }
+
+    private long used(File folder) {
+        long used = 0;
+        File[] children = folder.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            used += children[i].isDirectory() ? used(children[i])
+                    : children[i].length();
+        }
+        return used;
+    }
+
+    private void simulate(String operation) throws IOException {
+        if (LATENCY_MILLIS > 0) {
+            sleep(LATENCY_MILLIS);
+        }
+        if (FAILURE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < FAILURE_RATE) {
+            throw new IOException("simulated failure of " + operation);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    /**
+     * Delivers the content no faster than the configured bandwidth.
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+
+        private final long started = System.nanoTime();
+        private long transferred = 0;
+
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                throttle(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                throttle(read);
+            }
+            return read;
+        }
+
+        private void throttle(int read) throws IOException {
+            if (BYTES_PER_SECOND <= 0) {
+                return;
+            }
+            transferred += read;
+            long due = transferred * 1000 / BYTES_PER_SECOND;
+            long elapsed = (System.nanoTime() - started) / 1000000;
+            if (due > elapsed) {
+                sleep(due - elapsed);
+            }
+        }
+    }
+}
@@ -18,8 +18,20 @@ package net.sf.webdav;
 import net.sf.webdav.exceptions.WebdavException;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * Reference Implementation of WebdavStore
@@ -27,23 +39,75 @@ import java.util.*;
  * @author joa
  * @author re
  */
-public class MegaFSFileSystemStore implements IWebdavStore {
+public class MegaFSFileSystemStore implements IWebdavStore, ILocalContentStore,
+        IBatchStatStore {
 
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(MegaFSFileSystemStore.class);
 
     private static int BUF_SIZE = 65536;
 
+    /**
+     * how long a link handed to sendfile is kept, the container has to have
+     * opened it by then
+     */
+    private static final long SENDFILE_GRACE_MILLIS = Long.getLong(
+            "megafs.sendfile.graceMillis", 60000);
+
     private File _root = null;
     private Database database;
+    private UploadQueue uploadQueue;
+    private LocalCache cache;
+    private ExecutorService downloadExecutor = Executors
+            .newCachedThreadPool(new DaemonThreadFactory("megafs-download"));
+
+    /**
+     * local directory for the links to cached files handed to sendfile, on
+     * the same file system as the root
+     */
+    private File snapshots = new File(System.getProperty(
+            "megafs.sendfile.directory", "megafs-sendfile"));
+    private ScheduledExecutorService snapshotCleaner = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("megafs-sendfile"));
+
+    /**
+     * keys: uri value: the transfer currently fetching that file, shared by
+     * all requests for it
+     */
+    private final Map<String, RemoteDownload> downloads = new HashMap<String, RemoteDownload>();
+
+    /**
+     * uris whose content is being written, until the new content is linked
+     * or queued for upload; PUT holds the resource lock, so one writer each
+     */
+    private final Set<String> writing = ConcurrentHashMap.newKeySet();
 
     public MegaFSFileSystemStore(File root) {
         _root = root;
         this.database = new Database();
+        this.uploadQueue = new UploadQueue(database, root);
+        this.cache = new LocalCache(root, new Predicate<String>() {
+            public boolean test(String uri) {
+                NamespaceIndex.Entry entry = database.getNamespace().get(uri);
+                return !isChanging(uri) && entry != null
+                        && entry.getSize() == new File(_root, uri).length();
+            }
+        });
+        uploadQueue.resume();
+        cache.start();
+        // links left by a stop, nothing is sending them anymore
+        File[] leftovers = snapshots.listFiles();
+        for (int i = 0; leftovers != null && i < leftovers.length; i++) {
+            leftovers[i].delete();
+        }
     }
 
     public void destroy() {
-        ;
+        cache.shutdown();
+        uploadQueue.shutdown();
+        downloadExecutor.shutdownNow();
+        snapshotCleaner.shutdownNow();
+        database.close();
     }
 
     public ITransaction begin(Principal principal) throws WebdavException {
@@ -81,7 +145,8 @@ public class MegaFSFileSystemStore implements IWebdavStore {
         System.out.println("CREATE FOLDER");
         LOG.trace("LocalFileSystemStore.createFolder(" + uri + ")");
         File file = new File(_root, uri);
-        if (!file.mkdir())
+        // the parent may only exist on MEGA so far
+        if (!(file.mkdirs() || file.isDirectory()) || !database.createDirectory(uri))
             throw new WebdavException("cannot create folder: " + uri);
     }
 
@@ -90,6 +155,7 @@ public class MegaFSFileSystemStore implements IWebdavStore {
         LOG.trace("LocalFileSystemStore.createResource(" + uri + ")");
         File file = new File(_root, uri);
         try {
+            file.getParentFile().mkdirs();
             if (!file.createNewFile())
                 throw new WebdavException("cannot create file: " + uri);
         } catch (IOException e) {
@@ -106,16 +172,30 @@ public class MegaFSFileSystemStore implements IWebdavStore {
 
         LOG.trace("LocalFileSystemStore.setResourceContent(" + uri + ")");
         File file = new File(_root, uri);
+        // written aside and moved into place, so readers and links of the
+        // old content keep it
+        File partial = new File(file.getPath() + "." + UUID.randomUUID()
+                + RemoteDownload.PARTIAL_SUFFIX);
+        cache.pin(uri);
+        // from the first byte on the recorded hash isn't the content's
+        writing.add(uri);
         try {
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(
-                    file), BUF_SIZE);
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            FileOutputStream fos = new FileOutputStream(partial);
+            OutputStream os = new BufferedOutputStream(fos, BUF_SIZE);
             try {
                 int read;
                 byte[] copyBuffer = new byte[BUF_SIZE];
 
                 while ((read = is.read(copyBuffer, 0, copyBuffer.length)) != -1) {
                     os.write(copyBuffer, 0, read);
+                    // hashed on the way through, the file isn't read again
+                    digest.update(copyBuffer, 0, read);
                 }
+                // the upload happens after we return, so the local copy
+                // has to survive a crash until then
+                os.flush();
+                fos.getFD().sync();
             } finally {
                 try {
                     is.close();
@@ -123,56 +203,100 @@ public class MegaFSFileSystemStore implements IWebdavStore {
                     os.close();
                 }
             }
+            Files.move(partial.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            long length = -1;
+
+            try {
+                length = file.length();
+            } catch (SecurityException e) {
+                LOG.error("LocalFileSystemStore.setResourceContent(" + uri
+                        + ") failed" + "\nCan't get file.length");
+            }
+            String sha1 = Database.toHex(digest);
+            if (length != 0) {
+                if (database.isDuplicateHash(sha1)) {
+                    LOG.trace("Content of " + uri + " is already on MEGA");
+                    // an upload of the previous content is obsolete now
+                    uploadQueue.cancel(_root + uri);
+                    database.linkPath(uri, sha1);
+                } else {
+                    uploadQueue.schedule(_root + uri, sha1);
+                }
+            }
+            cache.added(uri, length, true);
+            return length;
+        } catch (NoSuchAlgorithmException e) {
+            throw new WebdavException(e);
         } catch (IOException e) {
             LOG.error("LocalFileSystemStore.setResourceContent(" + uri
                     + ") failed");
+            partial.delete();
             throw new WebdavException(e);
+        } finally {
+            writing.remove(uri);
+            cache.unpin(uri);
         }
-        long length = -1;
+    }
 
-        try {
-            length = file.length();
-        } catch (SecurityException e) {
-            LOG.error("LocalFileSystemStore.setResourceContent(" + uri
-                    + ") failed" + "\nCan't get file.length");
-        }
-        if (length != 0) {
-            database.upload(_root + uri);
-        }
-        return length;
+    /**
+     * @return whether the local file may differ from what the database
+     *  records for <code>uri</code>: it is being written or waits for its
+     *  upload
+     */
+    private boolean isChanging(String uri) {
+        return writing.contains(uri) || uploadQueue.isPending(_root + uri);
     }
 
     public String[] getChildrenNames(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getChildrenNames(" + uri + ")");
         File file = new File(_root, uri);
+        NamespaceIndex namespace = database.getNamespace();
         String[] childrenNames = null;
-        if (file.isDirectory()) {
+        if (file.isDirectory() || namespace.isFolder(uri)) {
+            Set<String> childSet = new HashSet<String>(namespace.getChildren(uri));
             File[] children = file.listFiles();
-            List<String> childList = new ArrayList<String>();
             String name = null;
-            for (int i = 0; i < children.length; i++) {
+            for (int i = 0; children != null && i < children.length; i++) {
                 name = children[i].getName();
-                childList.add(name);
+                if (name.endsWith(RemoteDownload.PARTIAL_SUFFIX)) {
+                    continue;
+                }
+                childSet.add(name);
                 LOG.trace("Child " + i + ": " + name);
             }
-            List<String> remoteFileNames = database.getRemoteFileNames();
-            childList.addAll(remoteFileNames);
-            Set<String> removeDuplicatesSet = new HashSet<>(childList);
-            childList.clear();
-            childList.addAll(removeDuplicatesSet);
-            childrenNames = new String[childList.size()];
-            childrenNames = (String[]) childList.toArray(childrenNames);
+            childrenNames = new String[childSet.size()];
+            childrenNames = (String[]) childSet.toArray(childrenNames);
         }
         return childrenNames;
     }
 
+    public Children getChildren(ITransaction transaction, String uri)
+            throws WebdavException {
+        LOG.trace("LocalFileSystemStore.getChildren(" + uri + ")");
+        return new Listing(uri, database.getNamespace().getDirectory(uri));
+    }
+
     public void removeObject(ITransaction transaction, String uri)
             throws WebdavException {
         File file = new File(_root, uri);
-        String fileName = uri.replace("/", "");
-        database.remove("/Root/" + fileName);
-        boolean success = file.delete();
+        if (file.isDirectory() || database.getNamespace().isFolder(uri)) {
+            // children are removed first, so the folder is empty by now
+            boolean success = database.removeDirectory(uri)
+                    && (!file.exists() || file.delete());
+            LOG.trace("LocalFileSystemStore.removeObject(" + uri + ")=" + success);
+            if (!success) {
+                throw new WebdavException("cannot delete object: " + uri);
+            }
+            return;
+        }
+        uploadQueue.cancel(_root + uri);
+        cache.removed(uri);
+        database.remove(uri);
+        // the local copy may have been evicted already
+        boolean success = !file.exists() || file.delete();
         LOG.trace("LocalFileSystemStore.removeObject(" + uri + ")=" + success);
         if (!success) {
             throw new WebdavException("cannot delete object: " + uri);
@@ -184,34 +308,145 @@ public class MegaFSFileSystemStore implements IWebdavStore {
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceContent(" + uri + ")");
         File file = new File(_root, uri);
-        if (file.exists()) {
-            InputStream in;
-            try {
-                in = new BufferedInputStream(new FileInputStream(file));
-            } catch (IOException e) {
-                LOG.error("LocalFileSystemStore.getResourceContent(" + uri
-                        + ") failed");
-                throw new WebdavException(e);
-            }
-            return in;
-        } else {
-            database.download("/Root" + uri, _root + uri);
-            InputStream in;
+        // keeps the cache from evicting the file until the stream is closed
+        cache.pin(uri);
+        try {
+            RemoteDownload download;
+            boolean first = false;
+            synchronized (downloads) {
+                download = downloads.get(uri);
+                if (download == null) {
+                    if (file.exists()) {
+                        cache.hit(uri);
+                        return new PinnedInputStream(new BufferedInputStream(
+                                new FileInputStream(file)), uri);
+                    }
+                    download = new RemoteDownload(file);
+                    downloads.put(uri, download);
+                    first = true;
+                }
+            }
+            if (first) {
+                // starting megatools takes a while, other files are served
+                // meanwhile and requests for this one wait in openStream()
+                startDownload(uri, file, download);
+            }
+            cache.miss(uri);
+            // serve the content while it is being fetched into the cache
+            return new PinnedInputStream(download.openStream(), uri);
+        } catch (IOException e) {
+            cache.unpin(uri);
+            LOG.error("LocalFileSystemStore.getResourceContent(" + uri
+                    + ") failed");
+            throw new WebdavException(e);
+        }
+    }
+
+    /**
+     * Lends out a cached file as a hard link, which keeps the content for
+     * the container's sendfile when the cache evicts the file or a PUT
+     * replaces it meanwhile. The container opens the file only after the
+     * request has been handled and doesn't tell when it is done, so the
+     * link is deleted a grace period after the handle is closed; once
+     * opened, the file doesn't need the name anymore.
+     * <p>
+     * Files still being fetched are only served through
+     * {@link #getResourceContent}, as are files being written or waiting to
+     * be uploaded, whose content may not be the one of the stored object
+     * the request was checked against.
+     */
+    public LocalContent openLocalContent(ITransaction transaction, final String uri) {
+        File file = new File(_root, uri);
+        // only until the link exists
+        cache.pin(uri);
+        try {
+            synchronized (downloads) {
+                if (downloads.containsKey(uri) || !file.isFile() || isChanging(uri)) {
+                    return null;
+                }
+            }
+            final Path snapshot = new File(snapshots, UUID.randomUUID().toString()).toPath();
             try {
-                in = new BufferedInputStream(new FileInputStream(file));
-            } catch (IOException e) {
-                LOG.error("LocalFileSystemStore.getResourceContent(" + uri
-                        + ") failed");
-                throw new WebdavException(e);
+                snapshots.mkdirs();
+                Files.createLink(snapshot, file.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.debug("Can't link " + uri + " for sendfile: " + e);
+                return null;
             }
-            return in;
+            if (isChanging(uri)) {
+                // replaced while it was linked
+                release(snapshot);
+                return null;
+            }
+            cache.hit(uri);
+            return new LocalContent() {
+                private boolean closed = false;
+
+                public Path getPath() {
+                    return snapshot;
+                }
+
+                public synchronized void close() {
+                    if (!closed) {
+                        closed = true;
+                        try {
+                            snapshotCleaner.schedule(new Runnable() {
+                                public void run() {
+                                    release(snapshot);
+                                }
+                            }, SENDFILE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException e) {
+                            // shutting down, it is deleted at the next start
+                        }
+                    }
+                }
+            };
+        } finally {
+            cache.unpin(uri);
+        }
+    }
+
+    private static void release(Path snapshot) {
+        try {
+            Files.deleteIfExists(snapshot);
+        } catch (IOException e) {
+            LOG.warn("Could not delete " + snapshot + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Starts fetching a file into the cache. The download has been registered
+     * under the downloads lock, so concurrent requests for the file attach to
+     * it instead of downloading it again; it is unregistered when done. Must
+     * not be called holding the downloads lock.
+     */
+    private void startDownload(final String uri, final File file,
+            RemoteDownload download) throws IOException {
+        file.getParentFile().mkdirs();
+        download.start(new RemoteDownload.Source() {
+            public InputStream open() throws IOException {
+                return database.openDownload(uri);
+            }
+        }, downloadExecutor, new Runnable() {
+            public void run() {
+                synchronized (downloads) {
+                    downloads.remove(uri);
+                    if (file.exists()) {
+                        cache.added(uri, file.length(), false);
+                    }
+                }
+            }
+        });
+    }
+
     public long getResourceLength(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceLength(" + uri + ")");
         File file = new File(_root, uri);
+        if (!file.exists()) {
+            NamespaceIndex.Entry entry = database.getNamespace().get(uri);
+            return entry == null ? 0 : entry.getSize();
+        }
         return file.length();
     }
 
@@ -220,29 +455,158 @@ public class MegaFSFileSystemStore implements IWebdavStore {
         StoredObject so = null;
 
         File file = new File(_root, uri);
+        NamespaceIndex namespace = database.getNamespace();
+        NamespaceIndex.Entry entry = namespace.get(uri);
         if (file.exists()) {
             so = new StoredObject();
             so.setFolder(file.isDirectory());
             so.setLastModified(new Date(file.lastModified()));
             so.setCreationDate(new Date(file.lastModified()));
             so.setResourceLength(getResourceLength(transaction, uri));
+            setContentHash(so, uri, entry);
             return so;
         }
 
-        List<String> fileNames = new ArrayList<>();
-        fileNames = database.getRemoteFileNames();
-        String fileName = uri.replace("/", "");
-        if (fileNames.contains(fileName)) {
-            so = new StoredObject();
-            so.setFolder(false);
-            so.setLastModified(new Date(1));
-            so.setCreationDate(new Date(1));
-            so.setResourceLength(database.getFileSize("/Root/" + fileName));
-            return so;
+        if (entry != null) {
+            so = remoteObject(false, entry.getSize());
+            so.setContentHash(entry.getSha1());
+        } else if (namespace.isFolder(uri)) {
+            so = remoteObject(true, 0);
         }
+        return so;
+    }
 
+    /**
+     * Gives a local file the hash recorded in the database, if that is the
+     * hash of what is on disk: the file isn't being written or waiting to be
+     * uploaded and has the recorded size, as for {@link LocalCache}.
+     */
+    private void setContentHash(StoredObject so, String uri,
+            NamespaceIndex.Entry entry) {
+        if (so.isResource() && entry != null
+                && entry.getSize() == so.getResourceLength()
+                && !isChanging(uri)) {
+            so.setContentHash(entry.getSha1());
+        }
+    }
 
+    /**
+     * Metadata of a file or folder that is only known from the database.
+     */
+    private static StoredObject remoteObject(boolean folder, long length) {
+        StoredObject so = new StoredObject();
+        so.setFolder(folder);
+        so.setLastModified(new Date(1));
+        so.setCreationDate(new Date(1));
+        so.setResourceLength(length);
         return so;
     }
 
+    public LocalCache getCache() {
+        return cache;
+    }
+
+    /**
+     * The children of a folder: what is on the local disk first, then what
+     * is only in the database.
+     */
+    private class Listing implements Children {
+
+        private final String uri;
+        private final LocalChildren local;
+        private final NamespaceIndex.Directory directory;
+        private final Set<String> listed = new HashSet<String>();
+        private Iterator<String> folders = null;
+        private Iterator<Map.Entry<String, NamespaceIndex.Entry>> files = null;
+        private Child next = null;
+
+        Listing(String uri, NamespaceIndex.Directory directory) {
+            this.uri = uri.endsWith("/") ? uri : uri + "/";
+            this.local = new LocalChildren(new File(_root, uri)) {
+                @Override
+                protected boolean accept(String name) {
+                    return !name.endsWith(RemoteDownload.PARTIAL_SUFFIX);
+                }
+            };
+            this.directory = directory;
+        }
+
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (local.hasNext()) {
+                next = local.next();
+                listed.add(next.getName());
+                if (directory != null) {
+                    setContentHash(next.getStoredObject(), uri + next.getName(),
+                            directory.files.get(next.getName()));
+                }
+                return true;
+            }
+            if (directory == null) {
+                return false;
+            }
+            if (folders == null) {
+                folders = directory.folders.keySet().iterator();
+                files = directory.files.entrySet().iterator();
+            }
+            while (next == null && folders.hasNext()) {
+                String name = folders.next();
+                if (!listed.contains(name)) {
+                    next = new Child(name, remoteObject(true, 0));
+                }
+            }
+            while (next == null && files.hasNext()) {
+                Map.Entry<String, NamespaceIndex.Entry> file = files.next();
+                if (!listed.contains(file.getKey())) {
+                    StoredObject so = remoteObject(false, file.getValue()
+                            .getSize());
+                    so.setContentHash(file.getValue().getSha1());
+                    next = new Child(file.getKey(), so);
+                }
+            }
+            return next != null;
+        }
+
+        public Child next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Child child = next;
+            next = null;
+            return child;
+        }
+
+        public void close() {
+            local.close();
+        }
+    }
+
+    /**
+     * Releases the cache pin of a file once its content stream is closed.
+     */
+    private class PinnedInputStream extends FilterInputStream {
+
+        private final String uri;
+        private boolean closed = false;
+
+        PinnedInputStream(InputStream in, String uri) {
+            super(in);
+            this.uri = uri;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    cache.unpin(uri);
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,442 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers to MEGA through the megatools command line client. The binary
+ * is looked up on the PATH unless megafs.megatools names another one.
+ * <p>
+ * Transfers are killed when they report no progress for
+ * megafs.megatools.stallSeconds (60 by default), all other commands when
+ * they take longer than megafs.megatools.timeoutSeconds (120 by default).
+ */
+public class MegatoolsTransferBackend implements IBatchTransferBackend {
+
+    private static final long STALL_MILLIS = Long.getLong(
+            "megafs.megatools.stallSeconds", 60) * 1000;
+    private static final long TIMEOUT_MILLIS = Long.getLong(
+            "megafs.megatools.timeoutSeconds", 120) * 1000;
+
+    final String binary = System.getProperty("megafs.megatools", "megatools");
+
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    public void put(Credentials account, File localFile, String remotePath)
+            throws IOException {
+        System.out.println("Uploading: " + localFile + " to " + remotePath);
+        ProcessRunner.Result result;
+        ProcessRunner.ProgressListener progress = metrics.started();
+        try {
+            result = new ProcessRunner(command(account, "put",
+                    "--path=" + remotePath, localFile.getPath()))
+                    .setStallTimeout(STALL_MILLIS)
+                    .setProgressListener(progress).run();
+            check(result);
+            if (result.getLastLine().contains("Upload failed for")) {
+                throw new IOException(result.getLastLine());
+            }
+        } catch (IOException e) {
+            metrics.failed(e);
+            if (e.getMessage() != null && e.getMessage().contains("File already exists")) {
+                throw new FileAlreadyExistsException(remotePath);
+            }
+            System.out.println("Upload of " + remotePath + " failed: " + e.getMessage()
+                    + " (" + metrics + ")");
+            throw e;
+        }
+        metrics.completed();
+    }
+
+    /**
+     * Uploads all files with one megatools put. megatools names the remote
+     * files after the local ones, so files that are to get another name are
+     * linked under it first, into a directory of their own next to them.
+     * Which files failed is taken from the error lines naming them; if the
+     * command fails without naming any, all of them count as failed.
+     */
+    public Map<String, IOException> putAll(Credentials account, String remoteFolder,
+            Map<String, File> localFiles) throws IOException {
+        System.out.println("Uploading " + localFiles.size() + " files to " + remoteFolder);
+        Map<String, IOException> failed = new HashMap<String, IOException>();
+        Map<File, File> staging = new HashMap<File, File>();
+        Map<String, File> staged = new LinkedHashMap<String, File>();
+        try {
+            for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+                try {
+                    staged.put(entry.getKey(), stage(entry.getValue(), entry.getKey(), staging));
+                } catch (IOException e) {
+                    failed.put(entry.getKey(), e);
+                }
+            }
+            if (staged.isEmpty()) {
+                return failed;
+            }
+            List<String> arguments = new ArrayList<String>();
+            arguments.add("put");
+            arguments.add("--path=" + remoteFolder);
+            for (File localFile : staged.values()) {
+                arguments.add(localFile.getPath());
+            }
+            ProcessRunner.Result result;
+            ProcessRunner.ProgressListener progress = metrics.started();
+            try {
+                result = new ProcessRunner(command(account, arguments.toArray(new String[0])))
+                        .setStallTimeout(STALL_MILLIS)
+                        .setProgressListener(progress).run();
+            } catch (IOException e) {
+                metrics.failed(e);
+                throw e;
+            }
+            int named = failed.size();
+            for (Map.Entry<String, File> entry : staged.entrySet()) {
+                String remotePath = remoteFolder + "/" + entry.getKey();
+                for (String line : result.getLines()) {
+                    if (!mentions(line, entry.getValue().getPath()) && !mentions(line, remotePath)) {
+                        continue;
+                    }
+                    if (line.contains("already exists")) {
+                        failed.put(entry.getKey(), new FileAlreadyExistsException(remotePath));
+                    } else if (line.contains("failed") || line.contains("ERROR")) {
+                        failed.put(entry.getKey(), new IOException(line));
+                    }
+                }
+            }
+            if (result.getExitCode() != 0 && failed.size() == named) {
+                IOException e = new IOException(result.getLines().isEmpty() ? binary
+                        + " exited with " + result.getExitCode() : result.getLastLine());
+                metrics.failed(e);
+                throw e;
+            }
+            metrics.completed();
+            return failed;
+        } finally {
+            for (File directory : staging.values()) {
+                File[] links = directory.listFiles();
+                for (int i = 0; links != null && i < links.length; i++) {
+                    links[i].delete();
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * Links a file under the name it is to get remotely, into a directory
+     * next to it, so no copy is needed. The directory ends like a partial
+     * download so that listings and the cache leave it alone.
+     *
+     * @param staging
+     *      keys: the directories of the local files, values: the directory
+     *      their links go to, created when the first file needs one
+     * @return the file to upload
+     */
+    private static File stage(File localFile, String name, Map<File, File> staging)
+            throws IOException {
+        if (localFile.getName().equals(name)) {
+            return localFile;
+        }
+        File parent = localFile.getAbsoluteFile().getParentFile();
+        File directory = staging.get(parent);
+        if (directory == null) {
+            directory = new File(parent, UUID.randomUUID() + RemoteDownload.PARTIAL_SUFFIX);
+            Files.createDirectory(directory.toPath());
+            staging.put(parent, directory);
+        }
+        File link = new File(directory, name);
+        Files.createLink(link.toPath(), localFile.toPath());
+        return link;
+    }
+
+    /**
+     * @return true if <code>path</code> appears in the line as a whole, not
+     *  as the start of a longer path
+     */
+    private static boolean mentions(String line, String path) {
+        int index = line.indexOf(path);
+        while (index != -1) {
+            int end = index + path.length();
+            if (end == line.length() || " ':\",".indexOf(line.charAt(end)) != -1) {
+                return true;
+            }
+            index = line.indexOf(path, index + 1);
+        }
+        return false;
+    }
+
+    public InputStream get(Credentials account, String remotePath)
+            throws IOException {
+        System.out.println("Streaming " + remotePath);
+        InputStream in = new ProcessRunner(command(account, "get",
+                "--no-progress", "--path=-", remotePath))
+                .setStallTimeout(STALL_MILLIS).stream();
+        return new MeteredInputStream(in, metrics.started());
+    }
+
+    public void rm(Credentials account, String remotePath) throws IOException {
+        try {
+            run(account, "rm", remotePath);
+        } catch (IOException e) {
+            if (e.getMessage() != null && e.getMessage().contains("not found")) {
+                throw new NoSuchFileException(remotePath);
+            }
+            throw e;
+        }
+    }
+
+    public void mkdir(Credentials account, String remotePath)
+            throws IOException {
+        try {
+            run(account, "mkdir", remotePath);
+        } catch (IOException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("already exists")) {
+                throw e;
+            }
+        }
+    }
+
+    public List<String> ls(Credentials account, String remotePath)
+            throws IOException {
+        List<String> paths = new ArrayList<String>();
+        for (String line : run(account, "ls", remotePath)) {
+            if (!line.isEmpty() && !line.equals(remotePath)) {
+                paths.add(line);
+            }
+        }
+        return paths;
+    }
+
+    public long quota(Credentials account) throws IOException {
+        List<String> output = run(account, "df", "--free");
+        try {
+            return Long.parseLong(output.get(output.size() - 1).trim());
+        } catch (RuntimeException e) {
+            throw new IOException("Unexpected df output: " + output);
+        }
+    }
+
+    /**
+     * @return the uploads and downloads done through this backend
+     */
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    private List<String> command(Credentials account, String... arguments) {
+        List<String> cmdList = new ArrayList<String>();
+        cmdList.add(binary);
+        cmdList.add(arguments[0]);
+        cmdList.add("--username=" + account.getUsername());
+        cmdList.add("--password=" + account.getPassword());
+        for (int i = 1; i < arguments.length; i++) {
+            cmdList.add(arguments[i]);
+        }
+        return cmdList;
+    }
+
+    /**
+     * Runs a megatools command to completion.
+     *
+     * @return the lines it printed, standard error included
+     * @throws IOException
+     *      if it couldn't be started, timed out or exited with an error,
+     *      with the last line printed as message
+     */
+    private List<String> run(Credentials account, String... arguments)
+            throws IOException {
+        ProcessRunner.Result result = new ProcessRunner(command(account,
+                arguments)).setTimeout(TIMEOUT_MILLIS).run();
+        check(result);
+        return result.getLines();
+    }
+
+    private void check(ProcessRunner.Result result) throws IOException {
+        if (result.getExitCode() != 0) {
+            throw new IOException(result.getLines().isEmpty() ? binary
+                    + " exited with " + result.getExitCode() : result.getLastLine());
+        }
+    }
+
+    public Credentials createAccount() {
+        try {
+            //first connection get e-mail
+            CookieManager cookieManager = new CookieManager();
+            CookieHandler.setDefault(cookieManager);
+            HttpClient httpClient = HttpClient.newBuilder().cookieHandler(cookieManager).build();
+            HttpRequest httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
+            HttpResponse<String> httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+            String responseText = httpResponse.body();
+            String e_mail = responseText.substring(responseText.indexOf("class=\"mailtext\" value=\"") + 24, responseText.indexOf("class=\"mailtext\" value=\"") + 42);
+            // Generate password and verification code for a  new mega account
+            String password = new Random().ints(13, 33, 122).collect(StringBuilder::new,
+                    StringBuilder::appendCodePoint, StringBuilder::append)
+                    .toString();
+            String verifyCode = getVerifyCodeForNewAccount(e_mail, password);
+            System.out.println("Sleep, waiting for email 90 seconds");
+            //wait for e-mail to arrive and extract readmail value of Mega registration email
+            TimeUnit.SECONDS.sleep(90);
+            httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
+            httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+            responseText = httpResponse.body();
+            String readMail = responseText.substring(responseText.indexOf("readmail.html?mid=") + 18, responseText.indexOf("readmail.html?mid=") + 24);
+            //Potentially make loop to wait even longer when e-mail hasn't arrived
+            if (readMail.equals("welcom")) {
+                System.out.println("Registration e-mail hasn't arrived in time sleeping 90 seconds longer");
+                TimeUnit.SECONDS.sleep(90);
+                httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/")).build();
+                httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+                responseText = httpResponse.body();
+                readMail = responseText.substring(responseText.indexOf("readmail.html?mid=") + 18, responseText.indexOf("readmail.html?mid=") + 24);
+            }
+            //Read Mega registration e-mail and extract the activation link
+            httpRequest = HttpRequest.newBuilder(URI.create("https://10minutemail.net/readmail.html?mid=" + readMail)).build();
+            httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+            responseText = httpResponse.body();
+            String confirmationLink = responseText.substring(responseText.indexOf("#confirm") - 16, responseText.indexOf("#confirm") + 112);
+            boolean verificationSuccessful = verifyNewAccount(verifyCode, confirmationLink);
+            if (verificationSuccessful) {
+                return new Credentials(e_mail, password);
+            }
+        } catch (IOException e) {
+            System.out.println("Http exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Http interrupted exception: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private boolean verifyNewAccount(String verifyCode, String confirmationLink) {
+        try {
+            List<String> cmdList = new ArrayList<String>();
+            cmdList.add(binary);
+            cmdList.add("reg");
+            cmdList.add("--verify");
+            cmdList.add(verifyCode);
+            cmdList.add(confirmationLink);
+            ProcessRunner.Result result = new ProcessRunner(cmdList)
+                    .setTimeout(TIMEOUT_MILLIS).run();
+            for (String line : result.getLines()) {
+                System.out.println(line);
+            }
+            if (result.getLastLine().contains("Account registered successfully!")) {
+                return true;
+            } else {
+                System.out.println("Error confirming the account");
+                return false;
+            }
+
+        } catch (IOException e) {
+            System.out.println("Process couldn't start" + e.getMessage());
+        }
+        return false;
+    }
+
+    private String getVerifyCodeForNewAccount(String e_mail, String password) {
+        try {
+            List<String> cmdList = new ArrayList<String>();
+            cmdList.add(binary);
+            cmdList.add("reg");
+            cmdList.add("--scripted");
+            cmdList.add("--register");
+            cmdList.add("--name=test");
+            cmdList.add("--email=" + e_mail);
+            cmdList.add("--password=" + password);
+            ProcessRunner.Result result = new ProcessRunner(cmdList)
+                    .setTimeout(TIMEOUT_MILLIS).run();
+            String lastLine = result.getLastLine();
+            if (lastLine.contains("verify")) {
+                return lastLine.substring(lastLine.lastIndexOf("--verify ") + 9, lastLine.lastIndexOf("--verify ") + 70);
+            } else {
+                System.out.println("Error getting verify line");
+                for (String s : result.getLines()) {
+                    System.out.println(s);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Process couldn't start" + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Counts a download as completed once its end has been read.
+     */
+    private class MeteredInputStream extends FilterInputStream {
+
+        private final ProcessRunner.ProgressListener progress;
+        private long transferred = 0;
+        private boolean done = false;
+
+        MeteredInputStream(InputStream in, ProcessRunner.ProgressListener progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = super.read(b, off, len);
+            } catch (IOException e) {
+                finish(e);
+                throw e;
+            }
+            if (read == -1) {
+                finish(null);
+            } else {
+                transferred += read;
+                progress.progress(transferred, 0);
+            }
+            return read;
+        }
+
+        private void finish(IOException e) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (e == null) {
+                metrics.completed();
+            } else {
+                metrics.failed(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!done) {
+                    finish(new IOException("closed before the end"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package net.sf.webdav;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory resident copy of the directories and namespace tables, so that stat
+ * and listing requests don't have to go to SQLite. A folder is read with a
+ * single indexed query the first time it is needed and kept from then on,
+ * which makes a lookup O(1) and a listing O(children) without loading the
+ * whole tree at startup.
+ * <p>
+ * {@link Database} keeps the loaded folders up to date whenever it commits a
+ * change to the namespace.
+ */
+public class NamespaceIndex {
+
+    /**
+     * Reads the contents of a folder from the database.
+     */
+    public interface Loader {
+
+        /**
+         * Fills <code>listing</code> with the children of the folder with
+         * the same id, using {@link Directory#addFolder(String, long)} and
+         * {@link Directory#addFile(String, String, long)}.
+         */
+        void load(Directory listing);
+    }
+
+    private final Loader loader;
+
+    /**
+     * keys: folder path value: the folder, only for folders that have been
+     * looked up
+     */
+    private final ConcurrentHashMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+    public NamespaceIndex(long rootId, Loader loader) {
+        this.loader = loader;
+        directories.put("/", new Directory(rootId));
+    }
+
+    /**
+     * Brings a WebDAV path into the form used as key: no duplicate or
+     * trailing slashes, "/" for the root.
+     */
+    public static String normalize(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return "/";
+        }
+        String path = uri.replace('\\', '/');
+        while (path.contains("//")) {
+            path = path.replace("//", "/");
+        }
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    static String parentOf(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
+    static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the loaded folder at <code>uri</code> or <code>null</code> if
+     *  there is no such folder
+     */
+    public Directory getDirectory(String uri) {
+        String path = normalize(uri);
+        Directory directory = directories.get(path);
+        if (directory == null) {
+            if (path.equals("/")) {
+                return null;
+            }
+            Directory parent = getDirectory(parentOf(path));
+            if (parent == null) {
+                return null;
+            }
+            Long id = parent.folders.get(nameOf(path));
+            if (id == null) {
+                return null;
+            }
+            Directory created = new Directory(id);
+            directory = directories.putIfAbsent(path, created);
+            if (directory == null) {
+                directory = created;
+            }
+        }
+        load(directory);
+        return directory;
+    }
+
+    /**
+     * Reads a folder without holding its lock, so the database is never
+     * waited for with it. A change committed while the query ran bumps the
+     * version and the folder is read again.
+     */
+    private void load(Directory directory) {
+        while (!directory.loaded) {
+            long version;
+            synchronized (directory) {
+                version = directory.version;
+            }
+            Directory listing = new Directory(directory.id);
+            loader.load(listing);
+            synchronized (directory) {
+                if (!directory.loaded && directory.version == version) {
+                    directory.folders.putAll(listing.folders);
+                    directory.files.putAll(listing.files);
+                    directory.loaded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file at <code>uri</code> or <code>null</code>
+     */
+    public Entry get(String uri) {
+        String path = normalize(uri);
+        if (path.equals("/")) {
+            return null;
+        }
+        Directory parent = getDirectory(parentOf(path));
+        return parent == null ? null : parent.files.get(nameOf(path));
+    }
+
+    public boolean isFolder(String uri) {
+        return getDirectory(uri) != null;
+    }
+
+    /**
+     * @return the names of the files and folders in the folder at
+     *  <code>uri</code>, empty if there is no such folder
+     */
+    public Set<String> getChildren(String uri) {
+        Directory directory = getDirectory(uri);
+        if (directory == null) {
+            return Collections.<String> emptySet();
+        }
+        Set<String> names = new HashSet<String>(directory.folders.keySet());
+        names.addAll(directory.files.keySet());
+        return names;
+    }
+
+    void putFile(String uri, String sha1, long size) {
+        String path = normalize(uri);
+        Directory parent = directories.get(parentOf(path));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.version++;
+                // folders not loaded yet will read the change from the database
+                if (parent.loaded) {
+                    parent.files.put(nameOf(path).intern(), new Entry(sha1.intern(), size));
+                }
+            }
+        }
+    }
+
+    void removeFile(String uri) {
+        String path = normalize(uri);
+        Directory parent = directories.get(parentOf(path));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.version++;
+                parent.files.remove(nameOf(path));
+            }
+        }
+    }
+
+    void putFolder(String uri, long id) {
+        String path = normalize(uri);
+        Directory parent = directories.get(parentOf(path));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.version++;
+                if (parent.loaded) {
+                    parent.folders.put(nameOf(path).intern(), id);
+                }
+            }
+        }
+    }
+
+    void removeFolder(String uri) {
+        String path = normalize(uri);
+        Directory parent = directories.get(parentOf(path));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.version++;
+                parent.folders.remove(nameOf(path));
+            }
+        }
+        Iterator<String> paths = directories.keySet().iterator();
+        while (paths.hasNext()) {
+            String loaded = paths.next();
+            if (loaded.equals(path) || loaded.startsWith(path + "/")) {
+                paths.remove();
+            }
+        }
+    }
+
+    /**
+     * A folder and, once loaded, its direct children.
+     */
+    public static class Directory {
+
+        private final long id;
+        private volatile boolean loaded = false;
+        private long version = 0;
+
+        /**
+         * keys: name value: folder id
+         */
+        final ConcurrentHashMap<String, Long> folders = new ConcurrentHashMap<String, Long>();
+
+        /**
+         * keys: name value: the file
+         */
+        final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<String, Entry>();
+
+        Directory(long id) {
+            this.id = id;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        void addFolder(String name, long id) {
+            folders.put(name.intern(), id);
+        }
+
+        void addFile(String name, String sha1, long size) {
+            files.put(name.intern(), new Entry(sha1.intern(), size));
+        }
+    }
+
+    public static class Entry {
+
+        private final String sha1;
+        private final long size;
+
+        Entry(String sha1, long size) {
+            this.sha1 = sha1;
+            this.size = size;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Whole packs fetched from MEGA, kept in a local directory of at most
+ * megafs.pack.cacheBytes (256 MiB by default) so the other members of a
+ * pack are at hand once one of them was read. The least recently read packs
+ * are deleted first. Packs just uploaded are adopted from the
+ * {@link Packer} instead of being fetched again.
+ */
+public class PackCache {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(PackCache.class);
+
+    private static final long CACHE_BYTES = Long.getLong(
+            "megafs.pack.cacheBytes", 256L << 20);
+
+    private static int BUF_SIZE = 65536;
+
+    private final File directory;
+    private final ITransferBackend backend;
+
+    /**
+     * keys: pack id value: the fetch running for that pack, shared by all
+     * readers
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<File>> fetches = new ConcurrentHashMap<Long, CompletableFuture<File>>();
+
+    public PackCache(File directory, ITransferBackend backend) {
+        this.directory = directory;
+        this.backend = backend;
+    }
+
+    /**
+     * Opens a stream over one member of a pack. The pack is only fetched
+     * when the stream is first read, so this doesn't block.
+     */
+    public InputStream open(long packId, ITransferBackend.Credentials account,
+            String remotePath, long offset, long length) {
+        return new MemberInputStream(packId, account, remotePath, offset, length);
+    }
+
+    /**
+     * @return the cached copy of the pack, fetched first if there is none
+     */
+    public File fetch(long packId, ITransferBackend.Credentials account,
+            String remotePath) throws IOException {
+        File cached = file(packId);
+        if (cached.exists()) {
+            cached.setLastModified(System.currentTimeMillis());
+            return cached;
+        }
+        CompletableFuture<File> fetch = new CompletableFuture<File>();
+        CompletableFuture<File> running = fetches.putIfAbsent(packId, fetch);
+        if (running == null) {
+            try {
+                download(account, remotePath, cached);
+                fetch.complete(cached);
+            } catch (IOException e) {
+                fetch.completeExceptionally(e);
+            } finally {
+                fetches.remove(packId, fetch);
+            }
+            running = fetch;
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while fetching " + remotePath);
+        } catch (ExecutionException e) {
+            throw new IOException("fetching " + remotePath + " failed", e.getCause());
+        }
+    }
+
+    private void download(ITransferBackend.Credentials account,
+            String remotePath, File target) throws IOException {
+        directory.mkdirs();
+        File partial = new File(target.getPath() + RemoteDownload.PARTIAL_SUFFIX);
+        try (InputStream in = backend.get(account, remotePath)) {
+            Files.copy(in, partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
+        }
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOG.debug("Fetched " + remotePath + " into the pack cache");
+        trim(target);
+    }
+
+    /**
+     * Keeps a pack that was just uploaded from the local file it was built
+     * in.
+     */
+    public void adopt(long packId, File packFile) {
+        directory.mkdirs();
+        try {
+            Files.move(packFile.toPath(), file(packId).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            trim(file(packId));
+        } catch (IOException e) {
+            LOG.warn("Cannot keep " + packFile + " in the pack cache: " + e.getMessage());
+            packFile.delete();
+        }
+    }
+
+    /**
+     * Forgets a pack that was removed from MEGA.
+     */
+    public void evict(long packId) {
+        file(packId).delete();
+    }
+
+    private File file(long packId) {
+        return new File(directory, packId + Packer.SUFFIX);
+    }
+
+    /**
+     * Deletes the least recently read packs until the cache fits its size,
+     * except <code>keep</code>, which is about to be read. Readers still
+     * holding a deleted pack open can finish.
+     */
+    private synchronized void trim(File keep) {
+        File[] packs = directory.listFiles();
+        if (packs == null) {
+            return;
+        }
+        long total = 0;
+        for (File pack : packs) {
+            total += pack.length();
+        }
+        if (total <= CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(packs, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < packs.length && total > CACHE_BYTES; i++) {
+            if (!packs[i].getName().endsWith(Packer.SUFFIX) || packs[i].equals(keep)) {
+                continue;
+            }
+            long length = packs[i].length();
+            if (packs[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Reads one member from the cached pack, fetching the pack on the first
+     * read.
+     */
+    private class MemberInputStream extends InputStream {
+
+        private final long packId;
+        private final ITransferBackend.Credentials account;
+        private final String remotePath;
+        private final long end;
+        private long position;
+        private FileChannel channel = null;
+
+        MemberInputStream(long packId, ITransferBackend.Credentials account,
+                String remotePath, long offset, long length) {
+            this.packId = packId;
+            this.account = account;
+            this.remotePath = remotePath;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(fetch(packId, account, remotePath).toPath(),
+                        StandardOpenOption.READ);
+            }
+            int toRead = (int) Math.min(Math.min(len, BUF_SIZE), end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read == -1) {
+                throw new IOException("pack " + remotePath + " is shorter than its index says");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
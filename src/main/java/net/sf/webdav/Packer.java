@@ -0,0 +1,274 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Appends files smaller than megafs.pack.threshold bytes to pack files, so
+ * thousands of small files become a few remote objects instead of thousands
+ * of MEGA round trips. Packing is off unless the threshold is set.
+ * <p>
+ * A pack takes members until it reaches megafs.pack.size bytes or
+ * megafs.pack.windowMillis have passed since its first member arrived. The
+ * first member's upload then uploads the pack, the others wait for it. Where
+ * each member ended up is recorded by {@link Database} in the packs and
+ * blobs tables, nothing but the content is in the pack file.
+ */
+public class Packer {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(Packer.class);
+
+    private static final long THRESHOLD = Long.getLong(
+            "megafs.pack.threshold", 0);
+    private static final long PACK_SIZE = Long.getLong("megafs.pack.size",
+            16L << 20);
+    private static final long WINDOW_MILLIS = Long.getLong(
+            "megafs.pack.windowMillis", 500);
+
+    static final String SUFFIX = ".pack";
+
+    private static int BUF_SIZE = 65536;
+
+    private final File directory;
+    private Pack open = null;
+
+    /**
+     * @param directory
+     *      where packs are assembled; packs left there by a previous run are
+     *      deleted, their members are still in the upload journal
+     */
+    public Packer(File directory) {
+        this.directory = directory;
+        File[] abandoned = directory.listFiles();
+        for (int i = 0; abandoned != null && i < abandoned.length; i++) {
+            if (abandoned[i].getName().endsWith(SUFFIX)) {
+                abandoned[i].delete();
+            }
+        }
+    }
+
+    /**
+     * @return true if files of this size are packed
+     */
+    public static boolean accepts(long fileSize) {
+        return fileSize < THRESHOLD;
+    }
+
+    /**
+     * @return the live share of a pack below which it is worth compacting
+     */
+    static double getCompactBelow() {
+        return Double.parseDouble(System.getProperty(
+                "megafs.pack.compactBelow", "0.5"));
+    }
+
+    /**
+     * Copies a file into the open pack, starting a new one if there is none.
+     *
+     * @return where the file went; if it is the first member of its pack
+     *  the caller has to {@link #seal(Pack)} and upload the pack
+     */
+    public synchronized Member add(File localFile) throws IOException {
+        boolean first = false;
+        if (open == null) {
+            open = create();
+            first = true;
+        }
+        Member member;
+        try (InputStream in = new FileInputStream(localFile)) {
+            member = open.append(in, first);
+        } catch (IOException e) {
+            if (first) {
+                // nobody else would upload it
+                open.close();
+                open.file.delete();
+                open = null;
+            }
+            throw e;
+        }
+        if (open.size >= PACK_SIZE) {
+            open = null;
+            notifyAll();
+        }
+        return member;
+    }
+
+    /**
+     * Waits until the pack is full or its window has passed, stops it
+     * taking members and syncs it to disk.
+     */
+    public void seal(Pack pack) throws IOException {
+        long deadline = System.currentTimeMillis() + WINDOW_MILLIS;
+        synchronized (this) {
+            long remaining;
+            while (open == pack && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (open == pack) {
+                open = null;
+            }
+        }
+        pack.close();
+        LOG.debug("Sealed " + pack.file.getName() + " with " + pack.members.size()
+                + " members, " + pack.size + " bytes");
+    }
+
+    /**
+     * Starts a pack that only the caller adds to, for compaction.
+     */
+    public Pack create() throws IOException {
+        directory.mkdirs();
+        return new Pack(new File(directory, UUID.randomUUID() + SUFFIX));
+    }
+
+    /**
+     * A pack file being assembled and uploaded.
+     */
+    public static class Pack {
+
+        private final File file;
+        private final FileChannel out;
+        private final List<Member> members = new ArrayList<Member>();
+        private final CompletableFuture<Boolean> uploaded = new CompletableFuture<Boolean>();
+        private long size = 0;
+
+        Pack(File file) throws IOException {
+            this.file = file;
+            this.out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Appends content, hashing it on the way.
+         */
+        public synchronized Member append(InputStream in, boolean first) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            long offset = size;
+            try {
+                byte[] copyBuffer = new byte[BUF_SIZE];
+                int read;
+                while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+                    ByteBuffer buffer = ByteBuffer.wrap(copyBuffer, 0, read);
+                    while (buffer.hasRemaining()) {
+                        size += out.write(buffer, size);
+                    }
+                    digest.update(copyBuffer, 0, read);
+                }
+            } catch (IOException e) {
+                // drop what was written of the member
+                size = offset;
+                out.truncate(offset);
+                throw e;
+            }
+            Member member = new Member(this, Database.toHex(digest), offset,
+                    size - offset, first);
+            members.add(member);
+            return member;
+        }
+
+        void close() throws IOException {
+            out.force(true);
+            out.close();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public synchronized long getSize() {
+            return size;
+        }
+
+        public synchronized List<Member> getMembers() {
+            return new ArrayList<Member>(members);
+        }
+
+        /**
+         * Reports the outcome of the upload to the members waiting for it.
+         */
+        public void complete(boolean success) {
+            uploaded.complete(success);
+        }
+
+        /**
+         * @return true once the pack has been uploaded and recorded, false if
+         *  that failed
+         */
+        public boolean await() {
+            try {
+                return uploaded.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A file's place in a pack.
+     */
+    public static class Member {
+
+        private final Pack pack;
+        private final String sha1;
+        private final long offset;
+        private final long length;
+        private final boolean first;
+
+        Member(Pack pack, String sha1, long offset, long length, boolean first) {
+            this.pack = pack;
+            this.sha1 = sha1;
+            this.offset = offset;
+            this.length = length;
+            this.first = first;
+        }
+
+        public Pack getPack() {
+            return pack;
+        }
+
+        /**
+         * @return the hash of the content as it was copied into the pack
+         */
+        public String getSha1() {
+            return sha1;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isFirst() {
+            return first;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package net.sf.webdav;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a command line tool such as megatools without ever blocking on its
+ * pipes: standard output and error are drained on their own threads while
+ * the caller waits, so a chatty process can't fill a pipe and hang.
+ * <p>
+ * Progress lines ("file: 12.34% - 1.2 MiB (1234567 bytes) of 10.0 MiB
+ * (512.0 KiB/s)") are parsed and passed to a {@link ProgressListener}
+ * instead of being collected. A process that runs longer than its timeout,
+ * or that neither prints nor transfers anything for the stall timeout, is
+ * killed.
+ */
+public class ProcessRunner {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(ProcessRunner.class);
+
+    private static final ExecutorService DRAINERS = Executors
+            .newCachedThreadPool(new DaemonThreadFactory("megafs-process"));
+    private static final ScheduledExecutorService WATCHDOG = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("megafs-watchdog"));
+
+    private static final Pattern PROGRESS_BYTES = Pattern.compile("\\((\\d+) bytes\\)");
+    private static final Pattern PROGRESS_RATE = Pattern.compile("([0-9.]+) ?([KMGT]?)i?B/s");
+    private static final int KEPT_LINES = 100;
+    private static final long POLL_MILLIS = 250;
+    private static final long DRAIN_MILLIS = 5000;
+
+    /**
+     * Receives the progress a process reports.
+     */
+    public interface ProgressListener {
+
+        void progress(long bytesDone, long bytesPerSecond);
+    }
+
+    private final List<String> command;
+    private long timeoutMillis = 0;
+    private long stallMillis = 0;
+    private ProgressListener listener = null;
+
+    private final ArrayDeque<String> lines = new ArrayDeque<String>();
+    private volatile long lastActivity;
+
+    public ProcessRunner(List<String> command) {
+        this.command = command;
+    }
+
+    /**
+     * @param timeoutMillis
+     *      how long the process may run in total, 0 for no limit
+     */
+    public ProcessRunner setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param stallMillis
+     *      how long the process may go without output or data, 0 for no
+     *      limit
+     */
+    public ProcessRunner setStallTimeout(long stallMillis) {
+        this.stallMillis = stallMillis;
+        return this;
+    }
+
+    public ProcessRunner setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Runs the process to completion.
+     *
+     * @return the exit code and the last lines printed, progress excluded
+     * @throws TimeoutException
+     *      if the process was killed for running too long or stalling
+     * @throws IOException
+     *      if it couldn't be started
+     */
+    public Result run() throws IOException {
+        Process process = start();
+        List<java.util.concurrent.Future<?>> drainers = new ArrayList<java.util.concurrent.Future<?>>();
+        drainers.add(DRAINERS.submit(drain(process.getInputStream())));
+        drainers.add(DRAINERS.submit(drain(process.getErrorStream())));
+        long started = System.currentTimeMillis();
+        try {
+            while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                TimeoutException timeout = checkLimits(started);
+                if (timeout != null) {
+                    kill(process);
+                    throw timeout;
+                }
+            }
+            for (java.util.concurrent.Future<?> drainer : drainers) {
+                drainer.get(DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            kill(process);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running " + command.get(0));
+        } catch (java.util.concurrent.ExecutionException e) {
+            LOG.warn("Reading the output of " + command.get(0) + " failed: " + e.getCause());
+        } catch (java.util.concurrent.TimeoutException e) {
+            // a child process still holds the pipes, what we have is enough
+            LOG.warn("Output of " + command.get(0) + " not closed after exit");
+        }
+        return new Result(process.exitValue(), getLines());
+    }
+
+    /**
+     * Starts the process and returns its standard output for the caller to
+     * consume, while standard error is drained in the background. Reaching
+     * the end of the stream fails with an IOException if the process didn't
+     * exit cleanly; closing it early kills the process.
+     */
+    public InputStream stream() throws IOException {
+        final Process process = start();
+        DRAINERS.execute(drain(process.getErrorStream()));
+        final long started = System.currentTimeMillis();
+        final WatchedInputStream stream = new WatchedInputStream(process);
+        stream.watchdog = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (!process.isAlive()) {
+                    stream.watchdog.cancel(false);
+                    return;
+                }
+                TimeoutException timeout = checkLimits(started);
+                if (timeout != null) {
+                    // before the kill, so the reader sees it at the end
+                    stream.killedBy = timeout;
+                    stream.watchdog.cancel(false);
+                    kill(process);
+                }
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        return stream;
+    }
+
+    private Process start() throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command(command);
+        Process process = processBuilder.start();
+        process.getOutputStream().close();
+        lastActivity = System.currentTimeMillis();
+        return process;
+    }
+
+    /**
+     * @return why the process has to be killed, null if it may go on
+     */
+    private TimeoutException checkLimits(long started) {
+        long now = System.currentTimeMillis();
+        if (timeoutMillis > 0 && now - started > timeoutMillis) {
+            return new TimeoutException(command.get(0) + " " + command.get(1)
+                    + " killed after " + timeoutMillis + " ms", false);
+        }
+        if (stallMillis > 0 && now - lastActivity > stallMillis) {
+            return new TimeoutException(command.get(0) + " " + command.get(1)
+                    + " stalled for " + stallMillis + " ms", true);
+        }
+        return null;
+    }
+
+    /**
+     * Kills the process and anything it started, which could otherwise keep
+     * the pipes open.
+     */
+    private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /**
+     * Reads a pipe until it is closed, splitting on carriage returns as well
+     * since progress lines are overwritten in place.
+     */
+    private Runnable drain(final InputStream in) {
+        return new Runnable() {
+            public void run() {
+                try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                    char[] buffer = new char[4096];
+                    StringBuilder line = new StringBuilder();
+                    int read;
+                    while ((read = reader.read(buffer)) != -1) {
+                        lastActivity = System.currentTimeMillis();
+                        for (int i = 0; i < read; i++) {
+                            char c = buffer[i];
+                            if (c == '\n' || c == '\r') {
+                                line(line.toString());
+                                line.setLength(0);
+                            } else {
+                                line.append(c);
+                            }
+                        }
+                    }
+                    line(line.toString());
+                } catch (IOException e) {
+                    // the process was killed
+                }
+            }
+        };
+    }
+
+    private void line(String line) {
+        if (line.isEmpty()) {
+            return;
+        }
+        Matcher bytes = PROGRESS_BYTES.matcher(line);
+        if (bytes.find()) {
+            if (listener != null) {
+                Matcher rate = PROGRESS_RATE.matcher(line);
+                listener.progress(Long.parseLong(bytes.group(1)),
+                        rate.find() ? parseRate(rate.group(1), rate.group(2)) : 0);
+            }
+            return;
+        }
+        LOG.debug(command.get(0) + ": " + line);
+        synchronized (lines) {
+            if (lines.size() == KEPT_LINES) {
+                lines.removeFirst();
+            }
+            lines.addLast(line);
+        }
+    }
+
+    static long parseRate(String value, String unit) {
+        double rate = Double.parseDouble(value);
+        // "" is plain bytes, indexOf would find it at 0 too
+        int exponent = unit.isEmpty() ? 0 : "KMGT".indexOf(unit) + 1;
+        return (long) (rate * Math.pow(1024, exponent));
+    }
+
+    private List<String> getLines() {
+        synchronized (lines) {
+            return new ArrayList<String>(lines);
+        }
+    }
+
+    public static class Result {
+
+        private final int exitCode;
+        private final List<String> lines;
+
+        Result(int exitCode, List<String> lines) {
+            this.exitCode = exitCode;
+            this.lines = lines;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return the last lines printed on standard output and error, in
+         *  order, progress lines excluded
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+
+        public String getLastLine() {
+            return lines.isEmpty() ? "" : lines.get(lines.size() - 1);
+        }
+    }
+
+    /**
+     * Thrown when a process was killed for running too long or stalling.
+     */
+    public static class TimeoutException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean stalled;
+
+        TimeoutException(String message, boolean stalled) {
+            super(message);
+            this.stalled = stalled;
+        }
+
+        /**
+         * @return true if the process stopped making progress, false if it
+         *  ran out of time
+         */
+        public boolean isStalled() {
+            return stalled;
+        }
+    }
+
+    /**
+     * Standard output of a streamed process. Data arriving counts as
+     * activity, the exit code is checked once everything has been read.
+     */
+    private class WatchedInputStream extends FilterInputStream {
+
+        private final Process process;
+        private volatile ScheduledFuture<?> watchdog;
+        private volatile TimeoutException killedBy = null;
+
+        WatchedInputStream(Process process) {
+            super(process.getInputStream());
+            this.process = process;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read == -1) {
+                checkExitValue();
+            } else {
+                lastActivity = System.currentTimeMillis();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                checkExitValue();
+            } else {
+                lastActivity = System.currentTimeMillis();
+            }
+            return read;
+        }
+
+        private void checkExitValue() throws IOException {
+            try {
+                int exitValue = process.waitFor();
+                if (killedBy != null) {
+                    throw killedBy;
+                }
+                if (exitValue != 0) {
+                    List<String> lines = getLines();
+                    throw new IOException(command.get(0) + " exited with " + exitValue
+                            + (lines.isEmpty() ? "" : ": " + lines.get(lines.size() - 1)));
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException("Process got interrupted" + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+                if (process.isAlive()) {
+                    process.destroy();
+                }
+            }
+        }
+    }
+}
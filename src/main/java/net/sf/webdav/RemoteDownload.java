@@ -0,0 +1,249 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+
+/**
+ * A file being fetched from MEGA into the local cache. The remote content is
+ * written to a partial file next to its final location, which is renamed into
+ * place once the transfer has finished. Readers opened with
+ * {@link #openStream()} follow the partial file as it grows, so clients get
+ * the first bytes without waiting for the whole download.
+ * <p>
+ * A download is registered before it is started, so the remote transfer can
+ * be set up without holding a lock that other requests wait for; readers
+ * that come in meanwhile wait for it to start.
+ */
+public class RemoteDownload {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(RemoteDownload.class);
+
+    /**
+     * appended to the name of files that are still being downloaded
+     */
+    public static final String PARTIAL_SUFFIX = ".megafs-part";
+
+    private static int BUF_SIZE = 65536;
+
+    private final Path partial;
+    private final Path target;
+
+    private boolean started = false;
+    private long written = 0;
+    private boolean complete = false;
+    private IOException failure = null;
+
+    /**
+     * Opens the remote content of a download.
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    public RemoteDownload(File target) {
+        this.target = target.toPath();
+        this.partial = new File(target.getPath() + PARTIAL_SUFFIX).toPath();
+    }
+
+    /**
+     * Opens the remote content, creates the partial file and starts copying
+     * the one into the other.
+     *
+     * @param onFinish
+     *      run once the transfer succeeded or failed, after the file has been
+     *      moved into place; also if it couldn't be started
+     * @throws IOException
+     *      if the remote content can't be opened or the partial file can't be
+     *      created
+     */
+    public void start(Source source, Executor executor, final Runnable onFinish)
+            throws IOException {
+        InputStream in = null;
+        final FileChannel out;
+        try {
+            in = source.open();
+            out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                finish(e);
+                onFinish.run();
+            }
+            throw e;
+        }
+        final InputStream remote = in;
+        synchronized (this) {
+            started = true;
+            notifyAll();
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    transfer(remote, out);
+                } finally {
+                    onFinish.run();
+                }
+            }
+        });
+    }
+
+    private void transfer(InputStream source, FileChannel out) {
+        try {
+            try {
+                byte[] copyBuffer = new byte[BUF_SIZE];
+                int read;
+                while ((read = source.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+                    ByteBuffer buffer = ByteBuffer.wrap(copyBuffer, 0, read);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    advance(read);
+                }
+            } finally {
+                try {
+                    source.close();
+                } finally {
+                    out.close();
+                }
+            }
+            synchronized (this) {
+                // openStream() must not see the partial file gone but the
+                // transfer not yet complete
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                finish(null);
+            }
+        } catch (IOException e) {
+            LOG.error("Download to " + target + " failed: " + e.getMessage());
+            try {
+                Files.deleteIfExists(partial);
+            } catch (IOException ignored) {
+                // readers still holding it open, it gets overwritten next time
+            }
+            finish(e);
+        }
+    }
+
+    private synchronized void advance(int read) {
+        written += read;
+        notifyAll();
+    }
+
+    private synchronized void finish(IOException e) {
+        complete = true;
+        failure = e;
+        notifyAll();
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Waits until more than <code>position</code> bytes have arrived or the
+     * transfer ended.
+     *
+     * @return the number of bytes available so far
+     */
+    private synchronized long awaitBeyond(long position) throws IOException {
+        try {
+            while (written <= position && !complete) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + target);
+        }
+        if (failure != null) {
+            throw new IOException("download of " + target + " failed", failure);
+        }
+        return written;
+    }
+
+    /**
+     * Opens a stream over the content, starting at the first byte. Reads block
+     * until the requested bytes have been downloaded. Any number of streams
+     * can be opened, at any time during or after the transfer.
+     *
+     * @throws IOException
+     *      if the transfer failed or the file can't be opened
+     */
+    public synchronized InputStream openStream() throws IOException {
+        try {
+            while (!started && !complete) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + target);
+        }
+        if (failure != null) {
+            throw new IOException("download of " + target + " failed", failure);
+        }
+        Path path = complete ? target : partial;
+        return new FollowingInputStream(FileChannel.open(path,
+                StandardOpenOption.READ));
+    }
+
+    private class FollowingInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position = 0;
+
+        FollowingInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitBeyond(position);
+            if (available <= position) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, available - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long available = awaitBeyond(position);
+            long skipped = Math.min(n, available - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.sf.webdav;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections to the MegaFS SQLite database. The database runs in WAL mode,
+ * so readers don't block the writer and the writer doesn't block readers:
+ * reads are spread over a small pool of connections while all writes go
+ * through one connection behind a lock, which is all SQLite allows anyway.
+ * <p>
+ * Every connection keeps its prepared statements for reuse. Connections are
+ * handed out as {@link Handle}s to be used in try-with-resources; result sets
+ * have to be closed before the handle is, since the statements outlive them.
+ */
+public class SqliteConnections {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(SqliteConnections.class);
+
+    private static final int READERS = Integer.getInteger("megafs.db.readers", 4);
+    private static final int BUSY_TIMEOUT_MILLIS = Integer.getInteger(
+            "megafs.db.busyTimeoutMillis", 5000);
+
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+
+    public SqliteConnections(String url) throws SQLException {
+        writer = open(url);
+        try (Statement statement = writer.connection.createStatement()) {
+            // persistent, later connections open the file in WAL mode
+            statement.execute("PRAGMA journal_mode=WAL");
+        }
+        readers = new ArrayBlockingQueue<PooledConnection>(READERS);
+        for (int i = 0; i < READERS; i++) {
+            readers.add(open(url));
+        }
+    }
+
+    private PooledConnection open(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            // with WAL a commit is durable after the next checkpoint, which
+            // is fine since the journal tables are replayed at startup
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MILLIS);
+        }
+        PooledConnection pooled = new PooledConnection(connection);
+        all.add(pooled);
+        return pooled;
+    }
+
+    /**
+     * Borrows a connection for reading, waiting until one is free. A thread
+     * that holds the writer reads through it, so it sees its own
+     * uncommitted changes.
+     */
+    public Handle reader() throws SQLException {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer();
+        }
+        try {
+            return new Handle(readers.take(), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection");
+        }
+    }
+
+    /**
+     * Takes the write connection, waiting for other writers to finish. The
+     * lock is reentrant, a nested handle must not start a transaction.
+     */
+    public Handle writer() {
+        writeLock.lock();
+        return new Handle(writer, true);
+    }
+
+    public void close() {
+        for (PooledConnection pooled : all) {
+            try {
+                pooled.close();
+            } catch (SQLException e) {
+                LOG.warn("Closing database connection failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class PooledConnection {
+
+        private final Connection connection;
+
+        /**
+         * keys: sql value: the statement prepared for it on this connection
+         */
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement preparedStatement = statements.get(sql);
+            if (preparedStatement == null) {
+                preparedStatement = connection.prepareStatement(sql);
+                statements.put(sql, preparedStatement);
+            } else {
+                preparedStatement.clearParameters();
+            }
+            return preparedStatement;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement preparedStatement : statements.values()) {
+                preparedStatement.close();
+            }
+            statements.clear();
+            connection.close();
+        }
+    }
+
+    /**
+     * A connection borrowed by one thread. Closing it rolls back a
+     * transaction that wasn't committed and gives the connection back.
+     */
+    public class Handle implements AutoCloseable {
+
+        private final PooledConnection pooled;
+        private final boolean write;
+        private boolean inTransaction = false;
+        private boolean closed = false;
+
+        Handle(PooledConnection pooled, boolean write) {
+            this.pooled = pooled;
+            this.write = write;
+        }
+
+        /**
+         * @return a prepared statement for <code>sql</code>, reused across
+         *  calls, with its parameters cleared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return pooled.prepare(sql);
+        }
+
+        /**
+         * Runs a statement that isn't worth caching, like DDL.
+         */
+        public void execute(String sql) throws SQLException {
+            try (Statement statement = pooled.connection.createStatement()) {
+                statement.execute(sql);
+            }
+        }
+
+        public void begin() throws SQLException {
+            if (!write) {
+                throw new SQLException("transactions need the writer");
+            }
+            pooled.connection.setAutoCommit(false);
+            inTransaction = true;
+        }
+
+        public void commit() throws SQLException {
+            pooled.connection.commit();
+            pooled.connection.setAutoCommit(true);
+            inTransaction = false;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (inTransaction) {
+                try {
+                    pooled.connection.rollback();
+                    pooled.connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    LOG.error("Rolling back failed: " + e.getMessage());
+                }
+            }
+            if (write) {
+                writeLock.unlock();
+            } else {
+                readers.add(pooled);
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class StoredObject {
     private Date creationDate;
     private long contentLength;
     private String  mimeType;
+    private String contentHash;
 
     private boolean isNullRessource;
 
@@ -139,6 +140,7 @@ public class StoredObject {
         // this.content = null;
         this.contentLength = 0;
         this.mimeType= null;
+        this.contentHash = null;
     }
 
     /**
@@ -162,4 +164,23 @@ public class StoredObject {
         this.mimeType = mimeType;
     }
 
+    /**
+     * Gets the hash of the content, if the store knows it without reading
+     * the content. It is used as strong entity tag.
+     *
+     * @return the hash, e.g. hex SHA-1, or null
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Set the hash of the content
+     *
+     * @param contentHash the hash, null if it isn't known
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
 }
@@ -0,0 +1,104 @@
+package net.sf.webdav;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the transfers of a backend, fed by the progress its processes
+ * report.
+ */
+public class TransferMetrics {
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong stalled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long bytesPerSecond = 0;
+
+    /**
+     * Starts counting a transfer.
+     *
+     * @return the listener for the progress of the transfer
+     */
+    ProcessRunner.ProgressListener started() {
+        active.incrementAndGet();
+        return new ProcessRunner.ProgressListener() {
+            private long reported = 0;
+
+            public void progress(long bytesDone, long rate) {
+                if (bytesDone < reported) {
+                    // the next file of a batch
+                    reported = 0;
+                }
+                if (bytesDone > reported) {
+                    bytes.addAndGet(bytesDone - reported);
+                    reported = bytesDone;
+                }
+                bytesPerSecond = rate;
+            }
+        };
+    }
+
+    void completed() {
+        active.decrementAndGet();
+        completed.incrementAndGet();
+    }
+
+    void failed(Exception e) {
+        active.decrementAndGet();
+        failed.incrementAndGet();
+        if (e instanceof ProcessRunner.TimeoutException) {
+            if (((ProcessRunner.TimeoutException) e).isStalled()) {
+                stalled.incrementAndGet();
+            } else {
+                timedOut.incrementAndGet();
+            }
+        }
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the failed transfers, stalled and timed out ones included
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getStalled() {
+        return stalled.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the bytes reported as transferred so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the rate last reported by any transfer
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + active + " completed=" + completed + " failed="
+                + failed + " stalled=" + stalled + " timedOut=" + timedOut
+                + " bytes=" + bytes + " rate=" + bytesPerSecond + "B/s";
+    }
+}
@@ -0,0 +1,367 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-back upload pipeline for the MegaFS store. Files are handed over once
+ * their local copy is durable and uploaded to MEGA on a bounded pool of
+ * background workers, so a PUT doesn't wait for megatools.
+ * <p>
+ * The pool size, megafs.upload.workers, caps the uploads running overall;
+ * {@link AccountPool} caps the transfers per account, so the workers spread
+ * over the accounts. Uploads into the same folder are grouped into one
+ * transfer by {@link BatchingTransferBackend}, so most workers spend their
+ * time waiting for a batch and there can be many more of them than
+ * transfers.
+ * <p>
+ * When the queue is full the calling thread runs the upload itself, which
+ * throttles clients instead of dropping work.
+ * <p>
+ * A failed upload is queued again after megafs.upload.retryMillis, twice as
+ * long after every further failure up to megafs.upload.maxRetryMillis. The
+ * journal keeps it in case the server stops first.
+ * <p>
+ * New content is moved into place while an upload of the old one may be
+ * running. An upload reads a hard link to the local copy, so it sees one
+ * content throughout, and the uploads of a file run one after the other,
+ * so the newest content is linked last.
+ */
+public class UploadQueue {
+
+    private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+            .getLogger(UploadQueue.class);
+
+    private static final int WORKERS = Integer.getInteger("megafs.upload.workers", 64);
+    private static final int CAPACITY = Integer.getInteger("megafs.upload.queueCapacity", 1024);
+    private static final long RETRY_MILLIS = Long.getLong("megafs.upload.retryMillis", 5000);
+    private static final long MAX_RETRY_MILLIS = Long.getLong("megafs.upload.maxRetryMillis", 600000);
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final Database database;
+    private final File root;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retries = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("megafs-upload-retry"));
+
+    /**
+     * keys: local path value: the newest upload scheduled for that path
+     */
+    private final ConcurrentHashMap<String, UploadTask> pending = new ConcurrentHashMap<String, UploadTask>();
+
+    /**
+     * @param root
+     *      the directory holding the local copies, paths below it are linked
+     *      into the namespace relative to it
+     */
+    public UploadQueue(Database database, File root) {
+        this.database = database;
+        this.root = root;
+        this.executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(CAPACITY),
+                new DaemonThreadFactory("megafs-upload"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queues the upload of a local file. The upload is recorded in the
+     * database's upload journal first, so it is not lost if the server stops
+     * before it ran. If an upload of the same file is still waiting in the
+     * queue nothing new is queued, the waiting one will pick up the latest
+     * content anyway.
+     *
+     * @param localPath
+     *      absolute path of the local copy
+     * @param sha1
+     *      hash of the content, computed while it was written; the content
+     *      must not be replaced before this returns
+     */
+    public void schedule(String localPath, String sha1) {
+        database.journalUpload(localPath);
+        enqueue(localPath, sha1, identify(new File(localPath).toPath()));
+    }
+
+    /**
+     * Queues again every upload the journal says was queued or running when
+     * the server stopped. Called once at startup.
+     */
+    public void resume() {
+        List<String> unfinished = database.getUnfinishedUploads();
+        if (!unfinished.isEmpty()) {
+            LOG.info("Resuming " + unfinished.size() + " unfinished uploads");
+        }
+        for (String localPath : unfinished) {
+            // the file may have changed since, so it is hashed again
+            enqueue(localPath, null, null);
+        }
+    }
+
+    private void enqueue(String localPath, String sha1, String identity) {
+        UploadTask task = new UploadTask(localPath, sha1, identity, 0);
+        while (true) {
+            task.previous = null;
+            UploadTask previous = pending.putIfAbsent(localPath, task);
+            if (previous == null) {
+                break;
+            }
+            if (previous.update(sha1, identity)) {
+                LOG.trace("Upload of " + localPath + " already queued");
+                return;
+            }
+            // the running upload may have read the old content, go again
+            // once it is done
+            task.previous = previous;
+            if (pending.replace(localPath, previous, task)) {
+                break;
+            }
+        }
+        LOG.trace("Queueing upload of " + localPath);
+        executor.execute(task.future);
+    }
+
+    /**
+     * Queues a failed upload again after a while, unless it was cancelled or
+     * newer content was queued meanwhile.
+     */
+    private void retry(final UploadTask failed, final String sha1, final String identity) {
+        long delay = Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failed.failures, 30));
+        try {
+            retries.schedule(new Runnable() {
+                public void run() {
+                    UploadTask task = new UploadTask(failed.localPath, sha1, identity,
+                            failed.failures + 1);
+                    if (pending.replace(failed.localPath, failed, task)) {
+                        executor.execute(task.future);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Upload of " + failed.localPath
+                    + " failed, it will be retried after a restart");
+            return;
+        }
+        LOG.warn("Upload of " + failed.localPath + " failed, retrying in " + delay + " ms");
+    }
+
+    /**
+     * Drops a queued upload. An upload that is already running can't be
+     * stopped, so this waits for it to finish instead, leaving the database in
+     * a state the caller can clean up.
+     *
+     * @param localPath
+     *      absolute path of the local copy
+     */
+    public void cancel(String localPath) {
+        UploadTask task = pending.remove(localPath);
+        database.removeFromJournal(localPath);
+        if (task == null) {
+            return;
+        }
+        UploadTask running = task;
+        if (task.cancel()) {
+            task.future.cancel(false);
+            // an older upload of the file may still be running
+            running = task.previous;
+        }
+        if (running != null) {
+            running.await();
+        }
+    }
+
+    /**
+     * @param localPath
+     *      absolute path of the local copy
+     * @return true if the file has not been uploaded yet, either because it
+     *  is still queued or because its upload failed and waits to be retried
+     */
+    public boolean isPending(String localPath) {
+        return pending.containsKey(localPath);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Stops accepting uploads and gives the running ones some time to finish.
+     * Whatever is left, failed uploads waiting to be retried included, stays
+     * in the journal for the next start.
+     */
+    public void shutdown() {
+        retries.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn(pending.size() + " uploads still pending at shutdown");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String toUri(String localPath) {
+        return localPath.substring(root.getPath().length()).replace(
+                File.separatorChar, '/');
+    }
+
+    /**
+     * New content is moved into place, so it is a new file, with a time of
+     * its own in case the number of the old one is reused.
+     *
+     * @return what tells the content at a path apart from the one before,
+     *  null if the file can't be read
+     */
+    private static String identify(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+            return attributes.fileKey() + ":" + attributes.lastModifiedTime()
+                    + ":" + attributes.size();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private class UploadTask implements Runnable {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final String localPath;
+        private final FutureTask<Void> future = new FutureTask<Void>(this, null);
+
+        /**
+         * how often the upload failed before
+         */
+        private final int failures;
+        private int state = QUEUED;
+        private String sha1;
+
+        /**
+         * the file the hash was computed for, as told apart by identify()
+         */
+        private String identity;
+
+        /**
+         * the upload of the file that was running when this one was queued
+         */
+        private volatile UploadTask previous;
+
+        UploadTask(String localPath, String sha1, String identity, int failures) {
+            this.localPath = localPath;
+            this.sha1 = sha1;
+            this.identity = identity;
+            this.failures = failures;
+        }
+
+        /**
+         * Hands newer content to the task, unless it has started and may
+         * have read the old one already.
+         *
+         * @return whether the task will upload the newer content
+         */
+        synchronized boolean update(String sha1, String identity) {
+            if (state != QUEUED) {
+                return false;
+            }
+            this.sha1 = sha1;
+            this.identity = identity;
+            return true;
+        }
+
+        /**
+         * @return whether the task won't run, false if it has started
+         */
+        synchronized boolean cancel() {
+            if (state == RUNNING) {
+                return false;
+            }
+            state = CANCELLED;
+            return true;
+        }
+
+        /**
+         * Waits until the task has run or won't run anymore.
+         */
+        void await() {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // never started
+            } catch (ExecutionException e) {
+                LOG.warn("Upload of " + localPath + " failed: " + e.getCause());
+            }
+        }
+
+        public void run() {
+            String hash;
+            String hashed;
+            synchronized (this) {
+                if (state != QUEUED) {
+                    return;
+                }
+                state = RUNNING;
+                hash = sha1;
+                hashed = identity;
+            }
+            UploadTask before = previous;
+            if (before != null) {
+                before.await();
+                previous = null;
+                if (Thread.currentThread().isInterrupted()) {
+                    // shutting down, the journal still has it
+                    return;
+                }
+            }
+            File snapshot = new File(localPath + "." + UUID.randomUUID()
+                    + RemoteDownload.PARTIAL_SUFFIX);
+            boolean uploaded = false;
+            try {
+                File content = snapshot;
+                try {
+                    Files.createLink(snapshot.toPath(), new File(localPath).toPath());
+                } catch (NoSuchFileException e) {
+                    // deleted, the database forgets about it
+                    content = new File(localPath);
+                }
+                if (hashed == null || !hashed.equals(identify(snapshot.toPath()))) {
+                    // replaced since it was hashed
+                    hash = null;
+                }
+                uploaded = database.upload(localPath, content, toUri(localPath), hash);
+            } catch (IOException e) {
+                LOG.error("Upload of " + localPath + " failed: " + e);
+            } catch (RuntimeException e) {
+                LOG.error("Upload of " + localPath + " failed", e);
+            } finally {
+                snapshot.delete();
+            }
+            if (uploaded) {
+                pending.remove(localPath, this);
+            } else {
+                // stays pending, so the cache keeps the only copy
+                retry(this, hash, hash != null ? hashed : null);
+            }
+        }
+    }
+}
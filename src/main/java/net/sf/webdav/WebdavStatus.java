@@ -47,6 +47,12 @@ public class WebdavStatus {
      */
     public static final int SC_NO_CONTENT = HttpServletResponse.SC_NO_CONTENT;
 
+    /**
+     * Status code (206) indicating that the server has fulfilled the partial
+     * GET request for the resource.
+     */
+    public static final int SC_PARTIAL_CONTENT = HttpServletResponse.SC_PARTIAL_CONTENT;
+
     /**
      * Status code (301) indicating that the resource has permanently moved to a
      * new location, and that future references should use a new URI with their
@@ -156,6 +162,12 @@ public class WebdavStatus {
      */
     public static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
 
+    /**
+     * Status code (416) indicating that none of the ranges requested overlap
+     * the current extent of the resource.
+     */
+    public static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     // -------------------------------------------- Extended WebDav status code
 
     /**
@@ -208,6 +220,7 @@ public class WebdavStatus {
         addStatusCodeMap(SC_CREATED, "Created");
         addStatusCodeMap(SC_ACCEPTED, "Accepted");
         addStatusCodeMap(SC_NO_CONTENT, "No Content");
+        addStatusCodeMap(SC_PARTIAL_CONTENT, "Partial Content");
         addStatusCodeMap(SC_MOVED_PERMANENTLY, "Moved Permanently");
         addStatusCodeMap(SC_MOVED_TEMPORARILY, "Moved Temporarily");
         addStatusCodeMap(SC_NOT_MODIFIED, "Not Modified");
@@ -225,6 +238,8 @@ public class WebdavStatus {
         addStatusCodeMap(SC_PRECONDITION_FAILED, "Precondition Failed");
         addStatusCodeMap(SC_REQUEST_TOO_LONG, "Request Too Long");
         addStatusCodeMap(SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported Media Type");
+        addStatusCodeMap(SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                "Requested Range Not Satisfiable");
         // WebDav Status Codes
         addStatusCodeMap(SC_MULTI_STATUS, "Multi-Status");
         addStatusCodeMap(SC_UNPROCESSABLE_ENTITY, "Unprocessable Entity");
@@ -0,0 +1,13 @@
+package net.sf.webdav;
+
+/**
+ * Puts a file on the account with the most space left, spreading the data
+ * and the load evenly over all accounts.
+ */
+public class WorstFitPlacement implements IPlacementPolicy {
+
+    public AccountPool.Account choose(AccountPool accounts, long fileSize,
+            String uri) {
+        return accounts.largestFitting(fileSize);
+    }
+}
@@ -0,0 +1,162 @@
+package net.sf.webdav.fromcatalina;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link XMLWriter} that encodes straight to UTF-8 bytes and hands them to
+ * an output stream whenever its small buffer is full, so a response of any
+ * size takes constant memory and the client gets the first bytes while the
+ * rest is generated. The tags of each element name are rendered once and
+ * then copied as bytes.
+ * <p>
+ * The write methods can't throw, an IOException of the stream is kept and
+ * thrown by {@link #sendData()}; output after it is dropped.
+ */
+public class StreamingXMLWriter extends XMLWriter {
+
+    private static int BUF_SIZE = 8192;
+
+    private static final byte[] XML_HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final OutputStream _out;
+    private final byte[] _bytes = new byte[BUF_SIZE];
+    private int _count = 0;
+    private IOException _error = null;
+
+    /**
+     * keys: element name value: its opening, closing and empty tag
+     */
+    private final Map<String, byte[][]> _tags = new HashMap<String, byte[][]>();
+
+    public StreamingXMLWriter(OutputStream out, Map<String, String> namespaces) {
+        super(namespaces);
+        _out = out;
+    }
+
+    /**
+     * @return nothing, the XML goes to the stream
+     */
+    public String toString() {
+        return "";
+    }
+
+    public void writeProperty(String name, String value) {
+        writeElement(name, OPENING);
+        writeText(value);
+        writeElement(name, CLOSING);
+    }
+
+    public void writeElement(String name, int type) {
+        if (_isRootElement) {
+            // carries the namespace declarations, so it isn't kept
+            write(render(name, type));
+            return;
+        }
+        byte[][] tags = _tags.get(name);
+        if (tags == null) {
+            tags = new byte[][] { render(name, OPENING),
+                    render(name, CLOSING), render(name, NO_CONTENT) };
+            _tags.put(name, tags);
+        }
+        write(tags[type == OPENING || type == CLOSING ? type : NO_CONTENT]);
+    }
+
+    /**
+     * Lets {@link XMLWriter} write a tag and takes it out of its buffer.
+     */
+    private byte[] render(String name, int type) {
+        super.writeElement(name, type);
+        byte[] tag = _buffer.toString().getBytes(StandardCharsets.UTF_8);
+        _buffer.setLength(0);
+        return tag;
+    }
+
+    public void writeText(String text) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            if (_count > BUF_SIZE - 4) {
+                drain();
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                _bytes[_count++] = (byte) c;
+            } else if (c < 0x800) {
+                _bytes[_count++] = (byte) (0xc0 | (c >> 6));
+                _bytes[_count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                _bytes[_count++] = (byte) (0xf0 | (codePoint >> 18));
+                _bytes[_count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                _bytes[_count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                _bytes[_count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, as String.getBytes would encode it
+                _bytes[_count++] = '?';
+            } else {
+                _bytes[_count++] = (byte) (0xe0 | (c >> 12));
+                _bytes[_count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                _bytes[_count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    public void writeData(String data) {
+        writeText("<![CDATA[");
+        writeText(data);
+        writeText("]]>");
+    }
+
+    public void writeXMLHeader() {
+        write(XML_HEADER);
+    }
+
+    /**
+     * Writes what is buffered and flushes the stream.
+     */
+    public void sendData() throws IOException {
+        drain();
+        if (_error == null) {
+            try {
+                _out.flush();
+            } catch (IOException e) {
+                _error = e;
+            }
+        }
+        if (_error != null) {
+            throw _error;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (_count + bytes.length > BUF_SIZE) {
+            drain();
+        }
+        if (bytes.length > BUF_SIZE) {
+            send(bytes, bytes.length);
+            return;
+        }
+        System.arraycopy(bytes, 0, _bytes, _count, bytes.length);
+        _count += bytes.length;
+    }
+
+    private void drain() {
+        send(_bytes, _count);
+        _count = 0;
+    }
+
+    private void send(byte[] bytes, int length) {
+        if (_error != null || length == 0) {
+            return;
+        }
+        try {
+            _out.write(bytes, 0, length);
+        } catch (IOException e) {
+            _error = e;
+        }
+    }
+}
@@ -250,15 +250,19 @@ public abstract class AbstractMethod implements IMethodExecutor {
     }
 
     /**
-     * Get the ETag associated with a file.
+     * Get the ETag associated with a file. It is a strong one made of the
+     * content hash if the store knows it, a weak one otherwise.
      * 
      * @param StoredObject
-     *      StoredObject to get resourceLength, lastModified and a hashCode of
-     *      StoredObject
+     *      StoredObject to get contentHash or resourceLength and lastModified
      * @return the ETag
      */
     protected String getETag(StoredObject so) {
 
+        if (so != null && so.isResource() && so.getContentHash() != null) {
+            return "\"" + so.getContentHash() + "\"";
+        }
+
         String resourceLength = "";
         String lastModified = "";
 
@@ -271,6 +275,36 @@ public abstract class AbstractMethod implements IMethodExecutor {
 
     }
 
+    /**
+     * Evaluates the conditional headers of a request against the resource
+     * and answers it if they fail. A 304 Not Modified carries the ETag.
+     * 
+     * @param so
+     *      the resource at the request URI, null if there is none
+     * @param safe
+     *      true for GET and HEAD
+     * @return true if the request is to be carried out
+     * @throws IOException
+     */
+    protected boolean checkPreconditions(HttpServletRequest req,
+            HttpServletResponse resp, StoredObject so, boolean safe)
+            throws IOException {
+        String eTag = so != null && so.isResource() ? getETag(so) : null;
+        int status = Preconditions.evaluate(req, so, eTag, safe);
+        if (status == WebdavStatus.SC_NOT_MODIFIED) {
+            if (eTag != null) {
+                resp.addHeader("ETag", eTag);
+            }
+            resp.setStatus(WebdavStatus.SC_NOT_MODIFIED);
+            return false;
+        }
+        if (status != WebdavStatus.SC_OK) {
+            resp.sendError(status);
+            return false;
+        }
+        return true;
+    }
+
     protected String[] getLockIdFromIfHeader(HttpServletRequest req) {
         String[] ids = new String[2];
         String id = req.getHeader("If");
@@ -0,0 +1,97 @@
+package net.sf.webdav.methods;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One range of a Range request header, with inclusive first and last byte
+ * positions, as in RFC 7233.
+ */
+public class ByteRange {
+
+    /**
+     * more ranges than this in one request are served as the whole content
+     */
+    private static final int MAX_RANGES = 64;
+
+    private final long first;
+    private final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses a Range header against a resource of <code>length</code> bytes.
+     * Ranges starting beyond the end are left out, ranges reaching beyond it
+     * are cut short.
+     *
+     * @return the satisfiable ranges in the order requested, an empty list if
+     *  there are none, or null if the header is to be ignored because it
+     *  isn't a valid byte range header or asks for too many ranges
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix),
+                                length - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(spec.substring(0, dash));
+                long last = dash == spec.length() - 1 ? Long.MAX_VALUE
+                        : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < length) {
+                    ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value of a Content-Range header for this range
+     */
+    public String toContentRange(long length) {
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+}
@@ -17,10 +17,13 @@ package net.sf.webdav.methods;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.IBatchStatStore;
+import net.sf.webdav.IBatchStatStore.Child;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.StoredObject;
@@ -297,47 +300,48 @@ public class DoCopy extends AbstractMethod {
             }
         }
         if (infiniteDepth) {
-            String[] children = _store
-                    .getChildrenNames(transaction, sourcePath);
-            children = children == null ? new String[] {} : children;
+            List<Child> children = IBatchStatStore.listChildren(_store,
+                    transaction, sourcePath);
 
             StoredObject childSo;
-            for (int i = children.length - 1; i >= 0; i--) {
-                children[i] = "/" + children[i];
+            for (int i = children.size() - 1; i >= 0; i--) {
+                String child = "/" + children.get(i).getName();
                 try {
-                    childSo = _store.getStoredObject(transaction,
-                            (sourcePath + children[i]));
+                    childSo = children.get(i).getStoredObject();
+                    if (childSo == null) {
+                        continue;
+                    }
                     if (childSo.isResource()) {
                         _store.createResource(transaction, destinationPath
-                                + children[i]);
+                                + child);
                         long resourceLength = _store.setResourceContent(
-                                transaction, destinationPath + children[i],
+                                transaction, destinationPath + child,
                                 _store.getResourceContent(transaction,
-                                        sourcePath + children[i]), null, null);
+                                        sourcePath + child), null, null);
 
                         if (resourceLength != -1) {
                             StoredObject destinationSo = _store
                                     .getStoredObject(transaction,
-                                            destinationPath + children[i]);
+                                            destinationPath + child);
                             destinationSo.setResourceLength(resourceLength);
                         }
 
                     } else {
-                        copyFolder(transaction, sourcePath + children[i],
-                                destinationPath + children[i], errorList, req,
+                        copyFolder(transaction, sourcePath + child,
+                                destinationPath + child, errorList, req,
                                 resp);
                     }
                 } catch (AccessDeniedException e) {
-                    errorList.put(destinationPath + children[i], new Integer(
+                    errorList.put(destinationPath + child, new Integer(
                             WebdavStatus.SC_FORBIDDEN));
                 } catch (ObjectNotFoundException e) {
-                    errorList.put(destinationPath + children[i], new Integer(
+                    errorList.put(destinationPath + child, new Integer(
                             WebdavStatus.SC_NOT_FOUND));
                 } catch (ObjectAlreadyExistsException e) {
-                    errorList.put(destinationPath + children[i], new Integer(
+                    errorList.put(destinationPath + child, new Integer(
                             WebdavStatus.SC_CONFLICT));
                 } catch (WebdavException e) {
-                    errorList.put(destinationPath + children[i], new Integer(
+                    errorList.put(destinationPath + child, new Integer(
                             WebdavStatus.SC_INTERNAL_SERVER_ERROR));
                 }
             }
@@ -17,10 +17,13 @@ package net.sf.webdav.methods;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.IBatchStatStore;
+import net.sf.webdav.IBatchStatStore.Child;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.StoredObject;
@@ -73,6 +76,10 @@ public class DoDelete extends AbstractMethod {
             if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 try {
+                    if (!checkPreconditions(req, resp, _store.getStoredObject(
+                            transaction, path), false)) {
+                        return;
+                    }
                     errorList = new Hashtable<String, Integer>();
                     deleteResource(transaction, path, errorList, req, resp);
                     if (!errorList.isEmpty()) {
@@ -171,31 +178,34 @@ public class DoDelete extends AbstractMethod {
             Hashtable<String, Integer> errorList, HttpServletRequest req,
             HttpServletResponse resp) throws WebdavException {
 
-        String[] children = _store.getChildrenNames(transaction, path);
-        children = children == null ? new String[] {} : children;
+        List<Child> children = IBatchStatStore.listChildren(_store,
+                transaction, path);
         StoredObject so = null;
-        for (int i = children.length - 1; i >= 0; i--) {
-            children[i] = "/" + children[i];
+        for (int i = children.size() - 1; i >= 0; i--) {
+            String child = "/" + children.get(i).getName();
             try {
-                so = _store.getStoredObject(transaction, path + children[i]);
+                so = children.get(i).getStoredObject();
+                if (so == null) {
+                    continue;
+                }
                 if (so.isResource()) {
-                    _store.removeObject(transaction, path + children[i]);
+                    _store.removeObject(transaction, path + child);
 
                 } else {
-                    deleteFolder(transaction, path + children[i], errorList,
+                    deleteFolder(transaction, path + child, errorList,
                             req, resp);
 
-                    _store.removeObject(transaction, path + children[i]);
+                    _store.removeObject(transaction, path + child);
 
                 }
             } catch (AccessDeniedException e) {
-                errorList.put(path + children[i], new Integer(
+                errorList.put(path + child, new Integer(
                         WebdavStatus.SC_FORBIDDEN));
             } catch (ObjectNotFoundException e) {
-                errorList.put(path + children[i], new Integer(
+                errorList.put(path + child, new Integer(
                         WebdavStatus.SC_NOT_FOUND));
             } catch (WebdavException e) {
-                errorList.put(path + children[i], new Integer(
+                errorList.put(path + child, new Integer(
                         WebdavStatus.SC_INTERNAL_SERVER_ERROR));
             }
         }
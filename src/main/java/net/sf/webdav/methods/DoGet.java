@@ -15,17 +15,25 @@
  */
 package net.sf.webdav.methods;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.IBatchStatStore;
+import net.sf.webdav.IBatchStatStore.Child;
+import net.sf.webdav.ILocalContentStore;
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -38,6 +46,19 @@ public class DoGet extends DoHead {
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(DoGet.class);
 
+    /**
+     * request attributes of Tomcat's sendfile support
+     */
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * smaller content is written, as Tomcat's DefaultServlet does
+     */
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
     public DoGet(IWebdavStore store, String dftIndexFile, String insteadOf404,
             ResourceLocks resourceLocks, IMimeTyper mimeTyper,
             int contentLengthHeader) {
@@ -89,6 +110,206 @@ public class DoGet extends DoHead {
         }
     }
 
+    /**
+     * Serves the ranges asked for by a Range header with 206 Partial Content,
+     * several of them as multipart/byteranges. Without a Range header, with
+     * one that isn't valid or with an If-Range that doesn't match, the whole
+     * resource is served. The whole resource or a single range is left to the
+     * container's sendfile where the store has it in a local file.
+     */
+    protected void doBody(ITransaction transaction, HttpServletRequest req,
+            HttpServletResponse resp, String path, StoredObject so)
+            throws IOException {
+        String rangeHeader = req.getHeader("Range");
+        long length = so.getResourceLength();
+        List<ByteRange> ranges = null;
+        if (rangeHeader != null && ifRangeMatches(req, so)) {
+            ranges = ByteRange.parse(rangeHeader, length);
+        }
+        if (ranges == null) {
+            if (!sendFile(transaction, req, path, 0, length)) {
+                doBody(transaction, resp, path);
+            }
+            return;
+        }
+        if (ranges.isEmpty()) {
+            // no error page, the content-length set for the whole
+            // resource would be wrong for it
+            resp.setStatus(WebdavStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            resp.setHeader("Content-Range", "bytes */" + length);
+            setContentLength(resp, 0);
+            return;
+        }
+        resp.setStatus(WebdavStatus.SC_PARTIAL_CONTENT);
+        List<byte[]> partHeaders = new ArrayList<byte[]>();
+        byte[] closing = null;
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            resp.setHeader("Content-Range", range.toContentRange(length));
+            setContentLength(resp, range.getLength());
+            if (sendFile(transaction, req, path, range.getFirst(),
+                    range.getLength())) {
+                return;
+            }
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            String mimeType = _mimeTyper.getMimeType(transaction, path);
+            long total = 0;
+            for (ByteRange range : ranges) {
+                StringBuilder partHeader = new StringBuilder();
+                partHeader.append("\r\n--").append(boundary).append("\r\n");
+                if (mimeType != null) {
+                    partHeader.append("Content-Type: ").append(mimeType).append("\r\n");
+                }
+                partHeader.append("Content-Range: ").append(range.toContentRange(length));
+                partHeader.append("\r\n\r\n");
+                byte[] bytes = partHeader.toString().getBytes("US-ASCII");
+                partHeaders.add(bytes);
+                total += bytes.length + range.getLength();
+            }
+            closing = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+            total += closing.length;
+            resp.setContentType("multipart/byteranges; boundary=" + boundary);
+            setContentLength(resp, total);
+        }
+
+        OutputStream out = resp.getOutputStream();
+        InputStream in = null;
+        long position = 0;
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                // the content is read forward, going back means opening it
+                // again
+                if (in == null || range.getFirst() < position) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = _store.getResourceContent(transaction, path);
+                    position = 0;
+                }
+                // a cached file seeks, one being fetched waits until the
+                // range has arrived
+                skip(in, range.getFirst() - position);
+                if (closing != null) {
+                    out.write(partHeaders.get(i));
+                }
+                copy(in, out, range.getLength());
+                position = range.getLast() + 1;
+            }
+            if (closing != null) {
+                out.write(closing);
+            }
+        } catch (IOException e) {
+            // mostly the client going away after the part it wanted
+            LOG.trace(e.toString());
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                LOG.warn("Closing InputStream causes Exception!\n"
+                        + e.toString());
+            }
+            try {
+                out.flush();
+                out.close();
+            } catch (Exception e) {
+                LOG.warn("Flushing OutputStream causes Exception!\n"
+                        + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Lets the container send part of a resource straight from the local
+     * file the store has for it, with sendfile, so the content isn't copied
+     * through the heap. Containers without sendfile get the content through
+     * the output stream: FileChannel.transferTo into that stream isn't zero
+     * copy but goes through small bounce buffers, which costs more CPU than
+     * the plain copy.
+     *
+     * @return false if the content has to be written by the caller
+     */
+    private boolean sendFile(ITransaction transaction, HttpServletRequest req,
+            String path, long first, long count) {
+        // sendfile needs the content-length, and small files are written
+        // faster
+        if (_contentLength != 1 || count < SENDFILE_MIN_SIZE
+                || !Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))
+                || !(_store instanceof ILocalContentStore)) {
+            return false;
+        }
+        ILocalContentStore.LocalContent local = ((ILocalContentStore) _store)
+                .openLocalContent(transaction, path);
+        if (local == null) {
+            return false;
+        }
+        try {
+            // the container opens the file after this returns, the store
+            // keeps it for that long
+            req.setAttribute(SENDFILE_FILENAME, local.getPath()
+                    .toAbsolutePath().toString());
+            req.setAttribute(SENDFILE_START, Long.valueOf(first));
+            req.setAttribute(SENDFILE_END, Long.valueOf(first + count));
+            return true;
+        } finally {
+            local.close();
+        }
+    }
+
+    /**
+     * An If-Range header holds the entity tag or the last modification date
+     * the client has part of. If the resource has changed since, the Range
+     * header is ignored.
+     */
+    private boolean ifRangeMatches(HttpServletRequest req, StoredObject so) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // needs a strong comparison, weak tags never match
+            return !ifRange.startsWith("W/") && ifRange.equals(getETag(so));
+        }
+        try {
+            long date = req.getDateHeader("If-Range");
+            return so.getLastModified() != null
+                    && so.getLastModified().getTime() / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // skip may stop short of the end, read tells
+                if (in.read() == -1) {
+                    throw new EOFException("content ends before the range");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long n)
+            throws IOException {
+        byte[] copyBuffer = new byte[BUF_SIZE];
+        while (n > 0) {
+            int read = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, n));
+            if (read == -1) {
+                throw new EOFException("content ends before the range");
+            }
+            out.write(copyBuffer, 0, read);
+            n -= read;
+        }
+    }
+
     protected void folderBody(ITransaction transaction, String path,
             HttpServletResponse resp, HttpServletRequest req)
             throws IOException {
@@ -115,11 +336,14 @@ public class DoGet extends DoHead {
                 resp.setContentType("text/html");
                 resp.setCharacterEncoding("UTF8");
                 OutputStream out = resp.getOutputStream();
-                String[] children = _store.getChildrenNames(transaction, path);
-                // Make sure it's not null
-                children = children == null ? new String[] {} : children;
+                List<Child> children = IBatchStatStore.listChildren(_store,
+                        transaction, path);
                 // Sort by name
-                Arrays.sort(children);
+                Collections.sort(children, new Comparator<Child>() {
+                    public int compare(Child a, Child b) {
+                        return a.getName().compareTo(b.getName());
+                    }
+                });
                 StringBuilder childrenTemp = new StringBuilder();
                 childrenTemp.append("<html><head><title>Content of folder");
                 childrenTemp.append(path);
@@ -133,8 +357,9 @@ public class DoGet extends DoHead {
                 childrenTemp.append("<tr>");
                 childrenTemp.append("<td colspan=\"4\"><a href=\"../\">Parent</a></td></tr>");
                 boolean isEven= false;
-                for (String child : children)
+                for (Child entry : children)
                 {
+                    String child = entry.getName();
                     isEven= !isEven;
                     childrenTemp.append("<tr class=\"");
                     childrenTemp.append(isEven ? "even" : "odd");
@@ -142,7 +367,7 @@ public class DoGet extends DoHead {
                     childrenTemp.append("<td>");
                     childrenTemp.append("<a href=\"");
                     childrenTemp.append(child);
-                    StoredObject obj= _store.getStoredObject(transaction, path+"/"+child);
+                    StoredObject obj= entry.getStoredObject();
                     if (obj == null)
                     {
                         LOG.error("Should not return null for "+path+"/"+child);
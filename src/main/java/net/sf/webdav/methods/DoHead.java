@@ -103,12 +103,9 @@ public class DoHead extends AbstractMethod {
                     TEMP_TIMEOUT, TEMPORARY)) {
                 try {
 
-                    String eTagMatch = req.getHeader("If-None-Match");
-                    if (eTagMatch != null) {
-                        if (eTagMatch.equals(getETag(so))) {
-                            resp.setStatus(WebdavStatus.SC_NOT_MODIFIED);
-                            return;
-                        }
+                    if (so.isResource()
+                            && !checkPreconditions(req, resp, so, true)) {
+                        return;
                     }
 
                     if (so.isResource()) {
@@ -124,21 +121,12 @@ public class DoHead extends AbstractMethod {
 
                             String eTag = getETag(so);
                             resp.addHeader("ETag", eTag);
+                            resp.addHeader("Accept-Ranges", "bytes");
 
                             long resourceLength = so.getResourceLength();
 
-                            if (_contentLength == 1) {
-                                if (resourceLength > 0) {
-                                    if (resourceLength <= Integer.MAX_VALUE) {
-                                        resp
-                                                .setContentLength((int) resourceLength);
-                                    } else {
-                                        resp.setHeader("content-length", ""
-                                                + resourceLength);
-                                        // is "content-length" the right header?
-                                        // is long a valid format?
-                                    }
-                                }
+                            if (resourceLength > 0) {
+                                setContentLength(resp, resourceLength);
                             }
 
                             String mimeType = _mimeTyper.getMimeType(transaction, path);
@@ -153,7 +141,7 @@ public class DoHead extends AbstractMethod {
                                 }
                             }
 
-                            doBody(transaction, resp, path);
+                            doBody(transaction, req, resp, path, so);
                         }
                     } else {
                         folderBody(transaction, path, resp, req);
@@ -191,4 +179,30 @@ public class DoHead extends AbstractMethod {
             String path) throws IOException {
         // no body for HEAD
     }
+
+    /**
+     * Writes the body of a resource whose headers are set. Subclasses that
+     * look at request headers, such as Range, override this one.
+     */
+    protected void doBody(ITransaction transaction, HttpServletRequest req,
+            HttpServletResponse resp, String path, StoredObject so)
+            throws IOException {
+        doBody(transaction, resp, path);
+    }
+
+    /**
+     * Sets the content-length header, unless the servlet is configured not
+     * to send it.
+     */
+    protected void setContentLength(HttpServletResponse resp, long length) {
+        if (_contentLength == 1) {
+            if (length <= Integer.MAX_VALUE) {
+                resp.setContentLength((int) length);
+            } else {
+                resp.setHeader("content-length", "" + length);
+                // is "content-length" the right header?
+                // is long a valid format?
+            }
+        }
+    }
 }
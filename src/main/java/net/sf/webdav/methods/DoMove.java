@@ -22,6 +22,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.WebdavStatus;
 import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.LockFailedException;
@@ -34,13 +35,15 @@ public class DoMove extends AbstractMethod {
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(DoMove.class);
 
+    private IWebdavStore _store;
     private ResourceLocks _resourceLocks;
     private DoDelete _doDelete;
     private DoCopy _doCopy;
     private boolean _readOnly;
 
-    public DoMove(ResourceLocks resourceLocks, DoDelete doDelete,
-            DoCopy doCopy, boolean readOnly) {
+    public DoMove(IWebdavStore store, ResourceLocks resourceLocks,
+            DoDelete doDelete, DoCopy doCopy, boolean readOnly) {
+        _store = store;
         _resourceLocks = resourceLocks;
         _doDelete = doDelete;
         _doCopy = doCopy;
@@ -80,6 +83,11 @@ public class DoMove extends AbstractMethod {
                     false, 0, TEMP_TIMEOUT, TEMPORARY)) {
                 try {
 
+                    if (!checkPreconditions(req, resp, _store.getStoredObject(
+                            transaction, sourcePath), false)) {
+                        return;
+                    }
+
                     if (_doCopy.copyResource(transaction, req, resp)) {
 
                         errorList = new Hashtable<String, Integer>();
@@ -26,6 +26,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 
+import net.sf.webdav.IBatchStatStore;
+import net.sf.webdav.IBatchStatStore.Child;
+import net.sf.webdav.IBatchStatStore.Children;
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -35,6 +38,7 @@ import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.LockFailedException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.URLEncoder;
+import net.sf.webdav.fromcatalina.StreamingXMLWriter;
 import net.sf.webdav.fromcatalina.XMLHelper;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.LockedObject;
@@ -152,17 +156,17 @@ public class DoPropfind extends AbstractMethod {
                 resp.setContentType("text/xml; charset=UTF-8");
 
                 // Create multistatus object
-                XMLWriter generatedXML = new XMLWriter(resp.getWriter(),
-                        namespaces);
+                XMLWriter generatedXML = new StreamingXMLWriter(resp
+                        .getOutputStream(), namespaces);
                 generatedXML.writeXMLHeader();
                 generatedXML
                         .writeElement("DAV::multistatus", XMLWriter.OPENING);
                 if (_depth == 0) {
-                    parseProperties(transaction, req, generatedXML, path,
+                    parseProperties(transaction, req, generatedXML, path, so,
                             propertyFindType, properties, _mimeTyper
                                     .getMimeType(transaction, path));
                 } else {
-                    recursiveParseProperties(transaction, path, req,
+                    recursiveParseProperties(transaction, path, so, req,
                             generatedXML, propertyFindType, properties, _depth,
                             _mimeTyper.getMimeType(transaction, path));
                 }
@@ -194,6 +198,8 @@ public class DoPropfind extends AbstractMethod {
      * 
      * @param currentPath
      *      the current path
+     * @param so
+     *      the StoredObject at the current path
      * @param req
      *      HttpServletRequest
      * @param generatedXML
@@ -205,28 +211,37 @@ public class DoPropfind extends AbstractMethod {
      *      if an error in the underlying store occurs
      */
     private void recursiveParseProperties(ITransaction transaction,
-            String currentPath, HttpServletRequest req, XMLWriter generatedXML,
-            int propertyFindType, Vector<String> properties, int depth,
-            String mimeType) throws WebdavException {
+            String currentPath, StoredObject so, HttpServletRequest req,
+            XMLWriter generatedXML, int propertyFindType,
+            Vector<String> properties, int depth, String mimeType)
+            throws WebdavException {
 
-        parseProperties(transaction, req, generatedXML, currentPath,
+        parseProperties(transaction, req, generatedXML, currentPath, so,
                 propertyFindType, properties, mimeType);
 
-        if (depth > 0) {
+        if (depth > 0 && so.isFolder()) {
             // no need to get name if depth is already zero
-            String[] names = _store.getChildrenNames(transaction, currentPath);
-            names = names == null ? new String[] {} : names;
-            String newPath = null;
-
-            for (String name : names) {
-                newPath = currentPath;
-                if (!(newPath.endsWith("/"))) {
-                    newPath += "/";
+            Children children = IBatchStatStore.childrenOf(_store,
+                    transaction, currentPath);
+            try {
+                String newPath = null;
+
+                while (children.hasNext()) {
+                    Child child = children.next();
+                    if (child.getStoredObject() == null) {
+                        continue;
+                    }
+                    newPath = currentPath;
+                    if (!(newPath.endsWith("/"))) {
+                        newPath += "/";
+                    }
+                    newPath += child.getName();
+                    recursiveParseProperties(transaction, newPath, child
+                            .getStoredObject(), req, generatedXML,
+                            propertyFindType, properties, depth - 1, mimeType);
                 }
-                newPath += name;
-                recursiveParseProperties(transaction, newPath, req,
-                        generatedXML, propertyFindType, properties, depth - 1,
-                        mimeType);
+            } finally {
+                children.close();
             }
         }
     }
@@ -240,6 +255,8 @@ public class DoPropfind extends AbstractMethod {
      *      XML response to the Propfind request
      * @param path
      *      Path of the current resource
+     * @param so
+     *      StoredObject of the current resource
      * @param type
      *      Propfind type
      * @param propertiesVector
@@ -248,10 +265,8 @@ public class DoPropfind extends AbstractMethod {
      */
     private void parseProperties(ITransaction transaction,
             HttpServletRequest req, XMLWriter generatedXML, String path,
-            int type, Vector<String> propertiesVector, String mimeType)
-            throws WebdavException {
-
-        StoredObject so = _store.getStoredObject(transaction, path);
+            StoredObject so, int type, Vector<String> propertiesVector,
+            String mimeType) throws WebdavException {
 
         boolean isFolder = so.isFolder();
         final String creationdate = creationDateFormat(so.getCreationDate());
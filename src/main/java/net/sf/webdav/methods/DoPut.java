@@ -79,6 +79,11 @@ public class DoPut extends AbstractMethod {
                     TEMP_TIMEOUT, TEMPORARY)) {
                 StoredObject parentSo, so = null;
                 try {
+                    so = _store.getStoredObject(transaction, path);
+                    if (!checkPreconditions(req, resp, so, false)) {
+                        return;
+                    }
+
                     parentSo = _store.getStoredObject(transaction, parentPath);
                     if (parentPath != null && parentSo != null
                             && parentSo.isResource()) {
@@ -96,8 +101,6 @@ public class DoPut extends AbstractMethod {
                         return;
                     }
 
-                    so = _store.getStoredObject(transaction, path);
-
                     if (so == null) {
                         _store.createResource(transaction, path);
                         // resp.setStatus(WebdavStatus.SC_CREATED);
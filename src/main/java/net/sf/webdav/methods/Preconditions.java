@@ -0,0 +1,130 @@
+package net.sf.webdav.methods;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.WebdavStatus;
+
+/**
+ * Evaluates the conditional request headers of RFC 7232 (If-Match,
+ * If-Unmodified-Since, If-None-Match and If-Modified-Since) in the order of
+ * its section 6. If-Range is left to GET, since it only decides about the
+ * Range header.
+ */
+public class Preconditions {
+
+    private Preconditions() {
+    }
+
+    /**
+     * @param so
+     *      the resource at the request URI, null or a lock-null resource if
+     *      there is none
+     * @param eTag
+     *      the entity tag of the resource, null if it hasn't got one
+     * @param safe
+     *      whether the method is GET or HEAD, which get 304 Not Modified
+     *      where others fail the precondition
+     * @return {@link WebdavStatus#SC_OK} if the request is to be carried out,
+     *  otherwise {@link WebdavStatus#SC_NOT_MODIFIED} or
+     *  {@link WebdavStatus#SC_PRECONDITION_FAILED}
+     */
+    public static int evaluate(HttpServletRequest req, StoredObject so,
+            String eTag, boolean safe) {
+        boolean exists = so != null && !so.isNullResource();
+
+        String ifMatch = req.getHeader("If-Match");
+        if (ifMatch != null) {
+            if (!exists || !matches(ifMatch, eTag, true)) {
+                return WebdavStatus.SC_PRECONDITION_FAILED;
+            }
+        } else {
+            long date = getDate(req, "If-Unmodified-Since");
+            if (date != -1 && exists && isKnown(so)
+                    && seconds(so) > date / 1000) {
+                return WebdavStatus.SC_PRECONDITION_FAILED;
+            }
+        }
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (exists && matches(ifNoneMatch, eTag, false)) {
+                return safe ? WebdavStatus.SC_NOT_MODIFIED
+                        : WebdavStatus.SC_PRECONDITION_FAILED;
+            }
+        } else if (safe) {
+            long date = getDate(req, "If-Modified-Since");
+            if (date != -1 && exists && isKnown(so)
+                    && seconds(so) <= date / 1000) {
+                return WebdavStatus.SC_NOT_MODIFIED;
+            }
+        }
+        return WebdavStatus.SC_OK;
+    }
+
+    /**
+     * Looks for an entity tag in the value of an If-Match or If-None-Match
+     * header, "*" or a list of tags. A strong comparison needs both tags to
+     * be strong, a weak one only compares the opaque part.
+     */
+    static boolean matches(String header, String eTag, boolean strong) {
+        if (header.trim().equals("*")) {
+            return true;
+        }
+        if (eTag == null || (strong && eTag.startsWith("W/"))) {
+            return false;
+        }
+        String opaque = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        int i = 0;
+        while (i < header.length()) {
+            char c = header.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            boolean weak = header.startsWith("W/", i);
+            if (weak) {
+                i += 2;
+            }
+            int end = header.indexOf('"', i + 1);
+            if (i >= header.length() || header.charAt(i) != '"' || end == -1) {
+                // not a list of entity tags
+                return false;
+            }
+            if (!(strong && weak)
+                    && header.regionMatches(i, opaque, 0, opaque.length())
+                    && end + 1 - i == opaque.length()) {
+                return true;
+            }
+            i = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return the date of a header, -1 if it's missing or not a valid date
+     */
+    private static long getDate(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Stores report a modification time in the first second of the epoch for
+     * content they don't know the time of, so dates can't be compared.
+     */
+    private static boolean isKnown(StoredObject so) {
+        return so.getLastModified() != null
+                && so.getLastModified().getTime() >= 1000;
+    }
+
+    /**
+     * HTTP dates have a resolution of seconds
+     */
+    private static long seconds(StoredObject so) {
+        return so.getLastModified().getTime() / 1000;
+    }
+}
@@ -0,0 +1,182 @@
+package net.sf.webdav;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class AccountPoolTest extends Assert {
+
+    /**
+     * megafs.upload.perAccount by default
+     */
+    private static final int TRANSFERS_PER_ACCOUNT = 2;
+
+    private static AccountPool createPool() {
+        AccountPool pool = new AccountPool();
+        pool.update("small", 100);
+        pool.update("medium", 500);
+        pool.update("large", 1000);
+        return pool;
+    }
+
+    @Test
+    public void testFittingAccountsBySpaceLeft() {
+        AccountPool pool = createPool();
+
+        assertEquals(3, pool.size());
+        assertEquals("small", pool.smallestFitting(50).getUsername());
+        assertEquals("medium", pool.smallestFitting(100).getUsername());
+        assertEquals("large", pool.largestFitting(50).getUsername());
+        assertEquals("large", pool.smallestFitting(999).getUsername());
+        // room means more than the file takes, as the accounts table checks
+        assertNull(pool.smallestFitting(1000));
+        assertNull(pool.largestFitting(1000));
+
+        List<AccountPool.Account> fitting = pool.fitting(100);
+        assertEquals(2, fitting.size());
+        assertEquals("medium", fitting.get(0).getUsername());
+        assertEquals("large", fitting.get(1).getUsername());
+    }
+
+    @Test
+    public void testUpdateMovesAccount() {
+        AccountPool pool = createPool();
+
+        pool.update("small", 2000);
+
+        assertEquals(3, pool.size());
+        assertEquals(2000, pool.get("small").getAvailable());
+        assertEquals("small", pool.largestFitting(50).getUsername());
+        assertEquals("medium", pool.smallestFitting(50).getUsername());
+    }
+
+    @Test
+    public void testUsedCountsUp() {
+        AccountPool pool = createPool();
+        assertEquals(0, pool.get("small").getLastUsed());
+
+        pool.used("large");
+        pool.used("small");
+        pool.used("unknown");
+
+        assertTrue(pool.get("small").getLastUsed() > pool.get("large").getLastUsed());
+        assertEquals(0, pool.get("medium").getLastUsed());
+    }
+
+    @Test
+    public void testBusyAccountsAreAvoidedWhileOthersFit() throws Exception {
+        AccountPool pool = createPool();
+
+        for (int i = 0; i < TRANSFERS_PER_ACCOUNT; i++) {
+            pool.claim("small");
+        }
+        assertEquals("medium", pool.smallestFitting(50).getUsername());
+
+        // a claim turns into a transfer, the account stays busy
+        pool.acquire("small");
+        assertEquals("medium", pool.smallestFitting(50).getUsername());
+
+        pool.release("small");
+        assertEquals("small", pool.smallestFitting(50).getUsername());
+
+        pool.claim("small");
+        pool.unclaim("small", 5);
+        assertEquals("small", pool.smallestFitting(50).getUsername());
+    }
+
+    @Test
+    public void testAllBusyFallsBackToTheLeastBusy() {
+        AccountPool pool = createPool();
+        for (String username : new String[] { "small", "medium", "large" }) {
+            for (int i = 0; i < TRANSFERS_PER_ACCOUNT; i++) {
+                pool.claim(username);
+            }
+        }
+
+        assertEquals(3, pool.fitting(50).size());
+        assertEquals("small", pool.smallestFitting(50).getUsername());
+
+        // uploads waiting for a slot are spread over the accounts
+        pool.claim("small");
+        assertEquals("medium", pool.smallestFitting(50).getUsername());
+        pool.claim("medium");
+        assertEquals("large", pool.smallestFitting(50).getUsername());
+        assertEquals("large", pool.largestFitting(50).getUsername());
+        pool.claim("large");
+        assertEquals(3, pool.fitting(50).size());
+    }
+
+    @Test
+    public void testAcquireWaitsForAFreeSlot() throws Exception {
+        final AccountPool pool = createPool();
+        for (int i = 0; i < TRANSFERS_PER_ACCOUNT; i++) {
+            pool.acquire("small");
+        }
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    pool.acquire("small");
+                    acquired.set(true);
+                } catch (InterruptedException e) {
+                    // not acquired
+                }
+            }
+        };
+        waiting.start();
+        waiting.join(200);
+        assertFalse(acquired.get());
+
+        pool.release("small");
+        waiting.join(10000);
+        assertTrue(acquired.get());
+    }
+
+    @Test
+    public void testInterruptedAcquireKeepsTheClaim() throws Exception {
+        final AccountPool pool = createPool();
+        for (int i = 0; i < TRANSFERS_PER_ACCOUNT; i++) {
+            pool.acquire("small");
+        }
+        pool.claim("small");
+        pool.claim("small");
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    pool.acquire("small");
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        };
+        waiting.start();
+        waiting.interrupt();
+        waiting.join(10000);
+        assertTrue(interrupted.get());
+        for (int i = 0; i < TRANSFERS_PER_ACCOUNT; i++) {
+            pool.release("small");
+        }
+
+        // still claimed twice, so busy
+        assertEquals("medium", pool.smallestFitting(50).getUsername());
+        pool.unclaim("small", 1);
+        assertEquals("small", pool.smallestFitting(50).getUsername());
+    }
+
+    @Test
+    public void testUnknownAccountsAreIgnored() throws Exception {
+        AccountPool pool = createPool();
+
+        pool.claim("unknown");
+        pool.acquire("unknown");
+        pool.release("unknown");
+        pool.unclaim("unknown", 1);
+
+        assertNull(pool.get("unknown"));
+        assertEquals(3, pool.size());
+    }
+}
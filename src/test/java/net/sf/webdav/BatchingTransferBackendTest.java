@@ -0,0 +1,328 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import junit.framework.Assert;
+import net.sf.webdav.ITransferBackend.Credentials;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.Test;
+
+public class BatchingTransferBackendTest extends Assert {
+
+    private static final Credentials ACCOUNT = new Credentials("user", "secret");
+
+    /**
+     * records what it is asked to upload, failing the remote names in
+     * <code>failing</code>
+     */
+    private static class Recorder implements IBatchTransferBackend {
+
+        final List<String> puts = Collections.synchronizedList(new ArrayList<String>());
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        /**
+         * keys: remote paths put in a batch, values: the local files
+         */
+        final Map<String, File> batched = Collections.synchronizedMap(new HashMap<String, File>());
+        final List<String> failing = new ArrayList<String>();
+        boolean broken;
+
+        public void put(Credentials account, File localFile, String remotePath)
+                throws IOException {
+            puts.add(remotePath);
+        }
+
+        public Map<String, IOException> putAll(Credentials account, String remoteFolder,
+                Map<String, File> localFiles) throws IOException {
+            if (broken) {
+                throw new IOException("login failed");
+            }
+            List<String> batch = new ArrayList<String>();
+            Map<String, IOException> failed = new HashMap<String, IOException>();
+            for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+                batch.add(remoteFolder + "/" + entry.getKey());
+                batched.put(remoteFolder + "/" + entry.getKey(), entry.getValue());
+                if (failing.contains(entry.getKey())) {
+                    failed.put(entry.getKey(), new FileAlreadyExistsException(entry.getKey()));
+                }
+            }
+            batches.add(batch);
+            return failed;
+        }
+
+        public InputStream get(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void rm(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void mkdir(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<String> ls(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long quota(Credentials account) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Credentials createAccount() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * a put running in its own thread, as the upload queue runs them
+     */
+    private static class Put extends Thread {
+
+        final BatchingTransferBackend backend;
+        final String remotePath;
+        final String localName;
+        volatile IOException failure;
+
+        Put(BatchingTransferBackend backend, String remotePath, String localName) {
+            this.backend = backend;
+            this.remotePath = remotePath;
+            this.localName = localName;
+        }
+
+        public void run() {
+            try {
+                backend.put(ACCOUNT, new File("/tmp/" + localName), remotePath);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private final Recorder recorder = new Recorder();
+    private final AccountPool accountPool = new AccountPool();
+
+    public BatchingTransferBackendTest() {
+        accountPool.update(ACCOUNT.getUsername(), 1000);
+    }
+
+    @Test
+    public void testUploadsToOneFolderAreBatched() throws Exception {
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+
+        List<Put> puts = runWhileBusy(backend, "/Root/a/1", "/Root/a/2", "/Root/a/3",
+                "/Root/b/4");
+
+        assertSucceeded(puts);
+        assertEquals(1, recorder.batches.size());
+        List<String> batch = new ArrayList<String>(recorder.batches.get(0));
+        Collections.sort(batch);
+        assertEquals(names("/Root/a/1", "/Root/a/2", "/Root/a/3"), batch);
+        // alone in its batch
+        assertEquals(names("/Root/b/4"), recorder.puts);
+        assertIdle();
+    }
+
+    @Test
+    public void testSingleUploadIsPut() throws Exception {
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+
+        assertSucceeded(runWhileBusy(backend, "/Root/a/1"));
+
+        assertEquals(names("/Root/a/1"), recorder.puts);
+        assertTrue(recorder.batches.isEmpty());
+        assertIdle();
+    }
+
+    @Test
+    public void testUploadsAreBatchedUnderTheirRemoteNames() throws Exception {
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+        // as the snapshots of the upload queue and the chunks are named
+        Put first = new Put(backend, "/Root/a/1", "1.1234.megafs-part");
+        Put second = new Put(backend, "/Root/a/2", "5678.chunk");
+
+        runWhileBusy(first, second);
+
+        assertSucceeded(first, second);
+        assertTrue(recorder.puts.isEmpty());
+        assertEquals(1, recorder.batches.size());
+        assertEquals(new File("/tmp/1.1234.megafs-part"), recorder.batched.get("/Root/a/1"));
+        assertEquals(new File("/tmp/5678.chunk"), recorder.batched.get("/Root/a/2"));
+        assertIdle();
+    }
+
+    @Test
+    public void testSameRemotePathIsPutAlone() throws Exception {
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+        Put first = new Put(backend, "/Root/a/1", "x");
+        Put second = new Put(backend, "/Root/a/1", "y");
+        Put third = new Put(backend, "/Root/a/2", "z");
+
+        runWhileBusy(first, second, third);
+
+        assertSucceeded(first, second, third);
+        assertEquals(names("/Root/a/1"), recorder.puts);
+        assertEquals(1, recorder.batches.size());
+        List<String> batch = new ArrayList<String>(recorder.batches.get(0));
+        Collections.sort(batch);
+        assertEquals(names("/Root/a/1", "/Root/a/2"), batch);
+        assertIdle();
+    }
+
+    @Test
+    public void testBackendThatCantBatchGetsEveryUpload() throws Exception {
+        final Recorder plain = recorder;
+        ITransferBackend cantBatch = new ITransferBackend() {
+            public void put(Credentials account, File localFile, String remotePath)
+                    throws IOException {
+                plain.put(account, localFile, remotePath);
+            }
+
+            public InputStream get(Credentials account, String remotePath) {
+                return plain.get(account, remotePath);
+            }
+
+            public void rm(Credentials account, String remotePath) {
+                plain.rm(account, remotePath);
+            }
+
+            public void mkdir(Credentials account, String remotePath) {
+                plain.mkdir(account, remotePath);
+            }
+
+            public List<String> ls(Credentials account, String remotePath) {
+                return plain.ls(account, remotePath);
+            }
+
+            public long quota(Credentials account) {
+                return plain.quota(account);
+            }
+
+            public Credentials createAccount() {
+                return plain.createAccount();
+            }
+        };
+        BatchingTransferBackend backend = new BatchingTransferBackend(cantBatch, accountPool);
+        Put first = new Put(backend, "/Root/a/1", "1");
+        Put second = new Put(backend, "/Root/a/2", "2");
+
+        run(first, second);
+
+        assertSucceeded(first, second);
+        List<String> puts = new ArrayList<String>(recorder.puts);
+        Collections.sort(puts);
+        assertEquals(names("/Root/a/1", "/Root/a/2"), puts);
+        assertIdle();
+    }
+
+    @Test
+    public void testFailuresGoToTheirUploads() throws Exception {
+        recorder.failing.add("2");
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+
+        List<Put> puts = runWhileBusy(backend, "/Root/a/1", "/Root/a/2", "/Root/a/3");
+
+        assertNull(puts.get(0).failure);
+        assertTrue(puts.get(1).failure instanceof FileAlreadyExistsException);
+        assertNull(puts.get(2).failure);
+        assertIdle();
+    }
+
+    @Test
+    public void testFailedBatchFailsEveryUpload() throws Exception {
+        recorder.broken = true;
+        BatchingTransferBackend backend = new BatchingTransferBackend(recorder, accountPool);
+
+        List<Put> puts = runWhileBusy(backend, "/Root/a/1", "/Root/a/2");
+
+        for (Put put : puts) {
+            assertEquals("login failed", put.failure.getMessage());
+        }
+        assertIdle();
+    }
+
+    /**
+     * Runs puts while both transfer slots of the account are taken, so that
+     * all of them join the batches before any batch can start.
+     */
+    private List<Put> runWhileBusy(BatchingTransferBackend backend, String... remotePaths)
+            throws Exception {
+        List<Put> puts = new ArrayList<Put>();
+        for (String remotePath : remotePaths) {
+            puts.add(new Put(backend, remotePath, NamespaceIndex.nameOf(remotePath)));
+        }
+        runWhileBusy(puts.toArray(new Put[puts.size()]));
+        return puts;
+    }
+
+    private void runWhileBusy(final Put... puts) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            accountPool.claim(ACCOUNT.getUsername());
+            accountPool.acquire(ACCOUNT.getUsername());
+        }
+        for (Put put : puts) {
+            accountPool.claim(ACCOUNT.getUsername());
+            put.start();
+        }
+        // the leaders wait for a slot, the others for their batch
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                for (Put put : puts) {
+                    if (put.getState() != Thread.State.WAITING) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        accountPool.release(ACCOUNT.getUsername());
+        accountPool.release(ACCOUNT.getUsername());
+        for (Put put : puts) {
+            put.join(10000);
+        }
+    }
+
+    private void run(Put... puts) throws InterruptedException {
+        for (Put put : puts) {
+            accountPool.claim(ACCOUNT.getUsername());
+            put.start();
+        }
+        for (Put put : puts) {
+            put.join(10000);
+        }
+    }
+
+    private static void assertSucceeded(List<Put> puts) {
+        assertSucceeded(puts.toArray(new Put[puts.size()]));
+    }
+
+    private static void assertSucceeded(Put... puts) {
+        for (Put put : puts) {
+            assertFalse(put.isAlive());
+            assertNull(put.remotePath, put.failure);
+        }
+    }
+
+    /**
+     * every claim was used up and every slot given back
+     */
+    private void assertIdle() {
+        assertEquals(1, accountPool.fitting(1).size());
+    }
+
+    private static List<String> names(String... names) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, names);
+        return list;
+    }
+}
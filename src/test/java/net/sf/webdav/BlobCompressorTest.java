@@ -0,0 +1,175 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BlobCompressorTest extends Assert {
+
+    @Rule
+    public MegaFSDirectory directory = new MegaFSDirectory();
+
+    private File copies() {
+        return new File(directory.getRoot(), "compress");
+    }
+
+    /**
+     * @return lines of text, which deflate well
+     */
+    private static byte[] text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append(" of some text that repeats itself\n");
+        }
+        return text.toString().getBytes();
+    }
+
+    private File write(String uri, byte[] content) throws IOException {
+        File file = new File(directory.getStoreRoot(), uri);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testCompressibleFileIsDeflated() throws Exception {
+        assertTrue(BlobCompressor.isEnabled());
+        BlobCompressor compressor = new BlobCompressor(copies());
+        byte[] content = text(2000);
+        File file = write("/a.txt", content);
+
+        File compressed = compressor.compress(file, "a.txt");
+
+        assertEquals("a.txt", compressed.getName());
+        assertTrue(compressed.length() < content.length / 2);
+        assertTrue(Arrays.equals(content, read(BlobCompressor.decompress(
+                BlobCompressor.DEFLATE, new FileInputStream(compressed)))));
+
+        BlobCompressor.delete(compressed);
+        assertEquals(0, copies().list().length);
+    }
+
+    @Test
+    public void testIncompressibleFileIsLeftAsItIs() throws Exception {
+        BlobCompressor compressor = new BlobCompressor(copies());
+        File random = directory.writeFile("/random.bin", 100000, 1);
+        File empty = write("/empty.txt", new byte[0]);
+
+        assertNull(compressor.compress(random, "random.bin"));
+        assertNull(compressor.compress(empty, "empty.txt"));
+        assertFalse(copies().exists() && copies().list().length > 0);
+    }
+
+    @Test
+    public void testCompressedFormatsAreSkipped() throws Exception {
+        BlobCompressor compressor = new BlobCompressor(copies());
+        File file = write("/a.txt", text(2000));
+
+        assertNull(compressor.compress(file, "a.zip"));
+        assertNull(compressor.compress(file, "A.JPG"));
+        assertNotNull(compressor.compress(file, "zip"));
+    }
+
+    @Test
+    public void testDecompress() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[1]);
+        assertSame(in, BlobCompressor.decompress(null, in));
+        try {
+            BlobCompressor.decompress("zstd", in);
+            fail();
+        } catch (IOException e) {
+            // unknown codec
+        }
+    }
+
+    @Test
+    public void testFailureAfterTheCompressedDataIsReported() throws Exception {
+        byte[] content = text(2000);
+        File compressed = new BlobCompressor(copies()).compress(write("/a.txt", content), "a.txt");
+        // megatools printing the whole blob before failing
+        InputStream in = BlobCompressor.decompress(BlobCompressor.DEFLATE, new ProcessRunner(
+                Arrays.asList("sh", "-c", "cat '" + compressed + "'; exit 3")).stream());
+        try {
+            read(in);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exited with 3"));
+        }
+    }
+
+    @Test
+    public void testAbandonedCopiesAreDeleted() throws Exception {
+        File file = write("/a.txt", text(2000));
+        File compressed = new BlobCompressor(copies()).compress(file, "a.txt");
+
+        new BlobCompressor(copies());
+
+        assertFalse(compressed.exists());
+        assertEquals(0, copies().list().length);
+    }
+
+    @Test
+    public void testBlobIsStoredDeflated() throws Exception {
+        Database database = new Database();
+        UploadQueue uploadQueue = new UploadQueue(database, directory.getStoreRoot());
+        try {
+            byte[] content = text(2000);
+            File file = write("/a.txt", content);
+            String sha1 = database.calcSHA1(file.getPath());
+
+            uploadQueue.schedule(file.getPath(), sha1);
+            uploadQueue.shutdown();
+
+            Database.Blob blob = database.getBlob(sha1);
+            assertEquals(BlobCompressor.DEFLATE, blob.codec);
+            assertEquals(content.length, blob.getFileSize());
+            assertTrue(blob.storedSize < content.length / 2);
+            assertEquals(blob.storedSize, remoteSize(directory.getRemoteRoot()));
+            assertTrue(Arrays.equals(content, read(database.openDownload("/a.txt"))));
+            // the copy is gone once uploaded
+            assertEquals(0, copies().list().length);
+        } finally {
+            uploadQueue.shutdown();
+            database.close();
+        }
+    }
+
+    private static long remoteSize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            size += files[i].isDirectory() ? remoteSize(files[i]) : files[i].length();
+        }
+        return size;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
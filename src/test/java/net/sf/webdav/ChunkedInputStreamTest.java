@@ -0,0 +1,209 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedInputStreamTest extends Assert {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * serves chunks of generated content, the last one shorter, recording
+     * which were opened; while <code>blocked</code> is set their transfers
+     * don't make progress
+     */
+    private static class Chunks implements ChunkedInputStream.Source {
+
+        final int count;
+        final Set<Integer> opened = Collections.synchronizedSet(new HashSet<Integer>());
+        volatile int failing = -1;
+        volatile CountDownLatch blocked = null;
+
+        Chunks(int count) {
+            this.count = count;
+        }
+
+        public InputStream open(int index) throws IOException {
+            opened.add(index);
+            if (index == failing) {
+                throw new IOException("chunk " + index + " is gone");
+            }
+            final CountDownLatch latch = blocked;
+            return new ByteArrayInputStream(chunk(index)) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (latch != null) {
+                        try {
+                            latch.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        byte[] chunk(int index) {
+            return MegaFSDirectory.content(index == count - 1 ? CHUNK_SIZE / 2 : CHUNK_SIZE, index);
+        }
+
+        byte[] content() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                byte[] chunk = chunk(i);
+                out.write(chunk, 0, chunk.length);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private ChunkedInputStream open(Chunks chunks, int readAhead) {
+        return new ChunkedInputStream(chunks, chunks.count, readAhead, folder.getRoot(), executor);
+    }
+
+    @Test
+    public void testChunksAreReadInOrder() throws Exception {
+        Chunks chunks = new Chunks(5);
+
+        assertTrue(Arrays.equals(chunks.content(), read(open(chunks, 2))));
+        awaitNoChunkFiles();
+    }
+
+    @Test
+    public void testNoChunks() throws Exception {
+        InputStream in = open(new Chunks(0), 2);
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testSingleByteReads() throws Exception {
+        Chunks chunks = new Chunks(2);
+        InputStream in = open(chunks, 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        in.close();
+        assertTrue(Arrays.equals(chunks.content(), out.toByteArray()));
+    }
+
+    @Test
+    public void testFetchesOnlyAsFarAheadAsAllowed() throws Exception {
+        final Chunks chunks = new Chunks(6);
+        chunks.blocked = new CountDownLatch(1);
+        final byte[][] content = new byte[1][];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    content[0] = read(open(chunks, 3));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return chunks.opened.size() == 3;
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), chunks.opened);
+
+        chunks.blocked.countDown();
+        reader.join(10000);
+        assertTrue(Arrays.equals(chunks.content(), content[0]));
+        assertEquals(6, chunks.opened.size());
+    }
+
+    @Test
+    public void testFailedChunkFailsTheRead() throws Exception {
+        Chunks chunks = new Chunks(3);
+        chunks.failing = 1;
+        InputStream in = open(chunks, 1);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            // all of the first chunk is still there
+            int read = 0;
+            while (read < CHUNK_SIZE) {
+                read += in.read(buffer, read, CHUNK_SIZE - read);
+            }
+            in.read(buffer);
+            fail();
+        } catch (IOException e) {
+            assertEquals("chunk 1 is gone", e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testCloseStopsFetchingAndCleansUp() throws Exception {
+        Chunks chunks = new Chunks(10);
+        InputStream in = open(chunks, 2);
+        in.read(new byte[10]);
+
+        in.close();
+
+        assertEquals(-1, in.read());
+        awaitNoChunkFiles();
+        // the first chunks and the read-ahead, nothing after the close
+        assertTrue(chunks.opened.size() <= 3);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[300];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private void awaitNoChunkFiles() throws Exception {
+        final File directory = folder.getRoot();
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return directory.list().length == 0;
+            }
+        });
+    }
+}
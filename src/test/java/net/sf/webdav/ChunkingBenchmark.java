@@ -0,0 +1,76 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the chunkers: how fast FastCdcChunker cuts content on one core,
+ * and how many chunks each chunker finds again after bytes were inserted in
+ * the middle of the content, which is what deduplication of an edited file
+ * saves.
+ * <p>
+ * Run with the test classpath:
+ * <code>java net.sf.webdav.ChunkingBenchmark [contentMiB] [averageKiB]</code>,
+ * 256 MiB of random content cut into chunks of 1 MiB by default.
+ */
+public class ChunkingBenchmark {
+
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int contentSize = (args.length > 0 ? Integer.parseInt(args[0]) : 256) << 20;
+        long average = (args.length > 1 ? Long.parseLong(args[1]) : 1024) << 10;
+        byte[] content = new byte[contentSize];
+        new Random(1).nextBytes(content);
+
+        FastCdcChunker fastCdc = new FastCdcChunker(average);
+        // the first runs are slower, until the JIT has compiled the loop
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long started = System.nanoTime();
+            fastCdc.split(new ByteArrayInputStream(content), content.length);
+            double mbPerSecond = content.length / 1e6 / ((System.nanoTime() - started) / 1e9);
+            System.out.printf("fastcdc run %d: %.0f MB/s%n", i + 1, mbPerSecond);
+            best = Math.max(best, mbPerSecond);
+        }
+        System.out.printf("fastcdc: %.0f MB/s per core at best%n", best);
+
+        byte[] edited = new byte[content.length + 10];
+        int at = content.length / 2;
+        System.arraycopy(content, 0, edited, 0, at);
+        System.arraycopy(new byte[10], 0, edited, at, 10);
+        System.arraycopy(content, at, edited, at + 10, content.length - at);
+        reportReuse("fastcdc", fastCdc, content, edited);
+        reportReuse("fixed", new FixedSizeChunker(average), content, edited);
+    }
+
+    /**
+     * Prints how many chunks of the edited content are stored already.
+     */
+    private static void reportReuse(String name, IChunker chunker, byte[] content,
+            byte[] edited) throws Exception {
+        Set<String> stored = hashes(content, chunker.split(
+                new ByteArrayInputStream(content), content.length));
+        List<Long> lengths = chunker.split(new ByteArrayInputStream(edited), edited.length);
+        Set<String> found = hashes(edited, lengths);
+        found.retainAll(stored);
+        System.out.printf("%s: 10 bytes inserted in the middle, %d of %d chunks stored already%n",
+                name, found.size(), lengths.size());
+    }
+
+    private static Set<String> hashes(byte[] content, List<Long> lengths) throws Exception {
+        Set<String> hashes = new HashSet<String>();
+        int offset = 0;
+        for (long length : lengths) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(content, offset, (int) length);
+            hashes.add(Database.toHex(digest));
+            offset += length;
+        }
+        return hashes;
+    }
+}
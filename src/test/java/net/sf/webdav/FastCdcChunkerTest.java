@@ -0,0 +1,108 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.Test;
+
+public class FastCdcChunkerTest extends Assert {
+
+    private static final int AVERAGE = 8192;
+
+    private static final byte[] CONTENT = MegaFSDirectory.content(2 << 20, 1);
+
+    private final FastCdcChunker chunker = new FastCdcChunker(AVERAGE);
+
+    private List<Long> split(byte[] content) throws IOException {
+        return chunker.split(new ByteArrayInputStream(content), content.length);
+    }
+
+    @Test
+    public void testChunksStayWithinBounds() throws Exception {
+        List<Long> lengths = split(CONTENT);
+
+        long total = 0;
+        for (int i = 0; i < lengths.size(); i++) {
+            long length = lengths.get(i);
+            assertTrue(length <= 4 * AVERAGE);
+            if (i < lengths.size() - 1) {
+                assertTrue(length > AVERAGE / 4);
+            }
+            total += length;
+        }
+        assertEquals(CONTENT.length, total);
+        // normalized chunking keeps them close to the average
+        long mean = total / lengths.size();
+        assertTrue("" + mean, mean > AVERAGE / 2 && mean < AVERAGE * 2);
+    }
+
+    @Test
+    public void testBoundariesDependOnlyOnTheContent() throws Exception {
+        assertEquals(split(CONTENT), split(CONTENT.clone()));
+        assertEquals(split(CONTENT), new FastCdcChunker(AVERAGE).split(
+                new ByteArrayInputStream(CONTENT), CONTENT.length));
+    }
+
+    @Test
+    public void testInsertionOnlyChangesNearbyChunks() throws Exception {
+        byte[] edited = new byte[CONTENT.length + 100];
+        int at = CONTENT.length / 3;
+        System.arraycopy(CONTENT, 0, edited, 0, at);
+        System.arraycopy(MegaFSDirectory.content(100, 2), 0, edited, at, 100);
+        System.arraycopy(CONTENT, at, edited, at + 100, CONTENT.length - at);
+
+        Set<String> before = hashes(CONTENT, split(CONTENT));
+        Set<String> after = hashes(edited, split(edited));
+
+        Set<String> changed = new HashSet<String>(after);
+        changed.removeAll(before);
+        // the chunk with the insertion and maybe the one after it
+        assertTrue("" + changed.size(), changed.size() <= 2);
+        assertTrue(after.size() - changed.size() >= before.size() - 2);
+    }
+
+    @Test
+    public void testShortContentIsOneChunk() throws Exception {
+        assertEquals(Collections.singletonList(100L), split(MegaFSDirectory.content(100, 1)));
+        assertEquals(Collections.emptyList(), split(new byte[0]));
+    }
+
+    @Test
+    public void testUniformContentIsCutAtTheMaximum() throws Exception {
+        List<Long> lengths = split(new byte[10 * AVERAGE]);
+        assertTrue(lengths.size() > 1);
+        for (int i = 0; i < lengths.size() - 1; i++) {
+            assertEquals(4 * AVERAGE, (long) lengths.get(i));
+        }
+    }
+
+    @Test
+    public void testContentOfOtherLength() throws Exception {
+        try {
+            chunker.split(new ByteArrayInputStream(CONTENT), CONTENT.length + 1);
+            fail();
+        } catch (IOException e) {
+            // changed while being chunked
+        }
+    }
+
+    private static Set<String> hashes(byte[] content, List<Long> lengths) throws Exception {
+        Set<String> hashes = new HashSet<String>();
+        int offset = 0;
+        for (long length : lengths) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(content, offset, (int) length);
+            hashes.add(Database.toHex(digest));
+            offset += length;
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,30 @@
+package net.sf.webdav;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FixedSizeChunkerTest extends Assert {
+
+    private final FixedSizeChunker chunker = new FixedSizeChunker(100);
+
+    @Test
+    public void testLastChunkIsShorter() throws Exception {
+        assertEquals(Arrays.asList(100L, 100L, 50L), chunker.split(null, 250));
+    }
+
+    @Test
+    public void testContentOfWholeChunks() throws Exception {
+        assertEquals(Arrays.asList(100L, 100L), chunker.split(null, 200));
+        assertEquals(Arrays.asList(100L), chunker.split(null, 100));
+    }
+
+    @Test
+    public void testShortAndEmptyContent() throws Exception {
+        assertEquals(Arrays.asList(1L), chunker.split(null, 1));
+        assertEquals(Collections.emptyList(), chunker.split(null, 0));
+    }
+}
@@ -0,0 +1,230 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalCacheTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * the uris the cache is told are on MEGA
+     */
+    private final Set<String> uploaded = new HashSet<String>();
+
+    private LocalCache cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void testSizeFollowsAddsAndRemoves() throws Exception {
+        cache = create(10000, 9000, 0);
+        add("/a", 100, false);
+        add("/b", 200, false);
+        assertEquals(300, cache.getSize());
+        assertEquals(2, cache.getFileCount());
+
+        // new content replaces the old
+        add("/a", 50, false);
+        assertEquals(250, cache.getSize());
+
+        cache.removed("/b");
+        cache.removed("/unknown");
+        assertEquals(50, cache.getSize());
+        assertEquals(1, cache.getFileCount());
+    }
+
+    @Test
+    public void testHitRatio() {
+        cache = create(10000, 9000, 0);
+        assertEquals(0.0, cache.getHitRatio(), 0);
+        cache.hit("/a");
+        cache.hit("/a");
+        cache.hit("/b");
+        cache.miss("/c");
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.75, cache.getHitRatio(), 0);
+    }
+
+    @Test
+    public void testEvictsProbationBeforeProtectedDownToLowWatermark() throws Exception {
+        cache = create(1000, 600, 0);
+        add("/a", 300, false);
+        add("/b", 300, false);
+        add("/c", 300, false);
+        // read again, so it is kept over the files read once
+        cache.hit("/a");
+
+        add("/d", 300, false);
+        awaitEvictions(2);
+
+        assertCached("/a", "/d");
+        assertEvicted("/b", "/c");
+        assertEquals(600, cache.getSize());
+        assertEquals(600, cache.getEvictedBytes());
+    }
+
+    @Test
+    public void testProtectedSegmentIsBounded() throws Exception {
+        cache = create(1000, 600, 0);
+        add("/a", 300, false);
+        add("/b", 300, false);
+        add("/c", 300, false);
+        // the protected segment takes 80% at most, the eldest goes back
+        cache.hit("/a");
+        cache.hit("/b");
+        cache.hit("/c");
+
+        add("/d", 300, false);
+        awaitEvictions(2);
+
+        assertCached("/b", "/c");
+        assertEvicted("/a", "/d");
+    }
+
+    @Test
+    public void testKeepsFilesNotUploadedYet() throws Exception {
+        cache = create(1000, 0, 0);
+        add("/dirty", 600, true);
+        add("/clean", 600, false);
+        awaitEvictions(1);
+
+        assertCached("/dirty");
+        assertEvicted("/clean");
+
+        // once it is on MEGA it can go
+        synchronized (uploaded) {
+            uploaded.add("/dirty");
+        }
+        add("/more", 600, false);
+        awaitEvictions(3);
+        assertEvicted("/dirty", "/more");
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testKeepsPinnedFiles() throws Exception {
+        cache = create(1000, 0, 0);
+        cache.pin("/a");
+        cache.pin("/a");
+        add("/a", 600, false);
+        add("/b", 600, false);
+        awaitEvictions(1);
+
+        assertCached("/a");
+        assertEvicted("/b");
+
+        cache.unpin("/a");
+        add("/c", 600, false);
+        awaitEvictions(2);
+        assertCached("/a");
+
+        cache.unpin("/a");
+        add("/d", 600, false);
+        awaitEvictions(4);
+        assertEvicted("/a", "/d");
+    }
+
+    @Test
+    public void testEvictsOldFilesRegardlessOfSize() throws Exception {
+        cache = create(10000, 9000, 1);
+        add("/old", 10, false);
+        add("/dirty", 10, true);
+        Thread.sleep(10);
+
+        cache.evict();
+
+        assertEvicted("/old");
+        assertCached("/dirty");
+    }
+
+    @Test
+    public void testStartIndexesFilesOnDisk() throws Exception {
+        write("/a", 100);
+        write("/folder/b", 200);
+        write("/folder/c" + RemoteDownload.PARTIAL_SUFFIX, 300);
+        write("/folder/1234" + RemoteDownload.PARTIAL_SUFFIX + "/d", 400);
+        cache = create(1000, 0, 0);
+
+        cache.start();
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return cache.getFileCount() == 2;
+            }
+        });
+
+        assertEquals(300, cache.getSize());
+        // under budget, nothing is evicted
+        assertCached("/a", "/folder/b");
+    }
+
+    private LocalCache create(long maxBytes, long lowBytes, long maxAgeMillis) {
+        return new LocalCache(folder.getRoot(), new Predicate<String>() {
+            public boolean test(String uri) {
+                synchronized (uploaded) {
+                    return uploaded.contains(uri);
+                }
+            }
+        }, maxBytes, lowBytes, maxAgeMillis);
+    }
+
+    private void add(String uri, int size, boolean dirty) throws IOException {
+        write(uri, size);
+        cache.added(uri, size, dirty);
+    }
+
+    private void write(String uri, int size) throws IOException {
+        File file = new File(folder.getRoot(), uri);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void awaitEvictions(final long count) throws Exception {
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return cache.getEvictionCount() >= count;
+            }
+        });
+        // the eviction running in the background may not be done yet
+        cache.evict();
+        assertEquals(count, cache.getEvictionCount());
+    }
+
+    private void assertCached(String... uris) {
+        for (String uri : uris) {
+            assertTrue(uri, new File(folder.getRoot(), uri).exists());
+        }
+    }
+
+    private void assertEvicted(String... uris) {
+        for (String uri : uris) {
+            assertFalse(uri, new File(folder.getRoot(), uri).exists());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class MegaFSFileSystemStoreTest extends Assert {
+
+    @Rule
+    public MegaFSDirectory directory = new MegaFSDirectory();
+
+    private MegaFSFileSystemStore store;
+
+    @Before
+    public void setUp() {
+        store = new MegaFSFileSystemStore(directory.getStoreRoot());
+    }
+
+    @After
+    public void tearDown() {
+        store.destroy();
+    }
+
+    @Test
+    public void testPutIsUploadedAndLinked() throws Exception {
+        byte[] content = MegaFSDirectory.content(10000, 1);
+
+        assertEquals(10000, put("/folder/a.bin", content));
+        awaitLinked("/folder/a.bin", content);
+
+        assertEquals(1, directory.countRemoteFiles());
+        // served from MEGA once the local copy is gone
+        evict("/folder/a.bin");
+        StoredObject so = store.getStoredObject(null, "/folder/a.bin");
+        assertEquals(10000, so.getResourceLength());
+        assertEquals(sha1(content), so.getContentHash());
+        assertTrue(Arrays.equals(content, get("/folder/a.bin")));
+        // and cached again
+        assertTrue(new File(directory.getStoreRoot(), "/folder/a.bin").exists());
+    }
+
+    @Test
+    public void testNewContentReplacesTheOld() throws Exception {
+        byte[] first = MegaFSDirectory.content(10000, 1);
+        byte[] second = MegaFSDirectory.content(20000, 2);
+        put("/a.bin", first);
+        awaitLinked("/a.bin", first);
+
+        put("/a.bin", second);
+        awaitLinked("/a.bin", second);
+
+        // the old content isn't referred to anymore
+        awaitRemoteFiles(1);
+        evict("/a.bin");
+        assertTrue(Arrays.equals(second, get("/a.bin")));
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce() throws Exception {
+        byte[] content = MegaFSDirectory.content(10000, 1);
+        put("/a.bin", content);
+        awaitLinked("/a.bin", content);
+
+        put("/b.bin", content);
+
+        // linked right away, nothing to upload
+        assertEquals(sha1(content), store.getStoredObject(null, "/b.bin").getContentHash());
+        assertEquals(1, directory.countRemoteFiles());
+        evict("/b.bin");
+        assertTrue(Arrays.equals(content, get("/b.bin")));
+    }
+
+    @Test
+    public void testContentIsDeletedWithItsLastPath() throws Exception {
+        byte[] content = MegaFSDirectory.content(10000, 1);
+        put("/a.bin", content);
+        put("/b.bin", content);
+        awaitLinked("/a.bin", content);
+        awaitLinked("/b.bin", content);
+
+        store.removeObject(null, "/a.bin");
+
+        assertNull(store.getStoredObject(null, "/a.bin"));
+        assertEquals(1, directory.countRemoteFiles());
+        evict("/b.bin");
+        assertTrue(Arrays.equals(content, get("/b.bin")));
+
+        store.removeObject(null, "/b.bin");
+
+        assertNull(store.getStoredObject(null, "/b.bin"));
+        awaitRemoteFiles(0);
+    }
+
+    @Test
+    public void testJournalledUploadIsResumedOnStart() throws Exception {
+        store.destroy();
+        byte[] content = MegaFSDirectory.content(10000, 1);
+        File file = directory.writeFile("/a.bin", 10000, 1);
+        // written, but the store stopped before uploading it
+        Database database = new Database();
+        database.journalUpload(file.getPath());
+        database.close();
+
+        store = new MegaFSFileSystemStore(directory.getStoreRoot());
+
+        awaitLinked("/a.bin", content);
+        assertEquals(1, directory.countRemoteFiles());
+    }
+
+    @Test
+    public void testLargeFileIsChunked() throws Exception {
+        byte[] content = MegaFSDirectory.content(MegaFSDirectory.CHUNK_THRESHOLD * 3 / 2, 1);
+
+        put("/large.bin", content);
+        awaitLinked("/large.bin", content);
+
+        assertEquals(content.length / MegaFSDirectory.CHUNK_SIZE, directory.countRemoteFiles());
+        evict("/large.bin");
+        assertEquals(content.length, store.getResourceLength(null, "/large.bin"));
+        assertTrue(Arrays.equals(content, get("/large.bin")));
+    }
+
+    @Test
+    public void testFoldersAndListings() throws Exception {
+        byte[] content = MegaFSDirectory.content(10000, 1);
+        store.createFolder(null, "/docs");
+        put("/docs/a.bin", content);
+        awaitLinked("/docs/a.bin", content);
+        evict("/docs/a.bin");
+
+        // known from the database only
+        assertTrue(store.getStoredObject(null, "/docs").isFolder());
+        assertEquals(Arrays.asList("a.bin"), Arrays.asList(store.getChildrenNames(null, "/docs")));
+
+        store.removeObject(null, "/docs/a.bin");
+        store.removeObject(null, "/docs");
+        assertNull(store.getStoredObject(null, "/docs"));
+    }
+
+    @Test
+    public void testListingDuringUploadShowsOnlyTheFiles() throws Exception {
+        store.destroy();
+        directory.useFakeMegatools();
+        directory.holdMegatoolsPuts();
+        store = new MegaFSFileSystemStore(directory.getStoreRoot());
+        byte[] first = MegaFSDirectory.content(10000, 1);
+        byte[] second = MegaFSDirectory.content(10000, 2);
+        store.createFolder(null, "/docs");
+        put("/docs/a.bin", first);
+        put("/docs/b.bin", second);
+
+        // the uploads read snapshots next to the files, linked under their
+        // remote names for the batch
+        final File docs = new File(directory.getStoreRoot(), "docs");
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                for (File file : docs.listFiles()) {
+                    if (file.isDirectory()
+                            && file.getName().endsWith(RemoteDownload.PARTIAL_SUFFIX)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        assertEquals(5, docs.list().length);
+        assertEquals(Arrays.asList("a.bin", "b.bin"), sorted(store.getChildrenNames(null, "/docs")));
+        List<String> listed = new ArrayList<String>();
+        IBatchStatStore.Children children = store.getChildren(null, "/docs");
+        try {
+            while (children.hasNext()) {
+                listed.add(children.next().getName());
+            }
+        } finally {
+            children.close();
+        }
+        assertEquals(Arrays.asList("a.bin", "b.bin"), sorted(listed.toArray(new String[0])));
+
+        directory.releaseMegatoolsPuts();
+        awaitLinked("/docs/a.bin", first);
+        awaitLinked("/docs/b.bin", second);
+        assertEquals(Arrays.asList("/Root/docs a.bin b.bin"), directory.getMegatoolsPuts());
+        assertEquals(Arrays.asList("a.bin", "b.bin"), sorted(docs.list()));
+    }
+
+    private static List<String> sorted(String[] names) {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(names));
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private long put(String uri, byte[] content) {
+        if (store.getStoredObject(null, uri) == null) {
+            store.createResource(null, uri);
+        }
+        return store.setResourceContent(null, uri, new ByteArrayInputStream(content), null, null);
+    }
+
+    private byte[] get(String uri) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = store.getResourceContent(null, uri);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deletes the local copy, as the cache does.
+     */
+    private void evict(String uri) {
+        store.getCache().removed(uri);
+        assertTrue(new File(directory.getStoreRoot(), uri).delete());
+    }
+
+    /**
+     * Waits until the content has been uploaded and the path points to it.
+     */
+    private void awaitLinked(final String uri, byte[] content) throws Exception {
+        final String sha1 = sha1(content);
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return sha1.equals(store.getStoredObject(null, uri).getContentHash());
+            }
+        });
+    }
+
+    private void awaitRemoteFiles(final int count) throws Exception {
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return directory.countRemoteFiles() == count;
+            }
+        });
+    }
+
+    private static String sha1(byte[] content) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(content);
+        return Database.toHex(digest);
+    }
+}
@@ -0,0 +1,184 @@
+package net.sf.webdav;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class NamespaceIndexTest extends Assert {
+
+    /**
+     * stands in for the directories and namespace tables
+     */
+    private static class Tables implements NamespaceIndex.Loader {
+
+        final Map<Long, Map<String, Long>> folders = new HashMap<Long, Map<String, Long>>();
+        final Map<Long, Map<String, String>> files = new HashMap<Long, Map<String, String>>();
+        final Map<Long, Integer> loads = new HashMap<Long, Integer>();
+
+        void folder(long parent, String name, long id) {
+            children(folders, parent).put(name, id);
+        }
+
+        void file(long parent, String name, String sha1) {
+            children(files, parent).put(name, sha1);
+        }
+
+        private static <V> Map<String, V> children(Map<Long, Map<String, V>> table, long parent) {
+            Map<String, V> children = table.get(parent);
+            if (children == null) {
+                children = new HashMap<String, V>();
+                table.put(parent, children);
+            }
+            return children;
+        }
+
+        int loads(long id) {
+            Integer count = loads.get(id);
+            return count == null ? 0 : count;
+        }
+
+        public void load(NamespaceIndex.Directory listing) {
+            long id = listing.getId();
+            loads.put(id, loads(id) + 1);
+            for (Map.Entry<String, Long> e : children(folders, id).entrySet()) {
+                listing.addFolder(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, String> e : children(files, id).entrySet()) {
+                listing.addFile(e.getKey(), e.getValue(), e.getValue().length());
+            }
+        }
+    }
+
+    private final Tables tables = new Tables();
+
+    private NamespaceIndex createIndex() {
+        // /a.txt, /docs/b.txt, /docs/old/c.txt
+        tables.file(1, "a.txt", "A");
+        tables.folder(1, "docs", 2);
+        tables.file(2, "b.txt", "BB");
+        tables.folder(2, "old", 3);
+        tables.file(3, "c.txt", "CCC");
+        return new NamespaceIndex(1, tables);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("/", NamespaceIndex.normalize(null));
+        assertEquals("/", NamespaceIndex.normalize(""));
+        assertEquals("/", NamespaceIndex.normalize("/"));
+        assertEquals("/", NamespaceIndex.normalize("//"));
+        assertEquals("/a/b", NamespaceIndex.normalize("a//b/"));
+        assertEquals("/a/b", NamespaceIndex.normalize("\\a\\b"));
+        assertEquals("/a", NamespaceIndex.parentOf("/a/b"));
+        assertEquals("/", NamespaceIndex.parentOf("/a"));
+        assertEquals("b", NamespaceIndex.nameOf("/a/b"));
+    }
+
+    @Test
+    public void testLookups() {
+        NamespaceIndex index = createIndex();
+
+        assertEquals("A", index.get("/a.txt").getSha1());
+        assertEquals(3, index.get("docs/old/c.txt/").getSize());
+        assertNull(index.get("/missing.txt"));
+        assertNull(index.get("/missing/c.txt"));
+        // folders and the root aren't files
+        assertNull(index.get("/docs"));
+        assertNull(index.get("/"));
+
+        assertTrue(index.isFolder("/"));
+        assertTrue(index.isFolder("/docs/old"));
+        assertFalse(index.isFolder("/a.txt"));
+        assertEquals(3, index.getDirectory("/docs/old").getId());
+
+        assertEquals(new HashSet<String>(Arrays.asList("b.txt", "old")),
+                index.getChildren("/docs"));
+        assertTrue(index.getChildren("/missing").isEmpty());
+    }
+
+    @Test
+    public void testFoldersAreLoadedOnceWhenFirstNeeded() {
+        NamespaceIndex index = createIndex();
+        assertEquals(0, tables.loads(1));
+
+        index.get("/docs/b.txt");
+        index.get("/docs/b.txt");
+        index.getChildren("/docs");
+
+        assertEquals(1, tables.loads(1));
+        assertEquals(1, tables.loads(2));
+        assertEquals(0, tables.loads(3));
+    }
+
+    @Test
+    public void testChangesToLoadedFolders() {
+        NamespaceIndex index = createIndex();
+        index.getChildren("/docs");
+
+        index.putFile("/docs/new.txt", "N", 7);
+        index.putFile("/docs/b.txt", "B2", 8);
+        index.putFolder("/docs/sub", 4);
+        index.removeFile("/a.txt");
+
+        assertEquals("N", index.get("/docs/new.txt").getSha1());
+        assertEquals(8, index.get("/docs/b.txt").getSize());
+        assertTrue(index.isFolder("/docs/sub"));
+        assertNull(index.get("/a.txt"));
+        assertEquals(1, tables.loads(2));
+    }
+
+    @Test
+    public void testFoldersNotLoadedYetReadChangesFromTheTables() {
+        NamespaceIndex index = createIndex();
+        index.isFolder("/docs");
+
+        // committed to the tables, then reported to the index
+        tables.file(3, "d.txt", "DDDD");
+        index.putFile("/docs/old/d.txt", "DDDD", 4);
+
+        assertEquals(4, index.get("/docs/old/d.txt").getSize());
+        assertEquals(1, tables.loads(3));
+    }
+
+    @Test
+    public void testRemovedFolderIsForgotten() {
+        NamespaceIndex index = createIndex();
+        assertNotNull(index.get("/docs/old/c.txt"));
+
+        tables.folders.get(1L).remove("docs");
+        index.removeFolder("/docs");
+
+        assertFalse(index.isFolder("/docs"));
+        assertFalse(index.isFolder("/docs/old"));
+        assertNull(index.get("/docs/old/c.txt"));
+    }
+
+    @Test
+    public void testChangeDuringLoadReadsTheFolderAgain() {
+        final NamespaceIndex[] index = new NamespaceIndex[1];
+        NamespaceIndex.Loader racing = new NamespaceIndex.Loader() {
+            private boolean first = true;
+
+            public void load(NamespaceIndex.Directory listing) {
+                tables.load(listing);
+                if (first) {
+                    // committed after the query read the folder
+                    first = false;
+                    tables.file(1, "late.txt", "L");
+                    index[0].putFile("/late.txt", "L", 1);
+                }
+            }
+        };
+        tables.file(1, "a.txt", "A");
+        index[0] = new NamespaceIndex(1, racing);
+
+        assertEquals(new HashSet<String>(Arrays.asList("a.txt", "late.txt")),
+                index[0].getChildren("/"));
+        assertEquals(2, tables.loads(1));
+    }
+}
@@ -0,0 +1,236 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.sf.webdav.ITransferBackend.Credentials;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackCacheTest extends Assert {
+
+    private static final Credentials ACCOUNT = new Credentials("user", "secret");
+
+    private static final String REMOTE_PATH = "/Root/.megafs-packs/1.pack";
+
+    private static final byte[] PACK = MegaFSDirectory.content(3000, 1);
+
+    /**
+     * serves PACK, counting the downloads
+     */
+    private static class Remote implements ITransferBackend {
+
+        final AtomicInteger gets = new AtomicInteger();
+        volatile byte[] content = PACK;
+        volatile CountDownLatch blocked = null;
+
+        public InputStream get(Credentials account, String remotePath) throws IOException {
+            gets.incrementAndGet();
+            if (blocked != null) {
+                try {
+                    blocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (content == null) {
+                throw new IOException("no such file " + remotePath);
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        public void put(Credentials account, File localFile, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void rm(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void mkdir(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<String> ls(Credentials account, String remotePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long quota(Credentials account) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Credentials createAccount() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Remote remote = new Remote();
+
+    private PackCache createCache() {
+        return new PackCache(new File(folder.getRoot(), "cache"), remote);
+    }
+
+    @Test
+    public void testMembersAreReadFromOneFetch() throws Exception {
+        PackCache cache = createCache();
+
+        InputStream in = cache.open(1, ACCOUNT, REMOTE_PATH, 1000, 500);
+        // nothing is fetched until the member is read
+        assertEquals(0, remote.gets.get());
+        assertMember(1000, 500, in);
+        assertMember(0, 1000, cache.open(1, ACCOUNT, REMOTE_PATH, 0, 1000));
+        assertMember(2999, 1, cache.open(1, ACCOUNT, REMOTE_PATH, 2999, 1));
+
+        assertEquals(1, remote.gets.get());
+    }
+
+    @Test
+    public void testSingleByteReads() throws Exception {
+        InputStream in = createCache().open(1, ACCOUNT, REMOTE_PATH, 10, 2);
+        try {
+            assertEquals(PACK[10] & 0xff, in.read());
+            assertEquals(PACK[11] & 0xff, in.read());
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testAdoptedPackIsNotFetched() throws Exception {
+        PackCache cache = createCache();
+        File built = folder.newFile("built.pack");
+        OutputStream out = new FileOutputStream(built);
+        try {
+            out.write(PACK);
+        } finally {
+            out.close();
+        }
+
+        cache.adopt(1, built);
+
+        assertFalse(built.exists());
+        assertMember(100, 100, cache.open(1, ACCOUNT, REMOTE_PATH, 100, 100));
+        assertEquals(0, remote.gets.get());
+    }
+
+    @Test
+    public void testEvictedPackIsFetchedAgain() throws Exception {
+        PackCache cache = createCache();
+        assertMember(0, 10, cache.open(1, ACCOUNT, REMOTE_PATH, 0, 10));
+
+        cache.evict(1);
+
+        assertMember(0, 10, cache.open(1, ACCOUNT, REMOTE_PATH, 0, 10));
+        assertEquals(2, remote.gets.get());
+    }
+
+    @Test
+    public void testConcurrentReadersShareTheFetch() throws Exception {
+        final PackCache cache = createCache();
+        remote.blocked = new CountDownLatch(1);
+        final AtomicInteger done = new AtomicInteger();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            final int offset = i * 1000;
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        assertMember(offset, 1000, cache.open(1, ACCOUNT, REMOTE_PATH, offset, 1000));
+                        done.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        final Thread[] waiting = readers;
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                for (Thread reader : waiting) {
+                    if (reader.getState() != Thread.State.WAITING
+                            && reader.getState() != Thread.State.TIMED_WAITING) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        remote.blocked.countDown();
+        for (Thread reader : readers) {
+            reader.join(10000);
+        }
+
+        assertEquals(3, done.get());
+        assertEquals(1, remote.gets.get());
+    }
+
+    @Test
+    public void testFailedFetchLeavesNothingBehind() throws Exception {
+        PackCache cache = createCache();
+        remote.content = null;
+        InputStream in = cache.open(1, ACCOUNT, REMOTE_PATH, 0, 10);
+        try {
+            in.read(new byte[10]);
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+        assertEquals(0, new File(folder.getRoot(), "cache").list().length);
+
+        remote.content = PACK;
+        assertMember(0, 10, cache.open(1, ACCOUNT, REMOTE_PATH, 0, 10));
+    }
+
+    @Test
+    public void testTruncatedPack() throws Exception {
+        remote.content = Arrays.copyOf(PACK, 1500);
+        InputStream in = createCache().open(1, ACCOUNT, REMOTE_PATH, 1000, 1000);
+        try {
+            byte[] buffer = new byte[1000];
+            assertEquals(500, in.read(buffer));
+            in.read(buffer);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("shorter"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertMember(int offset, int length, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(Arrays.copyOfRange(PACK, offset, offset + length),
+                out.toByteArray()));
+    }
+}
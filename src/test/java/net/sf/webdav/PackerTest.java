@@ -0,0 +1,221 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PackerTest extends Assert {
+
+    @Rule
+    public MegaFSDirectory directory = new MegaFSDirectory();
+
+    private File packs() {
+        return new File(directory.getRoot(), "packs");
+    }
+
+    @Test
+    public void testAccepts() {
+        assertTrue(Packer.accepts(0));
+        assertTrue(Packer.accepts(MegaFSDirectory.PACK_THRESHOLD - 1));
+        assertFalse(Packer.accepts(MegaFSDirectory.PACK_THRESHOLD));
+    }
+
+    @Test
+    public void testMembersAreAppended() throws Exception {
+        Packer packer = new Packer(packs());
+        File a = directory.writeFile("/a", 100, 1);
+        File b = directory.writeFile("/b", 200, 2);
+
+        Packer.Member first = packer.add(a);
+        Packer.Member second = packer.add(b);
+        Packer.Pack pack = first.getPack();
+        packer.seal(pack);
+
+        assertTrue(first.isFirst());
+        assertFalse(second.isFirst());
+        assertSame(pack, second.getPack());
+        assertEquals(0, first.getOffset());
+        assertEquals(100, first.getLength());
+        assertEquals(100, second.getOffset());
+        assertEquals(200, second.getLength());
+        assertEquals(300, pack.getSize());
+        assertEquals(Arrays.asList(first, second), pack.getMembers());
+        assertEquals(sha1(a), first.getSha1());
+        assertEquals(sha1(b), second.getSha1());
+
+        byte[] content = Files.readAllBytes(pack.getFile().toPath());
+        assertTrue(Arrays.equals(MegaFSDirectory.content(100, 1), Arrays.copyOfRange(content, 0, 100)));
+        assertTrue(Arrays.equals(MegaFSDirectory.content(200, 2), Arrays.copyOfRange(content, 100, 300)));
+    }
+
+    @Test
+    public void testSealedPackTakesNoMoreMembers() throws Exception {
+        Packer packer = new Packer(packs());
+        Packer.Member first = packer.add(directory.writeFile("/a", 100, 1));
+
+        long started = System.currentTimeMillis();
+        packer.seal(first.getPack());
+        // megafs.pack.windowMillis
+        assertTrue(System.currentTimeMillis() - started >= 40);
+
+        Packer.Member next = packer.add(directory.writeFile("/b", 100, 2));
+        assertTrue(next.isFirst());
+        assertNotSame(first.getPack(), next.getPack());
+        assertEquals(0, next.getOffset());
+    }
+
+    @Test
+    public void testFailedAddLeavesThePackAsItWas() throws Exception {
+        Packer packer = new Packer(packs());
+        File missing = new File(directory.getStoreRoot(), "missing");
+        try {
+            packer.add(missing);
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        // nobody would have uploaded the pack
+        assertEquals(0, packs().list().length);
+
+        Packer.Member first = packer.add(directory.writeFile("/a", 100, 1));
+        assertTrue(first.isFirst());
+        try {
+            packer.add(missing);
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        Packer.Member second = packer.add(directory.writeFile("/b", 100, 2));
+        assertEquals(100, second.getOffset());
+        assertEquals(2, first.getPack().getMembers().size());
+    }
+
+    @Test
+    public void testAbandonedPacksAreDeleted() throws Exception {
+        Packer.Member member = new Packer(packs()).add(directory.writeFile("/a", 100, 1));
+        File other = new File(packs(), "other");
+        other.createNewFile();
+
+        new Packer(packs());
+
+        assertFalse(member.getPack().getFile().exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void testSmallFilesShareAPack() throws Exception {
+        Database database = new Database();
+        UploadQueue uploadQueue = new UploadQueue(database, directory.getStoreRoot());
+        try {
+            String[] sha1s = upload(database, uploadQueue, 4);
+
+            // one pack and nothing else
+            assertEquals(1, directory.countRemoteFiles());
+            long packId = database.getBlob(sha1s[0]).packId;
+            assertTrue(packId != 0);
+            for (int i = 0; i < sha1s.length; i++) {
+                assertEquals(packId, database.getBlob(sha1s[i]).packId);
+                assertContent(database, "/" + i, 1000, i);
+            }
+        } finally {
+            uploadQueue.shutdown();
+            database.close();
+        }
+    }
+
+    @Test
+    public void testMostlyDeadPackIsCompacted() throws Exception {
+        final Database database = new Database();
+        UploadQueue uploadQueue = new UploadQueue(database, directory.getStoreRoot());
+        try {
+            final String[] sha1s = upload(database, uploadQueue, 4);
+            final long packId = database.getBlob(sha1s[3]).packId;
+
+            // half of it is still live
+            database.remove("/0");
+            database.remove("/1");
+            assertEquals(packId, database.getBlob(sha1s[3]).packId);
+
+            // below megafs.pack.compactBelow
+            database.remove("/2");
+            MegaFSDirectory.await(new Callable<Boolean>() {
+                public Boolean call() {
+                    return database.getBlob(sha1s[3]).packId != packId;
+                }
+            });
+            // the old pack is deleted in the background
+            MegaFSDirectory.await(new Callable<Boolean>() {
+                public Boolean call() {
+                    return directory.countRemoteFiles() == 1;
+                }
+            });
+            assertNull(database.getBlob(sha1s[0]));
+            assertEquals(0, database.getBlob(sha1s[3]).packOffset);
+            assertContent(database, "/3", 1000, 3);
+        } finally {
+            uploadQueue.shutdown();
+            database.close();
+        }
+    }
+
+    /**
+     * Uploads files of 1000 bytes named /0, /1, ... at the same time.
+     *
+     * @return their hashes
+     */
+    private String[] upload(Database database, UploadQueue uploadQueue, int count)
+            throws Exception {
+        String[] sha1s = new String[count];
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = directory.writeFile("/" + i, 1000, i);
+            sha1s[i] = database.calcSHA1(files[i].getPath());
+        }
+        for (int i = 0; i < count; i++) {
+            uploadQueue.schedule(files[i].getPath(), sha1s[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            final File file = files[i];
+            final UploadQueue queue = uploadQueue;
+            MegaFSDirectory.await(new Callable<Boolean>() {
+                public Boolean call() {
+                    return !queue.isPending(file.getPath());
+                }
+            });
+        }
+        return sha1s;
+    }
+
+    private static void assertContent(Database database, String uri, int length, long seed)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = database.openDownload(uri);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(uri, Arrays.equals(MegaFSDirectory.content(length, seed), out.toByteArray()));
+    }
+
+    private static String sha1(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(Files.readAllBytes(file.toPath()));
+        return Database.toHex(digest);
+    }
+}
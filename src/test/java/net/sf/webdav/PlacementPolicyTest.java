@@ -0,0 +1,84 @@
+package net.sf.webdav;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PlacementPolicyTest extends Assert {
+
+    private static AccountPool createPool() {
+        AccountPool pool = new AccountPool();
+        pool.update("small", 100);
+        pool.update("medium", 500);
+        pool.update("large", 1000);
+        return pool;
+    }
+
+    private static String choose(IPlacementPolicy policy, AccountPool pool,
+            long fileSize, String uri) {
+        AccountPool.Account account = policy.choose(pool, fileSize, uri);
+        return account == null ? null : account.getUsername();
+    }
+
+    @Test
+    public void testBestFit() {
+        IPlacementPolicy policy = new BestFitPlacement();
+        AccountPool pool = createPool();
+
+        assertEquals("small", choose(policy, pool, 50, "/a"));
+        assertEquals("medium", choose(policy, pool, 200, "/a"));
+        assertNull(choose(policy, pool, 1000, "/a"));
+    }
+
+    @Test
+    public void testWorstFit() {
+        IPlacementPolicy policy = new WorstFitPlacement();
+        AccountPool pool = createPool();
+
+        assertEquals("large", choose(policy, pool, 50, "/a"));
+        assertEquals("large", choose(policy, pool, 999, "/a"));
+        assertNull(choose(policy, pool, 1000, "/a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        IPlacementPolicy policy = new LeastRecentlyUsedPlacement();
+        AccountPool pool = createPool();
+
+        // unused accounts first, then round robin
+        String first = choose(policy, pool, 50, "/a");
+        pool.used(first);
+        String second = choose(policy, pool, 50, "/a");
+        pool.used(second);
+        String third = choose(policy, pool, 50, "/a");
+        pool.used(third);
+        assertEquals(3, new HashSet<String>(Arrays.asList(first, second,
+                third)).size());
+        assertEquals(first, choose(policy, pool, 50, "/a"));
+
+        // only what fits
+        assertEquals("large", choose(policy, pool, 600, "/a"));
+        assertNull(choose(policy, pool, 1000, "/a"));
+    }
+
+    @Test
+    public void testAffinityKeepsAFolderOnOneAccount() {
+        IPlacementPolicy policy = new AffinityPlacement();
+        AccountPool pool = createPool();
+
+        // best fit for the first file of a folder
+        assertEquals("medium", choose(policy, pool, 200, "/docs/a"));
+        // the folder's account although a smaller one fits
+        assertEquals("medium", choose(policy, pool, 50, "/docs/b"));
+        assertEquals("small", choose(policy, pool, 50, "/other/c"));
+
+        // until it runs out of room
+        pool.update("medium", 40);
+        assertEquals("small", choose(policy, pool, 50, "/docs/d"));
+        assertEquals("small", choose(policy, pool, 60, "/docs/e"));
+        assertNull(choose(policy, pool, 1000, "/docs/f"));
+    }
+}
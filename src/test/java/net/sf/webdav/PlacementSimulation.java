@@ -0,0 +1,79 @@
+package net.sf.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how tightly the placement policies fill accounts. Files with
+ * log-normal sizes, capped at 8 GiB, are placed into 50 GiB accounts that
+ * are created whenever no account has room; one operation in three deletes
+ * a random file instead. Prints the accounts each policy ended up with and
+ * how full they are.
+ * <p>
+ * Run with the test classpath:
+ * <code>java net.sf.webdav.PlacementSimulation [operations] [seed]</code>,
+ * 200000 operations by default.
+ */
+public class PlacementSimulation {
+
+    private static final long ACCOUNT_SIZE = 50L << 30;
+    private static final long MAX_FILE_SIZE = 8L << 30;
+    private static final int FOLDERS = 1000;
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        simulate("bestfit", new BestFitPlacement(), operations, seed);
+        simulate("worstfit", new WorstFitPlacement(), operations, seed);
+        simulate("lru", new LeastRecentlyUsedPlacement(), operations, seed);
+        simulate("affinity", new AffinityPlacement(), operations, seed);
+    }
+
+    private static void simulate(String name, IPlacementPolicy policy, int operations,
+            long seed) {
+        Random random = new Random(seed);
+        AccountPool pool = new AccountPool();
+        List<String> owners = new ArrayList<String>();
+        List<Long> sizes = new ArrayList<Long>();
+        long stored = 0;
+        long choosing = 0;
+        int placements = 0;
+        int accounts = 0;
+        for (int i = 0; i < operations; i++) {
+            if (random.nextInt(3) == 0 && !sizes.isEmpty()) {
+                // swap with the last to delete in constant time
+                int index = random.nextInt(sizes.size());
+                String owner = owners.get(index);
+                long size = sizes.get(index);
+                owners.set(index, owners.get(owners.size() - 1));
+                sizes.set(index, sizes.get(sizes.size() - 1));
+                owners.remove(owners.size() - 1);
+                sizes.remove(sizes.size() - 1);
+                pool.update(owner, pool.get(owner).getAvailable() + size);
+                stored -= size;
+                continue;
+            }
+            // median 16 MiB
+            long size = Math.min(MAX_FILE_SIZE,
+                    (long) Math.exp(Math.log(16 << 20) + 2 * random.nextGaussian()));
+            String uri = "/folder" + random.nextInt(FOLDERS) + "/file" + i;
+            long started = System.nanoTime();
+            AccountPool.Account account = policy.choose(pool, size, uri);
+            choosing += System.nanoTime() - started;
+            placements++;
+            if (account == null) {
+                pool.update("account" + accounts++, ACCOUNT_SIZE);
+                account = policy.choose(pool, size, uri);
+            }
+            pool.update(account.getUsername(), account.getAvailable() - size);
+            pool.used(account.getUsername());
+            owners.add(account.getUsername());
+            sizes.add(size);
+            stored += size;
+        }
+        System.out.printf("%-8s %d accounts, %.1f%% full, %d files, %.2f us per placement%n",
+                name, accounts, 100.0 * stored / (accounts * ACCOUNT_SIZE), sizes.size(),
+                choosing / 1000.0 / placements);
+    }
+}
@@ -0,0 +1,153 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ProcessRunnerTest extends Assert {
+
+    private static ProcessRunner sh(String script) {
+        return new ProcessRunner(Arrays.asList("sh", "-c", script));
+    }
+
+    @Test
+    public void testRunCollectsExitCodeAndLines() throws Exception {
+        ProcessRunner.Result result = sh("echo one; printf 'two\\rthree'; exit 3").run();
+
+        assertEquals(3, result.getExitCode());
+        assertEquals(Arrays.asList("one", "two", "three"), result.getLines());
+        assertEquals("three", result.getLastLine());
+    }
+
+    @Test
+    public void testRunCollectsStandardError() throws Exception {
+        ProcessRunner.Result result = sh("echo out; echo err >&2").run();
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(2, result.getLines().size());
+        assertTrue(result.getLines().containsAll(Arrays.asList("out", "err")));
+    }
+
+    @Test
+    public void testOnlyTheLastLinesAreKept() throws Exception {
+        ProcessRunner.Result result = sh("i=0; while [ $i -lt 150 ]; do echo $i; i=$((i+1)); done").run();
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(100, result.getLines().size());
+        assertEquals("50", result.getLines().get(0));
+        assertEquals("149", result.getLastLine());
+    }
+
+    @Test
+    public void testProgressGoesToTheListener() throws Exception {
+        final List<long[]> progress = new ArrayList<long[]>();
+        ProcessRunner.Result result = sh("printf 'f: 10.00%% - 1.0 KiB (1024 bytes) of 10.0 KiB (2.0 KiB/s)\\r'"
+                + "; printf 'f: 100.00%% - 10.0 KiB (10240 bytes) of 10.0 KiB (1.5 MiB/s)\\n'; echo done")
+                .setProgressListener(new ProcessRunner.ProgressListener() {
+                    public void progress(long bytesDone, long bytesPerSecond) {
+                        progress.add(new long[] { bytesDone, bytesPerSecond });
+                    }
+                }).run();
+
+        assertEquals(Arrays.asList("done"), result.getLines());
+        assertEquals(2, progress.size());
+        assertEquals(1024, progress.get(0)[0]);
+        assertEquals(2048, progress.get(0)[1]);
+        assertEquals(10240, progress.get(1)[0]);
+        assertEquals(1572864, progress.get(1)[1]);
+    }
+
+    @Test
+    public void testParseRate() {
+        assertEquals(512, ProcessRunner.parseRate("512", ""));
+        assertEquals(1536, ProcessRunner.parseRate("1.5", "K"));
+        assertEquals(3L << 30, ProcessRunner.parseRate("3", "G"));
+    }
+
+    @Test
+    public void testProcessRunningTooLongIsKilled() throws Exception {
+        long started = System.currentTimeMillis();
+        try {
+            sh("while true; do echo busy; sleep 0.1; done").setTimeout(500).run();
+            fail();
+        } catch (ProcessRunner.TimeoutException e) {
+            assertFalse(e.isStalled());
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+    }
+
+    @Test
+    public void testStalledProcessIsKilled() throws Exception {
+        long started = System.currentTimeMillis();
+        try {
+            // the child has the pipes too, it is killed with the shell
+            sh("echo started; sleep 30 & wait").setStallTimeout(500).run();
+            fail();
+        } catch (ProcessRunner.TimeoutException e) {
+            assertTrue(e.isStalled());
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+    }
+
+    @Test
+    public void testOutputKeepsAProcessAlive() throws Exception {
+        ProcessRunner.Result result = sh("i=0; while [ $i -lt 10 ]; do echo $i; sleep 0.1; i=$((i+1)); done")
+                .setStallTimeout(500).run();
+
+        assertEquals(0, result.getExitCode());
+        assertEquals("9", result.getLastLine());
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        InputStream in = sh("printf hello; echo noise >&2").stream();
+        try {
+            assertEquals("hello", read(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testStreamFailsAtTheEndIfTheProcessDid() throws Exception {
+        InputStream in = sh("printf partial; echo 'no such file' >&2; exit 2").stream();
+        try {
+            read(in);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exited with 2"));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testStalledStreamIsKilled() throws Exception {
+        InputStream in = sh("printf x; sleep 30").setStallTimeout(500).stream();
+        try {
+            read(in);
+            fail();
+        } catch (ProcessRunner.TimeoutException e) {
+            assertTrue(e.isStalled());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,208 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SqliteConnectionsTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SqliteConnections connections;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        connections = new SqliteConnections("jdbc:sqlite:"
+                + new File(folder.getRoot(), "test.db").getPath());
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.execute("CREATE TABLE t (k INTEGER PRIMARY KEY, v TEXT)");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        connections.close();
+    }
+
+    @Test
+    public void testStatementsAreReusedWithClearedParameters() throws Exception {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            PreparedStatement first = handle.prepare("INSERT INTO t VALUES (?, ?)");
+            first.setLong(1, 1);
+            first.setString(2, "one");
+            first.execute();
+
+            PreparedStatement second = handle.prepare("INSERT INTO t VALUES (?, ?)");
+            assertSame(first, second);
+            second.setLong(1, 2);
+            // v not set again, it is null rather than "one"
+            second.execute();
+        }
+        assertNull(read(2));
+        assertEquals("one", read(1));
+    }
+
+    @Test
+    public void testUncommittedTransactionIsRolledBack() throws Exception {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            insert(handle, 1, "committed");
+            handle.commit();
+        }
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            insert(handle, 2, "rolled back");
+        }
+        assertEquals("committed", read(1));
+        assertNull(read(2));
+        // the writer is back in auto-commit
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            insert(handle, 3, "auto");
+        }
+        assertEquals("auto", read(3));
+    }
+
+    @Test
+    public void testWriterReadsItsOwnChanges() throws Exception {
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            handle.begin();
+            insert(handle, 1, "uncommitted");
+            assertEquals("uncommitted", read(1));
+            handle.commit();
+        }
+    }
+
+    @Test
+    public void testReadersDontWaitForTheWriter() throws Exception {
+        final CountDownLatch inserted = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            public void run() {
+                try (SqliteConnections.Handle handle = connections.writer()) {
+                    handle.begin();
+                    insert(handle, 1, "uncommitted");
+                    inserted.countDown();
+                    done.await();
+                    handle.commit();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+
+        // the transaction is open, readers see what was committed before
+        assertNull(read(1));
+
+        done.countDown();
+        writer.join();
+        assertEquals("uncommitted", read(1));
+    }
+
+    @Test
+    public void testWritersTakeTurns() throws Exception {
+        final AtomicBoolean secondHasWriter = new AtomicBoolean();
+        Thread second;
+        try (SqliteConnections.Handle handle = connections.writer()) {
+            second = new Thread() {
+                public void run() {
+                    try (SqliteConnections.Handle handle = connections.writer()) {
+                        secondHasWriter.set(true);
+                    }
+                }
+            };
+            second.start();
+            second.join(200);
+            assertFalse(secondHasWriter.get());
+        }
+        second.join(10000);
+        assertTrue(secondHasWriter.get());
+    }
+
+    @Test
+    public void testReadersArePooled() throws Exception {
+        List<SqliteConnections.Handle> handles = new ArrayList<SqliteConnections.Handle>();
+        final AtomicBoolean gotReader = new AtomicBoolean();
+        Thread waiting = new Thread() {
+            public void run() {
+                try (SqliteConnections.Handle handle = connections.reader()) {
+                    gotReader.set(true);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        try {
+            // megafs.db.readers is 4 by default
+            for (int i = 0; i < 4; i++) {
+                handles.add(connections.reader());
+            }
+            waiting.start();
+            waiting.join(200);
+            assertFalse(gotReader.get());
+        } finally {
+            for (SqliteConnections.Handle handle : handles) {
+                handle.close();
+            }
+        }
+        waiting.join(10000);
+        assertTrue(gotReader.get());
+    }
+
+    @Test
+    public void testReadersCantStartTransactions() throws Exception {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            handle.begin();
+            fail();
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClosingTwiceReleasesOnce() throws Exception {
+        SqliteConnections.Handle handle = connections.writer();
+        handle.close();
+        // would fail to unlock a lock that isn't held
+        handle.close();
+
+        handle = connections.reader();
+        handle.close();
+        handle.close();
+    }
+
+    private static void insert(SqliteConnections.Handle handle, long k, String v)
+            throws SQLException {
+        PreparedStatement preparedStatement = handle.prepare("INSERT INTO t VALUES (?, ?)");
+        preparedStatement.setLong(1, k);
+        preparedStatement.setString(2, v);
+        preparedStatement.execute();
+    }
+
+    private String read(long k) throws SQLException {
+        try (SqliteConnections.Handle handle = connections.reader()) {
+            PreparedStatement preparedStatement = handle.prepare("SELECT v FROM t WHERE k = ?");
+            preparedStatement.setLong(1, k);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+}
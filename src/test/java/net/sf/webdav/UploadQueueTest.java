@@ -0,0 +1,201 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.Assert;
+import net.sf.webdav.testutil.MegaFSDirectory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadQueueTest extends Assert {
+
+    @Rule
+    public MegaFSDirectory directory = new MegaFSDirectory();
+
+    private Database database;
+    private UploadQueue uploadQueue;
+
+    @Before
+    public void setUp() {
+        database = new Database();
+        uploadQueue = new UploadQueue(database, directory.getStoreRoot());
+    }
+
+    @After
+    public void tearDown() {
+        uploadQueue.shutdown();
+        database.close();
+    }
+
+    @Test
+    public void testScheduledFileIsUploadedAndLinked() throws Exception {
+        File file = directory.writeFile("/folder/a.bin", 10000, 1);
+        String sha1 = database.calcSHA1(file.getPath());
+
+        uploadQueue.schedule(file.getPath(), sha1);
+        uploadQueue.shutdown();
+
+        assertFalse(uploadQueue.isPending(file.getPath()));
+        assertEquals(0, uploadQueue.size());
+        NamespaceIndex.Entry entry = database.getNamespace().get("/folder/a.bin");
+        assertNotNull(entry);
+        assertEquals(sha1, entry.getSha1());
+        assertEquals(10000, entry.getSize());
+        assertEquals(1, directory.countRemoteFiles());
+        assertTrue(database.getUnfinishedUploads().isEmpty());
+    }
+
+    @Test
+    public void testRescheduledFileEndsUpWithTheNewestContent() throws Exception {
+        File file = directory.writeFile("/a.bin", 10000, 1);
+        uploadQueue.schedule(file.getPath(), database.calcSHA1(file.getPath()));
+        for (int i = 2; i <= 5; i++) {
+            directory.writeFile("/a.bin", 10000, i);
+            uploadQueue.schedule(file.getPath(), database.calcSHA1(file.getPath()));
+        }
+        uploadQueue.shutdown();
+
+        assertFalse(uploadQueue.isPending(file.getPath()));
+        assertEquals(database.calcSHA1(file.getPath()),
+                database.getNamespace().get("/a.bin").getSha1());
+        assertTrue(database.getUnfinishedUploads().isEmpty());
+        // what was stored is what the hash says
+        InputStream in = database.openDownload("/a.bin");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            assertEquals(database.calcSHA1(file.getPath()), Database.toHex(digest));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testUploadsIntoOneFolderArePutAtOnce() throws Exception {
+        useFakeMegatools();
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = directory.writeFile("/folder/" + i + ".bin", 10000, i);
+        }
+
+        for (File file : files) {
+            uploadQueue.schedule(file.getPath(), database.calcSHA1(file.getPath()));
+        }
+        uploadQueue.shutdown();
+
+        assertEquals(Arrays.asList("/Root/folder 0.bin 1.bin 2.bin"), directory.getMegatoolsPuts());
+        for (int i = 0; i < files.length; i++) {
+            assertFalse(uploadQueue.isPending(files[i].getPath()));
+            assertEquals(database.calcSHA1(files[i].getPath()),
+                    database.getNamespace().get("/folder/" + i + ".bin").getSha1());
+        }
+    }
+
+    @Test
+    public void testSnapshotsAreUploadedUnderTheNamesOfTheFiles() throws Exception {
+        useFakeMegatools();
+        File first = directory.writeFile("/folder/a.bin", 10000, 1);
+        File second = directory.writeFile("/folder/b.bin", 10000, 2);
+
+        uploadQueue.schedule(first.getPath(), database.calcSHA1(first.getPath()));
+        uploadQueue.schedule(second.getPath(), database.calcSHA1(second.getPath()));
+        uploadQueue.shutdown();
+
+        File remote = new File(directory.getRemoteRoot(), "Root/folder");
+        assertEquals(Arrays.asList("a.bin", "b.bin"), sorted(remote.list()));
+        assertEquals("/Root/folder/a.bin", database.getBlob(database.calcSHA1(first.getPath())).remotePath);
+        // the snapshots and their links are gone
+        assertEquals(Arrays.asList("a.bin", "b.bin"), sorted(first.getParentFile().list()));
+    }
+
+    @Test
+    public void testFailedUploadStaysPending() throws Exception {
+        File missing = new File(directory.getStoreRoot(), "missing.bin");
+
+        uploadQueue.schedule(missing.getPath(), "0000");
+        uploadQueue.shutdown();
+
+        assertTrue(uploadQueue.isPending(missing.getPath()));
+        assertNull(database.getNamespace().get("/missing.bin"));
+    }
+
+    @Test
+    public void testFailedUploadIsRetried() throws Exception {
+        useFakeMegatools();
+        directory.failNextMegatoolsPut();
+        final File file = directory.writeFile("/a.bin", 10000, 1);
+        String sha1 = database.calcSHA1(file.getPath());
+
+        uploadQueue.schedule(file.getPath(), sha1);
+
+        MegaFSDirectory.await(new Callable<Boolean>() {
+            public Boolean call() {
+                return !uploadQueue.isPending(file.getPath());
+            }
+        });
+        assertEquals(1, directory.getMegatoolsPuts().size());
+        assertEquals(sha1, database.getNamespace().get("/a.bin").getSha1());
+        assertTrue(database.getUnfinishedUploads().isEmpty());
+    }
+
+    @Test
+    public void testCancelledUploadIsForgotten() throws Exception {
+        File file = directory.writeFile("/a.bin", 10000, 1);
+
+        uploadQueue.schedule(file.getPath(), database.calcSHA1(file.getPath()));
+        uploadQueue.cancel(file.getPath());
+
+        assertFalse(uploadQueue.isPending(file.getPath()));
+        uploadQueue.shutdown();
+        assertTrue(database.getUnfinishedUploads().isEmpty());
+    }
+
+    @Test
+    public void testJournalledUploadsAreResumed() throws Exception {
+        File first = directory.writeFile("/a.bin", 10000, 1);
+        File second = directory.writeFile("/b/c.bin", 10000, 2);
+        database.journalUpload(first.getPath());
+        database.journalUpload(second.getPath());
+        assertEquals(2, database.getUnfinishedUploads().size());
+
+        // hashed again, since the content may have changed
+        uploadQueue.resume();
+        uploadQueue.shutdown();
+
+        assertEquals(database.calcSHA1(first.getPath()),
+                database.getNamespace().get("/a.bin").getSha1());
+        assertEquals(database.calcSHA1(second.getPath()),
+                database.getNamespace().get("/b/c.bin").getSha1());
+        assertTrue(database.getUnfinishedUploads().isEmpty());
+    }
+
+    /**
+     * Starts over with the database and queue on the script of
+     * {@link MegaFSDirectory#useFakeMegatools()}.
+     */
+    private void useFakeMegatools() throws Exception {
+        tearDown();
+        directory.useFakeMegatools();
+        setUp();
+    }
+
+    private static List<String> sorted(String[] names) {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(names));
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,132 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Measures how upload throughput grows with the number of accounts. A fake
+ * megatools whose put takes a fixed time stands in for MEGA, so the elapsed
+ * time only depends on how many uploads run at once: at most
+ * megafs.upload.perAccount per account and megafs.upload.workers overall.
+ * Batching is off unless megafs.batch.maxSize is given, every file is put
+ * on its own.
+ * <p>
+ * Run with the test classpath:
+ * <code>java net.sf.webdav.UploadScalingBenchmark [files] [putSeconds] [accounts...]</code>,
+ * 16 files taking 1 s each to 1, 2, 4 and 8 accounts by default.
+ */
+public class UploadScalingBenchmark {
+
+    private static final long ACCOUNT_SIZE = 50L << 30;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        String putSeconds = args.length > 1 ? args[1] : "1";
+        int[] accountCounts = { 1, 2, 4, 8 };
+        if (args.length > 2) {
+            accountCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                accountCounts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File directory = Files.createTempDirectory("megafs-benchmark").toFile();
+        File megatools = new File(directory, "megatools");
+        write(megatools, ("#!/bin/sh\n"
+                + "case \"$1\" in\n"
+                + "put) sleep " + putSeconds + " ;;\n"
+                + "df) echo " + ACCOUNT_SIZE + " ;;\n"
+                + "esac\n").getBytes("UTF-8"));
+        megatools.setExecutable(true);
+        // read once, before the classes reading them are loaded
+        System.setProperty("megafs.backend", "megatools");
+        System.setProperty("megafs.megatools", megatools.getPath());
+        if (System.getProperty("megafs.batch.maxSize") == null) {
+            System.setProperty("megafs.batch.maxSize", "1");
+        }
+
+        for (int accounts : accountCounts) {
+            System.out.printf("%d accounts: %.1f s%n", accounts,
+                    run(new File(directory, "run" + accounts), accounts, files) / 1000.0);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the milliseconds from scheduling the uploads until all of
+     *  them are done
+     */
+    private static long run(File directory, int accounts, int files) throws Exception {
+        File root = new File(directory, "store");
+        root.mkdirs();
+        File db = new File(directory, "MegaFS.db");
+        System.setProperty("megafs.db", db.getPath());
+        System.setProperty("megafs.pack.dir", new File(directory, "packs").getPath());
+        System.setProperty("megafs.chunk.dir", new File(directory, "chunks").getPath());
+        System.setProperty("megafs.compress.dir", new File(directory, "compress").getPath());
+        createAccounts(db, accounts);
+
+        Database database = new Database();
+        UploadQueue uploadQueue = new UploadQueue(database, root);
+        String[] paths = new String[files];
+        String[] sha1s = new String[files];
+        Random random = new Random(accounts);
+        for (int i = 0; i < files; i++) {
+            byte[] content = new byte[65536];
+            random.nextBytes(content);
+            File file = new File(root, "file" + i);
+            write(file, content);
+            paths[i] = file.getPath();
+            sha1s[i] = database.calcSHA1(paths[i]);
+        }
+
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < files; i++) {
+            uploadQueue.schedule(paths[i], sha1s[i]);
+        }
+        uploadQueue.shutdown();
+        long elapsed = System.currentTimeMillis() - started;
+
+        for (String path : paths) {
+            if (uploadQueue.isPending(path)) {
+                throw new IllegalStateException("upload of " + path + " failed");
+            }
+        }
+        database.close();
+        return elapsed;
+    }
+
+    private static void createAccounts(File db, int accounts) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db.getPath())) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE accounts (username varchar(255) PRIMARY KEY, password varchar(255), free_space INTEGER, reserved INTEGER DEFAULT 0)");
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO accounts VALUES (?, 'password', ?, 0)")) {
+                for (int i = 0; i < accounts; i++) {
+                    preparedStatement.setString(1, "account" + i);
+                    preparedStatement.setLong(2, ACCOUNT_SIZE);
+                    preparedStatement.execute();
+                }
+            }
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package net.sf.webdav.methods;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import junit.framework.Assert;
+import net.sf.webdav.IMimeTyper;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.WebdavStatus;
+import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.testutil.ServletStubs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ByteRangeTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClosedRangeIsCutAtTheEnd() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=10-19", 100);
+        assertEquals(1, ranges.size());
+        assertRange(10, 19, ranges.get(0));
+
+        ranges = ByteRange.parse("bytes=90-200", 100);
+        assertRange(90, 99, ranges.get(0));
+        assertEquals(10, ranges.get(0).getLength());
+        assertEquals("bytes 90-99/100", ranges.get(0).toContentRange(100));
+    }
+
+    @Test
+    public void testOpenEndedRangeRunsToTheEnd() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=10-", 100);
+        assertEquals(1, ranges.size());
+        assertRange(10, 99, ranges.get(0));
+
+        assertTrue(ByteRange.parse("bytes=100-", 100).isEmpty());
+    }
+
+    @Test
+    public void testSuffixRange() {
+        assertRange(90, 99, ByteRange.parse("bytes=-10", 100).get(0));
+        // longer than the content means all of it
+        assertRange(0, 99, ByteRange.parse("bytes=-500", 100).get(0));
+    }
+
+    @Test
+    public void testEmptySuffixIsUnsatisfiable() {
+        assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-10", 0).isEmpty());
+    }
+
+    @Test
+    public void testUnsatisfiableRangesAreLeftOut() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=200-300, 0-0, 100-", 100);
+        assertEquals(1, ranges.size());
+        assertRange(0, 0, ranges.get(0));
+
+        assertTrue(ByteRange.parse("bytes=200-300,100-", 100).isEmpty());
+    }
+
+    @Test
+    public void testMalformedHeadersAreIgnored() {
+        assertNull(ByteRange.parse("items=0-10", 100));
+        assertNull(ByteRange.parse("bytes=", 100));
+        assertNull(ByteRange.parse("bytes=10", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+        assertNull(ByteRange.parse("bytes=20-10", 100));
+        assertNull(ByteRange.parse("bytes=1-2-3", 100));
+        assertNull(ByteRange.parse("bytes=--5", 100));
+        // one bad range spoils the header
+        assertNull(ByteRange.parse("bytes=0-1,x", 100));
+    }
+
+    @Test
+    public void testUnitIsCaseInsensitive() {
+        assertRange(0, 4, ByteRange.parse(" Bytes=0-4 ", 100).get(0));
+    }
+
+    @Test
+    public void testTooManyRangesAreIgnored() {
+        assertEquals(64, ByteRange.parse("bytes=" + ranges(64), 1000).size());
+        assertNull(ByteRange.parse("bytes=" + ranges(65), 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRequestGets416() throws Exception {
+        ServletStubs.Response resp = get("bytes=200-300", 100);
+
+        assertEquals(WebdavStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                resp.status);
+        assertEquals("bytes */100", resp.headers.get("Content-Range"));
+        assertEquals(0, resp.contentLength);
+        assertEquals(0, resp.body.size());
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        ServletStubs.Response resp = get("bytes=-3", 100);
+
+        assertEquals(WebdavStatus.SC_PARTIAL_CONTENT, resp.status);
+        assertEquals("bytes 97-99/100", resp.headers.get("Content-Range"));
+        assertEquals(3, resp.contentLength);
+        assertEquals(new String(content(100), 97, 3, "US-ASCII"),
+                resp.body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testMultipartContentLengthIsExact() throws Exception {
+        // out of order, so the content is opened again for the last one
+        ServletStubs.Response resp = get("bytes=50-59,-5,0-0", 100);
+
+        assertEquals(WebdavStatus.SC_PARTIAL_CONTENT, resp.status);
+        assertTrue(resp.contentType.startsWith("multipart/byteranges; boundary="));
+        assertEquals(resp.body.size(), resp.contentLength);
+
+        String boundary = resp.contentType.substring(resp.contentType
+                .indexOf('=') + 1);
+        String body = resp.body.toString("US-ASCII");
+        String data = new String(content(100), "US-ASCII");
+        assertEquals("\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 50-59/100\r\n\r\n"
+                + data.substring(50, 60)
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 95-99/100\r\n\r\n"
+                + data.substring(95, 100)
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-0/100\r\n\r\n"
+                + data.substring(0, 1)
+                + "\r\n--" + boundary + "--\r\n", body);
+    }
+
+    @Test
+    public void testMalformedRangeServesEverything() throws Exception {
+        ServletStubs.Response resp = get("bytes=x-y", 100);
+
+        assertEquals(WebdavStatus.SC_OK, resp.status);
+        assertEquals(100, resp.body.size());
+    }
+
+    private ServletStubs.Response get(String range, int length)
+            throws Exception {
+        File root = folder.getRoot();
+        OutputStream out = new FileOutputStream(new File(root, "file.txt"));
+        try {
+            out.write(content(length));
+        } finally {
+            out.close();
+        }
+        LocalFileSystemStore store = new LocalFileSystemStore(root);
+        ITransaction transaction = store.begin(null);
+        StoredObject so = store.getStoredObject(transaction, "/file.txt");
+        IMimeTyper mimeTyper = new IMimeTyper() {
+            public String getMimeType(ITransaction transaction, String path) {
+                return "text/plain";
+            }
+        };
+        DoGet doGet = new DoGet(store, null, null, new ResourceLocks(),
+                mimeTyper, 1);
+        ServletStubs.Response resp = new ServletStubs.Response();
+        doGet.doBody(transaction, ServletStubs.request("Range", range),
+                resp.proxy(), "/file.txt", so);
+        return resp;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private static String ranges(int count) {
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                ranges.append(',');
+            }
+            ranges.append(i).append('-').append(i);
+        }
+        return ranges.toString();
+    }
+
+    private static void assertRange(long first, long last, ByteRange range) {
+        assertEquals(first, range.getFirst());
+        assertEquals(last, range.getLast());
+    }
+}
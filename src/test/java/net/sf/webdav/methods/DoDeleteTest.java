@@ -63,9 +63,12 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject fileSo = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(fileSo));
 
                 one(mockStore).removeObject(mockTransaction, sourceFilePath);
@@ -93,9 +96,12 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject fileSo = null;
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(fileSo));
 
                 one(mockRes).sendError(WebdavStatus.SC_NOT_FOUND);
@@ -123,9 +129,11 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject folderSo = initFolderStoredObject();
 
-                one(mockStore).getStoredObject(mockTransaction,
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
                         sourceCollectionPath);
                 will(returnValue(folderSo));
 
@@ -188,9 +196,11 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject folderSo = null;
 
-                one(mockStore).getStoredObject(mockTransaction,
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
                         sourceCollectionPath);
                 will(returnValue(folderSo));
 
@@ -219,9 +229,12 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject fileSo = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(fileSo));
 
                 one(mockStore).removeObject(mockTransaction, sourceFilePath);
@@ -313,9 +326,12 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject so = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, path);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        path);
                 will(returnValue(so));
 
                 one(mockStore).removeObject(mockTransaction, path);
@@ -345,9 +361,12 @@ public class DoDeleteTest extends MockTest {
 
                 one(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject nonExistingSo = null;
 
-                one(mockStore).getStoredObject(mockTransaction, "/folder/file");
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        "/folder/file");
                 will(returnValue(nonExistingSo));
 
                 one(mockRes).sendError(WebdavStatus.SC_NOT_FOUND);
@@ -93,13 +93,12 @@ public class DoGetTest extends MockTest {
                 one(mockStore).getStoredObject(mockTransaction, "/index.html");
                 will(returnValue(indexSo));
 
-                one(mockReq).getHeader("If-None-Match");
-                will(returnValue(null));
+                expectNoPreconditions(this, mockReq, true);
 
                 one(mockRes).setDateHeader("last-modified",
                         indexSo.getLastModified().getTime());
 
-                one(mockRes).addHeader(with(any(String.class)),
+                exactly(2).of(mockRes).addHeader(with(any(String.class)),
                         with(any(String.class)));
 
                 one(mockMimeTyper).getMimeType("/index.html");
@@ -107,6 +106,9 @@ public class DoGetTest extends MockTest {
 
                 one(mockRes).setContentType("text/foo");
 
+                one(mockReq).getHeader("Range");
+                will(returnValue(null));
+
                 StoredObject so = initFileStoredObject(resourceContent);
 
                 one(mockStore).getStoredObject(mockTransaction, "/index.html");
@@ -131,6 +133,109 @@ public class DoGetTest extends MockTest {
         _mockery.assertIsSatisfied();
     }
 
+    @Test
+    public void testRangeOfaPageResultsInPartialContent() throws Exception {
+
+        _mockery.checking(new Expectations() {
+            {
+                one(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                one(mockReq).getPathInfo();
+                will(returnValue("/index.html"));
+
+                StoredObject indexSo = initFileStoredObject(resourceContent);
+
+                one(mockStore).getStoredObject(mockTransaction, "/index.html");
+                will(returnValue(indexSo));
+
+                expectNoPreconditions(this, mockReq, true);
+
+                one(mockRes).setDateHeader("last-modified",
+                        indexSo.getLastModified().getTime());
+
+                exactly(2).of(mockRes).addHeader(with(any(String.class)),
+                        with(any(String.class)));
+
+                one(mockMimeTyper).getMimeType(mockTransaction, "/index.html");
+                will(returnValue("text/foo"));
+
+                one(mockRes).setContentType("text/foo");
+
+                one(mockReq).getHeader("Range");
+                will(returnValue("bytes=1-5"));
+
+                one(mockReq).getHeader("If-Range");
+                will(returnValue(null));
+
+                one(mockRes).setStatus(WebdavStatus.SC_PARTIAL_CONTENT);
+
+                one(mockRes).setHeader("Content-Range", "bytes 1-5/8");
+
+                tos = new TestingOutputStream();
+
+                one(mockRes).getOutputStream();
+                will(returnValue(tos));
+
+                one(mockStore).getResourceContent(mockTransaction,
+                        "/index.html");
+                will(returnValue(new DelegatingServletInputStream(
+                        new ByteArrayInputStream(resourceContent))));
+            }
+        });
+
+        DoGet doGet = new DoGet(mockStore, null, null, new ResourceLocks(),
+                mockMimeTyper, 0);
+
+        doGet.execute(mockTransaction, mockReq, mockRes);
+
+        assertEquals("hello", tos.toString());
+
+        _mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testRevalidationOfaPageResultsInNotModified() throws Exception {
+
+        final String sha1 = "0123456789abcdef0123456789abcdef01234567";
+
+        _mockery.checking(new Expectations() {
+            {
+                one(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                one(mockReq).getPathInfo();
+                will(returnValue("/index.html"));
+
+                StoredObject indexSo = initFileStoredObject(resourceContent);
+                indexSo.setContentHash(sha1);
+
+                one(mockStore).getStoredObject(mockTransaction, "/index.html");
+                will(returnValue(indexSo));
+
+                one(mockReq).getHeader("If-Match");
+                will(returnValue(null));
+
+                one(mockReq).getDateHeader("If-Unmodified-Since");
+                will(returnValue(-1L));
+
+                one(mockReq).getHeader("If-None-Match");
+                will(returnValue("\"other\", W/\"" + sha1 + "\""));
+
+                one(mockRes).addHeader("ETag", "\"" + sha1 + "\"");
+
+                one(mockRes).setStatus(WebdavStatus.SC_NOT_MODIFIED);
+            }
+        });
+
+        DoGet doGet = new DoGet(mockStore, null, null, new ResourceLocks(),
+                mockMimeTyper, 0);
+
+        doGet.execute(mockTransaction, mockReq, mockRes);
+
+        _mockery.assertIsSatisfied();
+    }
+
     @Test
     public void testAccessOfaDirectoryResultsInRudimentaryChildList()
             throws Exception {
@@ -150,9 +255,6 @@ public class DoGetTest extends MockTest {
                 one(mockStore).getStoredObject(mockTransaction, "/foo/");
                 will(returnValue(fooSo));
 
-                one(mockReq).getHeader("If-None-Match");
-                will(returnValue(null));
-
                 one(mockStore).getStoredObject(mockTransaction, "/foo/");
                 will(returnValue(fooSo));
 
@@ -170,10 +272,10 @@ public class DoGetTest extends MockTest {
                 one(mockStore).getChildrenNames(mockTransaction, "/foo/");
                 will(returnValue(new String[] { "AAA", "BBB" }));
                 
-                one(mockStore).getStoredObject(mockTransaction, "/foo//AAA");
+                one(mockStore).getStoredObject(mockTransaction, "/foo/AAA");
                 will(returnValue(aaa));
 
-                one(mockStore).getStoredObject(mockTransaction, "/foo//BBB");
+                one(mockStore).getStoredObject(mockTransaction, "/foo/BBB");
 				will(returnValue(bbb));
 
             }
@@ -245,13 +347,12 @@ public class DoGetTest extends MockTest {
                 one(mockStore).getStoredObject(mockTransaction, "/alternative");
                 will(returnValue(alternativeSo));
 
-                one(mockReq).getHeader("If-None-Match");
-                will(returnValue(null));
+                expectNoPreconditions(this, mockReq, true);
 
                 one(mockRes).setDateHeader("last-modified",
                         alternativeSo.getLastModified().getTime());
 
-                one(mockRes).addHeader(with(any(String.class)),
+                exactly(2).of(mockRes).addHeader(with(any(String.class)),
                         with(any(String.class)));
 
                 one(mockMimeTyper).getMimeType("/alternative");
@@ -259,6 +360,9 @@ public class DoGetTest extends MockTest {
 
                 one(mockRes).setContentType("text/foo");
 
+                one(mockReq).getHeader("Range");
+                will(returnValue(null));
+
                 one(mockStore).getStoredObject(mockTransaction, "/alternative");
                 will(returnValue(alternativeSo));
 
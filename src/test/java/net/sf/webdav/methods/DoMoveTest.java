@@ -60,7 +60,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -81,6 +82,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destFilePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("serverName"));
 
@@ -104,7 +107,8 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceFileSo = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(sourceFileSo));
 
                 StoredObject destFileSo = null;
@@ -145,7 +149,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -167,6 +172,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destFilePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -190,7 +197,8 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceFileSo = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(sourceFileSo));
 
                 StoredObject destFileSo = initFileStoredObject(resourceContent);
@@ -207,7 +215,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -229,6 +238,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destFilePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -252,7 +263,8 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceFileSo = initFileStoredObject(resourceContent);
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(sourceFileSo));
 
                 StoredObject destFileSo = initFileStoredObject(resourceContent);
@@ -296,7 +308,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -317,6 +330,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destFilePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -340,7 +355,8 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceFileSo = null;
 
-                one(mockStore).getStoredObject(mockTransaction, sourceFilePath);
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
+                        sourceFilePath);
                 will(returnValue(sourceFileSo));
 
                 one(mockRes).sendError(WebdavStatus.SC_NOT_FOUND);
@@ -351,7 +367,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -372,6 +389,11 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destFilePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
+                one(mockStore).getStoredObject(mockTransaction, destFilePath);
+                will(returnValue(initFileStoredObject(resourceContent)));
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -398,7 +420,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -420,6 +443,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destCollectionPath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -443,7 +468,7 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceCollectionSo = initFolderStoredObject();
 
-                one(mockStore).getStoredObject(mockTransaction,
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
                         sourceCollectionPath);
                 will(returnValue(sourceCollectionSo));
 
@@ -520,7 +545,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -542,6 +568,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(destCollectionPath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -565,7 +593,7 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceCollectionSo = initFolderStoredObject();
 
-                one(mockStore).getStoredObject(mockTransaction,
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
                         sourceCollectionPath);
                 will(returnValue(sourceCollectionSo));
 
@@ -583,7 +611,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -605,6 +634,8 @@ public class DoMoveTest extends MockTest {
                 exactly(2).of(mockReq).getHeader("Destination");
                 will(returnValue(overwritePath));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockReq).getServerName();
                 will(returnValue("server_name"));
 
@@ -628,7 +659,7 @@ public class DoMoveTest extends MockTest {
 
                 StoredObject sourceCollectionSo = initFolderStoredObject();
 
-                one(mockStore).getStoredObject(mockTransaction,
+                exactly(2).of(mockStore).getStoredObject(mockTransaction,
                         sourceCollectionPath);
                 will(returnValue(sourceCollectionSo));
 
@@ -716,7 +747,8 @@ public class DoMoveTest extends MockTest {
         DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
         DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
 
-        DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
+        DoMove doMove = new DoMove(mockStore, resLocks, doDelete, doCopy,
+                !readOnly);
 
         doMove.execute(mockTransaction, mockReq, mockRes);
 
@@ -1,7 +1,5 @@
 package net.sf.webdav.methods;
 
-import java.io.PrintWriter;
-
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -23,7 +21,7 @@ public class DoPropfindTest extends MockTest {
     static HttpServletRequest mockReq;
     static HttpServletResponse mockRes;
     static ITransaction mockTransaction;
-    static PrintWriter printWriter;
+    static TestingOutputStream tos = new TestingOutputStream();
     static byte[] resourceContent = new byte[] { '<', 'h', 'e', 'l', 'l', 'o',
             '/', '>' };
 
@@ -70,15 +68,12 @@ public class DoPropfindTest extends MockTest {
 
                 one(mockRes).setContentType("text/xml; charset=UTF-8");
 
-                one(mockRes).getWriter();
-                will(returnValue(printWriter));
+                one(mockRes).getOutputStream();
+                will(returnValue(tos));
 
                 one(mockMimeTyper).getMimeType(path);
                 will(returnValue("text/xml; charset=UTF-8"));
 
-                one(mockStore).getStoredObject(mockTransaction, path);
-                will(returnValue(rootSo));
-
                 one(mockReq).getContextPath();
                 will(returnValue(""));
 
@@ -99,10 +94,6 @@ public class DoPropfindTest extends MockTest {
                 one(mockReq).getServletPath();
                 will(returnValue(path));
 
-                one(mockStore)
-                        .getChildrenNames(mockTransaction, path + "file1");
-                will(returnValue(new String[] {}));
-
                 StoredObject file2So = initFileStoredObject(resourceContent);
 
                 one(mockStore).getStoredObject(mockTransaction, path + "file2");
@@ -113,10 +104,6 @@ public class DoPropfindTest extends MockTest {
 
                 one(mockReq).getServletPath();
                 will(returnValue(path));
-
-                one(mockStore)
-                        .getChildrenNames(mockTransaction, path + "file2");
-                will(returnValue(new String[] {}));
             }
         });
 
@@ -161,15 +148,12 @@ public class DoPropfindTest extends MockTest {
 
                 one(mockRes).setContentType("text/xml; charset=UTF-8");
 
-                one(mockRes).getWriter();
-                will(returnValue(printWriter));
+                one(mockRes).getOutputStream();
+                will(returnValue(tos));
 
                 one(mockMimeTyper).getMimeType(path);
                 will(returnValue("text/xml; charset=UTF-8"));
 
-                one(mockStore).getStoredObject(mockTransaction, path);
-                will(returnValue(fileSo));
-
                 one(mockReq).getContextPath();
                 will(returnValue(""));
 
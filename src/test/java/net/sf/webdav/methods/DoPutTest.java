@@ -69,6 +69,8 @@ public class DoPutTest extends MockTest {
                 one(mockReq).getHeader("User-Agent");
                 will(returnValue("Goliath agent"));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject parentSo = initFolderStoredObject();
 
                 one(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -123,6 +125,11 @@ public class DoPutTest extends MockTest {
                 one(mockReq).getHeader("User-Agent");
                 will(returnValue("Transmit agent"));
 
+                expectNoPreconditions(this, mockReq, false);
+
+                one(mockStore).getStoredObject(mockTransaction, path);
+                will(returnValue(null));
+
                 StoredObject parentSo = null;
 
                 one(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -160,6 +167,8 @@ public class DoPutTest extends MockTest {
                 one(mockReq).getHeader("User-Agent");
                 will(returnValue("WebDAVFS/1.5.0 (01500000) ....."));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 StoredObject parentSo = null;
 
                 one(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -212,6 +221,11 @@ public class DoPutTest extends MockTest {
                 one(mockReq).getHeader("User-Agent");
                 will(returnValue("WebDAVFS/1.5.0 (01500000) ....."));
 
+                expectNoPreconditions(this, mockReq, false);
+
+                one(mockStore).getStoredObject(mockTransaction, path);
+                will(returnValue(null));
+
                 StoredObject parentSo = initFileStoredObject(resourceContent);
 
                 one(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -228,6 +242,40 @@ public class DoPutTest extends MockTest {
         _mockery.assertIsSatisfied();
     }
 
+    @Test
+    public void testDoPutIfMatchOnAChangedResource() throws Exception {
+
+        _mockery.checking(new Expectations() {
+            {
+                one(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                one(mockReq).getPathInfo();
+                will(returnValue(path));
+
+                one(mockReq).getHeader("User-Agent");
+                will(returnValue("Transmit agent"));
+
+                StoredObject fileSo = initFileStoredObject(resourceContent);
+                fileSo.setContentHash("0123456789abcdef");
+
+                one(mockStore).getStoredObject(mockTransaction, path);
+                will(returnValue(fileSo));
+
+                one(mockReq).getHeader("If-Match");
+                will(returnValue("\"fedcba9876543210\""));
+
+                one(mockRes).sendError(WebdavStatus.SC_PRECONDITION_FAILED);
+            }
+        });
+
+        DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly,
+                lazyFolderCreationOnPut);
+        doPut.execute(mockTransaction, mockReq, mockRes);
+
+        _mockery.assertIsSatisfied();
+    }
+
     @Test
     public void testDoPutOnALockNullResource() throws Exception {
 
@@ -343,6 +391,8 @@ public class DoPutTest extends MockTest {
                 one(mockReq).getHeader("User-Agent");
                 will(returnValue("Transmit agent"));
 
+                expectNoPreconditions(this, mockReq, false);
+
                 one(mockResourceLocks).getLockedObjectByPath(mockTransaction,
                         parentPath);
                 will(returnValue(parentLo));
@@ -0,0 +1,165 @@
+package net.sf.webdav.methods;
+
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.Assert;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.WebdavStatus;
+import net.sf.webdav.testutil.ServletStubs;
+
+import org.junit.Test;
+
+public class PreconditionsTest extends Assert {
+
+    private static final long MODIFIED = 1500000000000L;
+
+    private static final String ETAG = "\"abc\"";
+
+    @Test
+    public void testStrongComparison() {
+        assertTrue(Preconditions.matches("\"abc\"", "\"abc\"", true));
+        assertFalse(Preconditions.matches("\"abd\"", "\"abc\"", true));
+        assertFalse(Preconditions.matches("W/\"abc\"", "\"abc\"", true));
+        assertFalse(Preconditions.matches("\"abc\"", "W/\"abc\"", true));
+        assertFalse(Preconditions.matches("W/\"abc\"", "W/\"abc\"", true));
+    }
+
+    @Test
+    public void testWeakComparison() {
+        assertTrue(Preconditions.matches("\"abc\"", "\"abc\"", false));
+        assertTrue(Preconditions.matches("W/\"abc\"", "\"abc\"", false));
+        assertTrue(Preconditions.matches("\"abc\"", "W/\"abc\"", false));
+        assertTrue(Preconditions.matches("W/\"abc\"", "W/\"abc\"", false));
+        assertFalse(Preconditions.matches("W/\"ab\"", "W/\"abc\"", false));
+    }
+
+    @Test
+    public void testList() {
+        assertTrue(Preconditions.matches("\"x\", \"abc\"", "\"abc\"", true));
+        assertTrue(Preconditions.matches("\"x\",\t W/\"abc\"", "\"abc\"", false));
+        assertFalse(Preconditions.matches("\"x\", \"y\"", "\"abc\"", false));
+        // a prefix of a listed tag isn't the tag
+        assertFalse(Preconditions.matches("\"abcd\"", "\"abc\"", false));
+    }
+
+    @Test
+    public void testStar() {
+        assertTrue(Preconditions.matches("*", "\"abc\"", true));
+        assertTrue(Preconditions.matches(" * ", null, true));
+    }
+
+    @Test
+    public void testMalformedListMatchesNothing() {
+        assertFalse(Preconditions.matches("abc", "\"abc\"", false));
+        assertFalse(Preconditions.matches("\"abc", "\"abc\"", false));
+        assertFalse(Preconditions.matches("W/abc", "\"abc\"", false));
+        assertFalse(Preconditions.matches("\"x\", abc, \"abc\"", "\"abc\"", false));
+        assertFalse(Preconditions.matches("W/", "\"abc\"", false));
+        assertFalse(Preconditions.matches("\"abc\"", null, false));
+    }
+
+    @Test
+    public void testIfMatch() {
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), false,
+                "If-Match", ETAG));
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(
+                file(MODIFIED), false, "If-Match", "\"other\""));
+        // needs something to match, even "*"
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(null,
+                false, "If-Match", "*"));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, evaluate(file(MODIFIED),
+                true, "If-None-Match", "W/\"abc\""));
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(
+                file(MODIFIED), false, "If-None-Match", ETAG));
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), true,
+                "If-None-Match", "\"other\""));
+        // a PUT that must not overwrite
+        assertEquals(WebdavStatus.SC_OK, evaluate(null, false,
+                "If-None-Match", "*"));
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(
+                file(MODIFIED), false, "If-None-Match", "*"));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        String date = ServletStubs.httpDate(MODIFIED);
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, evaluate(file(MODIFIED),
+                true, "If-Modified-Since", date));
+        // the milliseconds don't count
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, evaluate(
+                file(MODIFIED + 999), true, "If-Modified-Since", date));
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED + 1000),
+                true, "If-Modified-Since", date));
+        // only for GET and HEAD
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), false,
+                "If-Modified-Since", date));
+        // If-None-Match takes precedence
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), true,
+                "If-None-Match", "\"other\"", "If-Modified-Since", date));
+    }
+
+    @Test
+    public void testIfUnmodifiedSince() {
+        String date = ServletStubs.httpDate(MODIFIED);
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED + 999),
+                false, "If-Unmodified-Since", date));
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(
+                file(MODIFIED + 1000), false, "If-Unmodified-Since", date));
+        // If-Match takes precedence
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED + 1000),
+                false, "If-Match", ETAG, "If-Unmodified-Since", date));
+    }
+
+    @Test
+    public void testUnknownModificationTimeIsNotCompared() {
+        String epoch = ServletStubs.httpDate(0);
+        String date = ServletStubs.httpDate(MODIFIED);
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(0), true,
+                "If-Modified-Since", epoch));
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(999), true,
+                "If-Modified-Since", date));
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(999), false,
+                "If-Unmodified-Since", epoch));
+        // the first known time
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, evaluate(file(1000), true,
+                "If-Modified-Since", date));
+    }
+
+    @Test
+    public void testInvalidDateIsIgnored() {
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), true,
+                "If-Modified-Since", "yesterday"));
+        assertEquals(WebdavStatus.SC_OK, evaluate(file(MODIFIED), false,
+                "If-Unmodified-Since", "yesterday"));
+    }
+
+    @Test
+    public void testLockNullResourceDoesNotExist() {
+        StoredObject lockNull = file(MODIFIED);
+        lockNull.setNullResource(true);
+        assertEquals(WebdavStatus.SC_PRECONDITION_FAILED, evaluate(lockNull,
+                false, "If-Match", "*"));
+        assertEquals(WebdavStatus.SC_OK, evaluate(lockNull, false,
+                "If-None-Match", "*"));
+    }
+
+    private static int evaluate(StoredObject so, boolean safe,
+            String... headers) {
+        HttpServletRequest req = ServletStubs.request(headers);
+        return Preconditions.evaluate(req, so, so == null ? null : ETAG, safe);
+    }
+
+    private static StoredObject file(long lastModified) {
+        StoredObject so = new StoredObject();
+        so.setFolder(false);
+        so.setLastModified(new Date(lastModified));
+        so.setResourceLength(10);
+        return so;
+    }
+}
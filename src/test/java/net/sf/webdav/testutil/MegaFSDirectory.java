@@ -0,0 +1,225 @@
+package net.sf.webdav.testutil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.Ignore;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Gives the MegaFS database and store of a test their own directory: the
+ * SQLite file, the pack, chunk and compression directories, the sendfile
+ * links and the "remote" files of LocalTransferBackend all go below it.
+ * <p>
+ * Some settings are read once per JVM, they are set here before the classes
+ * reading them are loaded, unless given on the command line: files below 4
+ * KiB are packed, files of 1 MiB or more are split into chunks of 256 KiB,
+ * blobs are deflated if that makes them smaller, which the random content
+ * of {@link #writeFile} never does, and failed uploads are retried after 50
+ * ms.
+ */
+@Ignore
+public class MegaFSDirectory extends TemporaryFolder {
+
+    public static final int PACK_THRESHOLD = 4096;
+    public static final int CHUNK_THRESHOLD = 1 << 20;
+    public static final int CHUNK_SIZE = 256 << 10;
+
+    static {
+        setDefault("megafs.pack.threshold", "" + PACK_THRESHOLD);
+        setDefault("megafs.pack.windowMillis", "50");
+        setDefault("megafs.chunk.threshold", "" + CHUNK_THRESHOLD);
+        setDefault("megafs.chunk.size", "" + CHUNK_SIZE);
+        setDefault("megafs.compress", "deflate");
+        setDefault("megafs.upload.retryMillis", "50");
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        super.before();
+        System.setProperty("megafs.backend", "local");
+        System.setProperty("megafs.db", new File(getRoot(), "MegaFS.db").getPath());
+        System.setProperty("megafs.pack.dir", new File(getRoot(), "packs").getPath());
+        System.setProperty("megafs.chunk.dir", new File(getRoot(), "chunks").getPath());
+        System.setProperty("megafs.compress.dir", new File(getRoot(), "compress").getPath());
+        System.setProperty("megafs.sendfile.directory", new File(getRoot(), "sendfile").getPath());
+        System.setProperty("megafs.backend.local.root", getRemoteRoot().getPath());
+        getStoreRoot().mkdirs();
+    }
+
+    /**
+     * @return the directory holding the local copies of the files
+     */
+    public File getStoreRoot() {
+        return new File(getRoot(), "store");
+    }
+
+    /**
+     * @return the directory of LocalTransferBackend, one folder per account
+     */
+    public File getRemoteRoot() {
+        return new File(getRoot(), "remote");
+    }
+
+    /**
+     * @return the number of files stored remotely by all accounts
+     */
+    public int countRemoteFiles() {
+        return countFiles(getRemoteRoot());
+    }
+
+    private static int countFiles(File directory) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            count += files[i].isDirectory() ? countFiles(files[i]) : 1;
+        }
+        return count;
+    }
+
+    /**
+     * Switches the test to MegatoolsTransferBackend, running a script in
+     * place of megatools that keeps the files below the remote root, and
+     * adds an account to the database, since the script can't create any.
+     * Every put that succeeds is logged by {@link #getMegatoolsPuts()}; puts
+     * can be held up by {@link #holdMegatoolsPuts()} or made to fail by
+     * {@link #failNextMegatoolsPut()}. Takes effect for the Database created
+     * next.
+     */
+    public void useFakeMegatools() throws Exception {
+        File remote = getRemoteRoot();
+        File megatools = new File(getRoot(), "megatools");
+        OutputStream out = new FileOutputStream(megatools);
+        try {
+            out.write(("#!/bin/sh\n"
+                    + "command=$1\n"
+                    + "shift 3\n"
+                    + "case \"$command\" in\n"
+                    + "put)\n"
+                    + "  folder=${1#--path=}\n"
+                    + "  shift\n"
+                    + "  while [ -e '" + getMegatoolsHold() + "' ]; do sleep 0.05; done\n"
+                    + "  if rm '" + getMegatoolsFailure() + "' 2>/dev/null; then\n"
+                    + "    echo 'ERROR: Upload failed for '\"$1\"': connection reset'\n"
+                    + "    exit 1\n"
+                    + "  fi\n"
+                    + "  echo \"$folder\" $(for file; do basename \"$file\"; done | sort) >> '" + getMegatoolsLog() + "'\n"
+                    + "  for file; do cp \"$file\" '" + remote + "'\"$folder\"; done ;;\n"
+                    + "mkdir) mkdir -p '" + remote + "'\"$1\" ;;\n"
+                    + "df) echo 53687091200 ;;\n"
+                    + "esac\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        megatools.setExecutable(true);
+        new File(remote, "Root").mkdirs();
+        System.setProperty("megafs.backend", "megatools");
+        System.setProperty("megafs.megatools", megatools.getPath());
+
+        Class.forName("org.sqlite.JDBC");
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:"
+                + System.getProperty("megafs.db"));
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE IF NOT EXISTS accounts (username varchar(255) PRIMARY KEY, password varchar(255), free_space INTEGER, reserved INTEGER DEFAULT 0)");
+            statement.execute("INSERT INTO accounts VALUES ('user', 'secret', 53687091200, 0)");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private File getMegatoolsHold() {
+        return new File(getRoot(), "megatools.hold");
+    }
+
+    /**
+     * Makes the puts of {@link #useFakeMegatools()} wait until
+     * {@link #releaseMegatoolsPuts()}.
+     */
+    public void holdMegatoolsPuts() throws IOException {
+        getMegatoolsHold().createNewFile();
+    }
+
+    public void releaseMegatoolsPuts() {
+        getMegatoolsHold().delete();
+    }
+
+    private File getMegatoolsFailure() {
+        return new File(getRoot(), "megatools.fail");
+    }
+
+    /**
+     * Makes the next put of {@link #useFakeMegatools()} fail.
+     */
+    public void failNextMegatoolsPut() throws IOException {
+        getMegatoolsFailure().createNewFile();
+    }
+
+    private File getMegatoolsLog() {
+        return new File(getRoot(), "megatools.log");
+    }
+
+    /**
+     * @return one line for every put of {@link #useFakeMegatools()}: the
+     *  remote folder and the names the files were uploaded under, sorted
+     */
+    public List<String> getMegatoolsPuts() throws IOException {
+        if (!getMegatoolsLog().exists()) {
+            return new ArrayList<String>();
+        }
+        return Files.readAllLines(getMegatoolsLog().toPath());
+    }
+
+    /**
+     * Writes <code>length</code> bytes generated from <code>seed</code> to a
+     * file below the store root.
+     *
+     * @return the file
+     */
+    public File writeFile(String uri, int length, long seed) throws IOException {
+        File file = new File(getStoreRoot(), uri);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content(length, seed));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Waits up to ten seconds for something done in the background.
+     */
+    public static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out waiting");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
@@ -3,12 +3,15 @@ package net.sf.webdav.testutil;
 import java.io.ByteArrayInputStream;
 import java.util.Date;
 
+import javax.servlet.http.HttpServletRequest;
+
 import junit.framework.Assert;
 import net.sf.webdav.StoredObject;
 import net.sf.webdav.locking.LockedObject;
 import net.sf.webdav.locking.ResourceLocks;
 import net.sf.webdav.methods.TestingOutputStream;
 
+import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -116,6 +119,30 @@ public abstract class MockTest extends Assert {
         return so;
     }
 
+    /**
+     * Expects the conditional headers to be read from a request that has
+     * none of them.
+     * 
+     * @param safe
+     *      true for GET and HEAD, which also read If-Modified-Since
+     */
+    public static void expectNoPreconditions(Expectations expectations,
+            HttpServletRequest req, boolean safe) {
+        expectations.one(req).getHeader("If-Match");
+        expectations.will(Expectations.returnValue(null));
+
+        expectations.one(req).getDateHeader("If-Unmodified-Since");
+        expectations.will(Expectations.returnValue(-1L));
+
+        expectations.one(req).getHeader("If-None-Match");
+        expectations.will(Expectations.returnValue(null));
+
+        if (safe) {
+            expectations.one(req).getDateHeader("If-Modified-Since");
+            expectations.will(Expectations.returnValue(-1L));
+        }
+    }
+
     public static StoredObject initLockNullStoredObject() {
         StoredObject so = new StoredObject();
         so.setNullResource(true);
@@ -0,0 +1,151 @@
+package net.sf.webdav.testutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Ignore;
+
+/**
+ * Request and response stand-ins for tests that only look at headers,
+ * attributes, the status and the body. Methods they don't implement return
+ * null, 0 or false.
+ */
+@Ignore
+public class ServletStubs {
+
+    private ServletStubs() {
+    }
+
+    /**
+     * @param headers
+     *      header names and values, names in any case
+     */
+    public static HttpServletRequest request(String... headers) {
+        final Map<String, String> headerMap = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2) {
+            headerMap.put(headers[i].toLowerCase(Locale.ENGLISH), headers[i + 1]);
+        }
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ServletStubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getHeader")) {
+                            return headerMap.get(((String) args[0])
+                                    .toLowerCase(Locale.ENGLISH));
+                        }
+                        if (name.equals("getDateHeader")) {
+                            return Long.valueOf(parseDate(headerMap
+                                    .get(((String) args[0])
+                                            .toLowerCase(Locale.ENGLISH))));
+                        }
+                        if (name.equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        }
+                        if (name.equals("setAttribute")) {
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        }
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    /**
+     * @return the date as an HTTP date header value
+     */
+    public static String httpDate(long millis) {
+        return dateFormat().format(new java.util.Date(millis));
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return dateFormat().parse(value).getTime();
+        } catch (ParseException e) {
+            // as containers do
+            throw new IllegalArgumentException(value);
+        }
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        }
+        if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+
+    /**
+     * Records what is set on a response and the bytes written to its body.
+     */
+    public static class Response implements InvocationHandler {
+
+        public int status = HttpServletResponse.SC_OK;
+        public int contentLength = -1;
+        public String contentType;
+        public final Map<String, String> headers = new HashMap<String, String>();
+        public final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        };
+
+        public HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    ServletStubs.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("setStatus") || name.equals("sendError")) {
+                status = ((Integer) args[0]).intValue();
+            } else if (name.equals("setContentLength")) {
+                contentLength = ((Integer) args[0]).intValue();
+            } else if (name.equals("setContentType")) {
+                contentType = (String) args[0];
+            } else if (name.equals("setHeader") || name.equals("addHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+            } else if (name.equals("getOutputStream")) {
+                return out;
+            } else {
+                return defaultValue(method);
+            }
+            return null;
+        }
+    }
+}